@@ -0,0 +1,246 @@
+package com.dani.mongo.tshoot;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Inputs and stand-ins shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * A database whose collections build iterables and cursors without a server, so the
+     * mongosh parser can be measured without measuring the network. Fluent calls return the
+     * stub itself and every other interface type gets another stub.
+     */
+    static MongoDatabase stubDatabase() {
+        return stub(MongoDatabase.class);
+    }
+
+    /**
+     * A request with no parameters, for OperationContext.create.
+     */
+    static HttpServletRequest stubRequest() {
+        return stub(HttpServletRequest.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals": return proxy == args[0];
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "toString": return "stub " + type.getSimpleName();
+                        default: break;
+                    }
+                    Class<?> returnType = method.getReturnType();
+                    if (returnType == Object.class) {
+                        return null;
+                    }
+                    if (returnType.isInstance(proxy)) {
+                        return proxy;
+                    }
+                    if (returnType.isInterface()) {
+                        return stub(returnType);
+                    }
+                    if (returnType == long.class) return 0L;
+                    if (returnType == int.class) return 0;
+                    if (returnType == boolean.class) return false;
+                    return null;
+                });
+    }
+
+    /**
+     * A cursor over documents already in memory.
+     */
+    static final class ListCursor implements MongoCursor<Document> {
+        private final List<Document> documents;
+        private final Iterator<Document> iterator;
+
+        ListCursor(List<Document> documents) {
+            this.documents = documents;
+            this.iterator = documents.iterator();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Document next() {
+            return iterator.next();
+        }
+
+        @Override
+        public int available() {
+            return iterator.hasNext() ? documents.size() : 0;
+        }
+
+        @Override
+        public Document tryNext() {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return new ServerAddress();
+        }
+    }
+
+    /**
+     * A cursor over BSON documents that decodes each one with the given decoder on next(),
+     * as the driver does with the documents of a reply batch.
+     */
+    static final class DecodingCursor<T> implements MongoCursor<T> {
+        private final List<byte[]> documents;
+        private final Decoder<T> decoder;
+        private int position;
+
+        DecodingCursor(List<byte[]> documents, Decoder<T> decoder) {
+            this.documents = documents;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < documents.size();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(documents.get(position++)))) {
+                return decoder.decode(reader, DecoderContext.builder().build());
+            }
+        }
+
+        @Override
+        public int available() {
+            return documents.size() - position;
+        }
+
+        @Override
+        public T tryNext() {
+            return hasNext() ? next() : null;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return new ServerAddress();
+        }
+    }
+
+    /**
+     * The documents encoded as BSON, as they arrive in a reply.
+     */
+    static List<byte[]> toBson(List<Document> documents) {
+        List<byte[]> bytes = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            RawBsonDocument raw = new RawBsonDocument(document, new DocumentCodec());
+            bytes.add(Arrays.copyOfRange(raw.getByteBuffer().array(), 0, raw.getByteBuffer().remaining()));
+        }
+        return bytes;
+    }
+
+    /**
+     * Order documents with a nested customer, an array of line items with their own tag
+     * arrays, dates, decimals and text that needs escaping.
+     */
+    static List<Document> orderDocuments(int count) {
+        List<Document> documents = new ArrayList<>(count);
+        long baseTime = 1_704_067_200_000L;
+        for (int i = 0; i < count; i++) {
+            List<Document> items = new ArrayList<>();
+            for (int j = 0; j < 10; j++) {
+                items.add(new Document("sku", "SKU-" + (i * 10 + j))
+                        .append("name", "Item \"" + j + "\" of order " + i)
+                        .append("quantity", j + 1)
+                        .append("price", new Decimal128(new BigDecimal("19.99").add(BigDecimal.valueOf(j))))
+                        .append("tags", List.of("tag" + j, "category" + (j % 3), "promo")));
+            }
+            documents.add(new Document("_id", new ObjectId())
+                    .append("orderNumber", 100_000 + i)
+                    .append("status", i % 4 == 0 ? "shipped" : "pending")
+                    .append("createdAt", new Date(baseTime + i * 60_000L))
+                    .append("customer", new Document("name", "Customer " + i)
+                            .append("email", "customer" + i + "@example.com")
+                            .append("address", new Document("street", i + " Main St")
+                                    .append("city", "Springfield")
+                                    .append("zip", String.format("%05d", i))))
+                    .append("items", items)
+                    .append("total", 1234.56 + i)
+                    .append("notes", "Leave at the door.\nCall on arrival\t(after 5pm)"));
+        }
+        return documents;
+    }
+
+    /**
+     * An aggregate command with a long pipeline of the kind used when troubleshooting
+     * reports: matches, unwinds, groups, projections and sorts.
+     */
+    static String largeAggregateCommand(int stageGroups) {
+        StringBuilder command = new StringBuilder("db.orders.aggregate([");
+        for (int i = 0; i < stageGroups; i++) {
+            if (i > 0) command.append(", ");
+            command.append("{\"$match\": {\"status\": \"shipped\", \"total\": {\"$gte\": ").append(i * 10)
+                    .append("}, \"customer.address.city\": \"Springfield\"}}, ");
+            command.append("{\"$unwind\": \"$items\"}, ");
+            command.append("{\"$group\": {\"_id\": \"$items.sku\", \"quantity\": {\"$sum\": \"$items.quantity\"}, ")
+                    .append("\"revenue\": {\"$sum\": {\"$multiply\": [\"$items.price\", \"$items.quantity\"]}}, ")
+                    .append("\"orders\": {\"$addToSet\": \"$orderNumber\"}}}, ");
+            command.append("{\"$project\": {\"_id\": 0, \"sku\": \"$_id\", \"quantity\": 1, \"revenue\": 1, ")
+                    .append("\"orderCount\": {\"$size\": \"$orders\"}}}, ");
+            command.append("{\"$sort\": {\"revenue\": -1, \"sku\": 1}}");
+        }
+        command.append("])");
+        return command.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.dani.mongo.tshoot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Cost of turning mongosh command text into driver calls, against a stub database so no
+ * server round trip is included. Apart from parseUncached these hit the plan cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class MongoshParseBenchmark {
+
+    private static final String FIND_COMMAND = "db.orders.find({\"status\": \"shipped\", "
+            + "\"total\": {\"$gte\": 100, \"$lt\": 5000}, \"items.sku\": {\"$in\": [\"SKU-1\", \"SKU-2\", \"SKU-3\"]}, "
+            + "\"createdAt\": {\"$gte\": {\"$date\": \"2024-01-01T00:00:00Z\"}}, \"customer.address.city\": \"Springfield\"})";
+
+    private static final String CHAINED_FIND_COMMAND = "db.orders.find({status: 'shipped', total: {$gte: 100}}, "
+            + "{_id: 0, orderNumber: 1, total: 1}).sort({total: -1, orderNumber: 1}).skip(20).limit(10)";
+
+    private static final String COUNT_COMMAND = "db.orders.countDocuments({\"status\": \"pending\"})";
+
+    /**
+     * Aggregate command with the given number of five-stage groups in its pipeline.
+     */
+    @State(Scope.Benchmark)
+    public static class PipelineInput {
+        @Param({"1", "10"})
+        public int stageGroups;
+
+        String command;
+
+        @Setup
+        public void setUp() {
+            command = BenchmarkSupport.largeAggregateCommand(stageGroups);
+        }
+    }
+
+    private MongoTroubleshootServlet servlet;
+    private MongoDatabase database;
+    private OperationContext context;
+
+    @Setup
+    public void setUp() {
+        servlet = new MongoTroubleshootServlet();
+        database = BenchmarkSupport.stubDatabase();
+        context = OperationContext.create(BenchmarkSupport.stubRequest());
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.complete();
+    }
+
+    @Benchmark
+    public Object find() throws Exception {
+        return servlet.parseMongoshCommand(null, database, FIND_COMMAND, context, 100, 100, false, false);
+    }
+
+    @Benchmark
+    public Object chainedFind() throws Exception {
+        return servlet.parseMongoshCommand(null, database, CHAINED_FIND_COMMAND, context, 100, 100, false, false);
+    }
+
+    /**
+     * The parser alone, as paid by the first run of each command.
+     */
+    @Benchmark
+    public Object parseUncached(PipelineInput input) {
+        return MongoshParser.parseUncached(input.command);
+    }
+
+    @Benchmark
+    public Object countDocuments() throws Exception {
+        return servlet.parseMongoshCommand(null, database, COUNT_COMMAND, context, 100, 100, false, false);
+    }
+
+    @Benchmark
+    public Object aggregate(PipelineInput input) throws Exception {
+        return servlet.parseMongoshCommand(null, database, input.command, context, 100, 100, false, false);
+    }
+}
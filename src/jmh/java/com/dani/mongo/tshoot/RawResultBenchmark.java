@@ -0,0 +1,66 @@
+package com.dani.mongo.tshoot;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * Streaming a reply batch to the response: decoding each document into a Document and
+ * encoding it to JSON, against reading it as a RawBsonDocument and piping its bytes
+ * straight into the JSON writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class RawResultBenchmark {
+
+    @Param({"100"})
+    public int documentCount;
+
+    private List<byte[]> documents;
+    private Codec<Document> documentCodec;
+    private Codec<RawBsonDocument> rawCodec;
+    private PrintWriter out;
+
+    @Setup
+    public void setUp() {
+        documents = BenchmarkSupport.toBson(BenchmarkSupport.orderDocuments(documentCount));
+        documentCodec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+        rawCodec = MongoClientSettings.getDefaultCodecRegistry().get(RawBsonDocument.class);
+        // The response stream is not what is being measured
+        out = new PrintWriter(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public JsonResultStreamer.StreamResult decodeDocuments() {
+        return JsonResultStreamer.writeArray(new BenchmarkSupport.DecodingCursor<>(documents, documentCodec),
+                documentCodec, out, documentCount, JsonResultStreamer.DEFAULT_BATCH_SIZE, true);
+    }
+
+    @Benchmark
+    public JsonResultStreamer.StreamResult rawPassThrough() {
+        return JsonResultStreamer.writeArray(new BenchmarkSupport.DecodingCursor<>(documents, rawCodec),
+                rawCodec, out, documentCount, JsonResultStreamer.DEFAULT_BATCH_SIZE, true);
+    }
+}
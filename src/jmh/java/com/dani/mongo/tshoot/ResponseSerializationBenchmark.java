@@ -0,0 +1,75 @@
+package com.dani.mongo.tshoot;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.codecs.Encoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * Turning a result set into the response body: collecting Document.toJson() output in a
+ * StringBuilder, as the non-cursor mongosh results do, against streaming the documents
+ * with JsonResultStreamer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ResponseSerializationBenchmark {
+
+    @Param({"100"})
+    public int documentCount;
+
+    private List<Document> documents;
+    private Encoder<Document> encoder;
+    private PrintWriter out;
+
+    @Setup
+    public void setUp() {
+        documents = BenchmarkSupport.orderDocuments(documentCount);
+        encoder = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+        // The response stream is not what is being measured
+        out = new PrintWriter(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public String stringBuilderToJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"success\": true,");
+        json.append("\"resultCount\": ").append(documents.size()).append(",");
+        json.append("\"results\": [");
+        for (int i = 0; i < documents.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(documents.get(i).toJson());
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    @Benchmark
+    public JsonResultStreamer.StreamResult streamToWriter() {
+        out.print("{\"results\": ");
+        JsonResultStreamer.StreamResult result = JsonResultStreamer.writeArray(
+                new BenchmarkSupport.ListCursor(documents), encoder, out, documentCount, JsonResultStreamer.DEFAULT_BATCH_SIZE, true);
+        out.print("}");
+        return result;
+    }
+}
@@ -0,0 +1,52 @@
+package com.dani.mongo.tshoot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import jakarta.servlet.http.HttpSessionAttributeListener;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+
+@WebListener
+public class ApplicationLifecycleListener implements ServletContextListener, HttpSessionAttributeListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ApplicationLifecycleListener.class);
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ToolMetrics.init();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        logger.info("Application stopping, releasing shared MongoDB resources");
+        ServerStatusSampler.shutdown();
+        ReplicationMonitor.shutdown();
+        CurrentOpWatcher.shutdown();
+        WorkloadGenerator.shutdown();
+        CursorRegistry.shutdown();
+        MongoClientCache.shutdown();
+    }
+
+    // Session clients are counted as they are bound to and unbound from sessions, which
+    // also covers sessions that expire without closing their connection. Replacing one
+    // client with another leaves the count unchanged.
+
+    @Override
+    public void attributeAdded(HttpSessionBindingEvent event) {
+        if (event.getValue() instanceof MongoClient) {
+            ToolMetrics.sessionClientOpened();
+        }
+    }
+
+    @Override
+    public void attributeRemoved(HttpSessionBindingEvent event) {
+        if (event.getValue() instanceof MongoClient) {
+            ToolMetrics.sessionClientClosed();
+        }
+    }
+}
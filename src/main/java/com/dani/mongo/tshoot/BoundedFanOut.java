@@ -0,0 +1,77 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks on virtual threads while limiting how many server commands they have in flight.
+ * Tasks are forked in passes: {@link #join()} waits for every task forked so far, so a pass
+ * can list databases or collections that the next pass then fans out over. Each command a
+ * task sends goes through {@link #withPermit}, so a task issuing several commands holds at
+ * most one permit at a time.
+ */
+final class BoundedFanOut implements AutoCloseable {
+
+    /**
+     * A forked task; it may block waiting for permits.
+     */
+    interface Task {
+        void run() throws InterruptedException;
+    }
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    private final List<Future<?>> tasks = new ArrayList<>();
+
+    BoundedFanOut(int concurrency) {
+        this.permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * Start a task of the current pass.
+     */
+    void fork(Task task) {
+        tasks.add(executor.submit(() -> {
+            task.run();
+            return null;
+        }));
+    }
+
+    /**
+     * Run one step of a task while holding a permit.
+     */
+    void withPermit(Runnable step) throws InterruptedException {
+        permits.acquire();
+        try {
+            step.run();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Wait for every task forked so far. When interrupted the running tasks are interrupted
+     * too, rather than left to finish while the executor closes.
+     */
+    void join() throws Exception {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        } finally {
+            tasks.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
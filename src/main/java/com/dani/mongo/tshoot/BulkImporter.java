@@ -0,0 +1,397 @@
+package com.dani.mongo.tshoot;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.json.JsonReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Loads NDJSON, or a JSON array of documents, into a collection with unordered insertMany
+ * batches sent by several parallel writers.
+ *
+ * The input is parsed incrementally into RawBsonDocument batches that are handed to the
+ * writers through a bounded queue, so at most a few batches per writer are held in memory
+ * whatever the input size. A batch is closed at batchSize documents or MAX_BATCH_BYTES,
+ * whichever comes first. Progress of running and recent imports is kept by request id.
+ */
+public class BulkImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkImporter.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int MAX_BATCH_SIZE = 100_000;
+    public static final int DEFAULT_WRITERS = 4;
+    public static final int MAX_WRITERS = 32;
+    private static final int MAX_BATCH_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_IMPORTS = EnvironmentConfig.getInt("MONGO_MAX_IMPORTS", 2);
+    private static final int HISTORY_SIZE = EnvironmentConfig.getInt("MONGO_IMPORT_HISTORY_SIZE", 20);
+    private static final int MAX_ERRORS_REPORTED = 20;
+    private static final long LOG_INTERVAL_NANOS = 10_000_000_000L;
+    private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+    // Tells a writer that no more batches will come
+    private static final List<RawBsonDocument> END = new ArrayList<>();
+
+    private static final Semaphore importPermits = new Semaphore(MAX_IMPORTS);
+    // Running and recently finished imports by request id, oldest first
+    private static final Map<String, BulkImporter> imports = new LinkedHashMap<>();
+
+    /**
+     * Target, batching and write concern of an import.
+     */
+    public static final class Options {
+        public String database;
+        public String collection;
+        public int batchSize = DEFAULT_BATCH_SIZE;
+        public int writers = DEFAULT_WRITERS;
+        public WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
+    }
+
+    private final String requestId;
+    private final Options options;
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final List<String> errors = new ArrayList<>();
+    private volatile long parsed;
+    private volatile long bytesRead;
+    private volatile long parseErrors;
+    private volatile long endNanos;
+    private volatile String status = "running";
+    private volatile String error;
+
+    private BulkImporter(String requestId, Options options) {
+        this.requestId = requestId;
+        this.options = options;
+    }
+
+    /**
+     * Reserve an import slot and register the import, or return null when MONGO_MAX_IMPORTS
+     * imports are already running. The slot is freed when {@link #run} returns.
+     */
+    public static BulkImporter begin(String requestId, Options options) {
+        if (options.database == null || options.database.trim().isEmpty()
+                || options.collection == null || options.collection.trim().isEmpty()) {
+            throw new IllegalArgumentException("Database and collection are required");
+        }
+        options.batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, options.batchSize));
+        options.writers = Math.max(1, Math.min(MAX_WRITERS, options.writers));
+        if (!importPermits.tryAcquire()) {
+            return null;
+        }
+        BulkImporter importer = new BulkImporter(requestId, options);
+        synchronized (imports) {
+            imports.put(requestId, importer);
+            List<String> finished = new ArrayList<>();
+            for (BulkImporter existing : imports.values()) {
+                if (!"running".equals(existing.status)) {
+                    finished.add(existing.requestId);
+                }
+            }
+            for (int i = 0; i < finished.size() - HISTORY_SIZE; i++) {
+                imports.remove(finished.get(i));
+            }
+        }
+        return importer;
+    }
+
+    /**
+     * Record an import that failed before loading started and free its slot.
+     */
+    public void fail(Exception e) {
+        error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        status = "failed";
+        endNanos = System.nanoTime();
+        importPermits.release();
+    }
+
+    /**
+     * Parse the input and insert it, returning once every batch has been written. The input
+     * is NDJSON unless its first non-blank character opens an array. Lines that fail to
+     * parse are counted and skipped; in an array a parse error ends the import.
+     */
+    public String run(MongoCollection<?> target, OperationContext context, Reader input) throws Exception {
+        MongoCollection<RawBsonDocument> collection = target.withDocumentClass(RawBsonDocument.class)
+                .withWriteConcern(options.writeConcern);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            logger.info("Importing into {}: batchSize={}, writers={}, writeConcern={}", collection.getNamespace(),
+                    options.batchSize, options.writers, options.writeConcern.asDocument().toJson());
+
+            // Two queued batches per writer keep them busy while parsing continues
+            BlockingQueue<List<RawBsonDocument>> queue = new ArrayBlockingQueue<>(options.writers * 2);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < options.writers; i++) {
+                writers.add(executor.submit(() -> {
+                    write(collection, context, queue);
+                    return null;
+                }));
+            }
+            parse(new CountingReader(input), queue);
+            for (int i = 0; i < options.writers; i++) {
+                queue.put(END);
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            status = "completed";
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            status = context.isCancelled() ? "cancelled" : "failed";
+            throw e;
+        } finally {
+            // Stops writers still waiting for batches after a failure
+            executor.shutdownNow();
+            endNanos = System.nanoTime();
+            importPermits.release();
+            logger.info("Import {} into {} {}: {}", requestId, collection.getNamespace(), status, toJson());
+        }
+        return toJson();
+    }
+
+    private void parse(CountingReader input, BlockingQueue<List<RawBsonDocument>> queue) throws Exception {
+        BufferedReader reader = new BufferedReader(input, 64 * 1024);
+        Batcher batcher = new Batcher(queue);
+        // Look at the first non-blank character to tell an array from NDJSON
+        reader.mark(1024);
+        int first;
+        int skipped = 0;
+        do {
+            first = reader.read();
+        } while (first != -1 && Character.isWhitespace(first) && ++skipped < 1024);
+        reader.reset();
+
+        if (first == '[') {
+            JsonReader json = new JsonReader(reader);
+            json.readBsonType();
+            json.readStartArray();
+            while (json.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                if (json.getCurrentBsonType() != BsonType.DOCUMENT) {
+                    throw new IllegalArgumentException("Array element " + parsed + " is not a document");
+                }
+                batcher.add(RAW_CODEC.decode(json, DECODER_CONTEXT));
+                bytesRead = input.count;
+            }
+            json.readEndArray();
+        } else {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                RawBsonDocument document;
+                try {
+                    document = RawBsonDocument.parse(line);
+                } catch (RuntimeException e) {
+                    parseErrors++;
+                    addError("line " + lineNumber + ": " + e.getMessage());
+                    continue;
+                }
+                batcher.add(document);
+                bytesRead = input.count;
+            }
+        }
+        batcher.flush();
+        bytesRead = input.count;
+    }
+
+    /**
+     * Collects parsed documents into batches and queues them for the writers.
+     */
+    private final class Batcher {
+        private final BlockingQueue<List<RawBsonDocument>> queue;
+        private List<RawBsonDocument> batch = new ArrayList<>();
+        private long batchBytes;
+        private long lastLog = System.nanoTime();
+
+        Batcher(BlockingQueue<List<RawBsonDocument>> queue) {
+            this.queue = queue;
+        }
+
+        void add(RawBsonDocument document) throws Exception {
+            batch.add(document);
+            batchBytes += document.getByteBuffer().remaining();
+            parsed++;
+            if (batch.size() >= options.batchSize || batchBytes >= MAX_BATCH_BYTES) {
+                flush();
+            }
+        }
+
+        void flush() throws Exception {
+            if (batch.isEmpty()) {
+                return;
+            }
+            // Blocks while the writers are behind; cancelling the request interrupts the wait
+            queue.put(batch);
+            batch = new ArrayList<>();
+            batchBytes = 0;
+            if (System.nanoTime() - lastLog > LOG_INTERVAL_NANOS) {
+                lastLog = System.nanoTime();
+                logger.info("Import {}: {}", requestId, toJson());
+            }
+        }
+    }
+
+    private void write(MongoCollection<RawBsonDocument> collection, OperationContext context,
+            BlockingQueue<List<RawBsonDocument>> queue) throws InterruptedException {
+        while (true) {
+            List<RawBsonDocument> batch = queue.take();
+            if (batch == END) {
+                return;
+            }
+            if (context.isCancelled()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                collection.insertMany(batch, context.insertManyOptions().ordered(false));
+                inserted.addAndGet(batch.size());
+            } catch (MongoBulkWriteException e) {
+                // Unordered: everything without a write error was inserted
+                inserted.addAndGet(e.getWriteResult().getInsertedCount());
+                failed.addAndGet(e.getWriteErrors().size());
+                for (BulkWriteError writeError : e.getWriteErrors()) {
+                    addError("code " + writeError.getCode() + ": " + writeError.getMessage());
+                }
+            } catch (RuntimeException e) {
+                failed.addAndGet(batch.size());
+                addError(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            }
+            batchLatency.recordNanos(System.nanoTime() - start);
+            batches.incrementAndGet();
+        }
+    }
+
+    private void addError(String message) {
+        synchronized (errors) {
+            if (errors.size() < MAX_ERRORS_REPORTED) {
+                errors.add(message);
+            }
+        }
+    }
+
+    /**
+     * Counts the characters read through it.
+     */
+    private static final class CountingReader extends FilterReader {
+        volatile long count;
+
+        CountingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c >= 0) {
+                count++;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * JSON progress of the import: counts, insert rate and batch latency.
+     */
+    public String toJson() {
+        long elapsedNanos = (endNanos > 0 ? endNanos : System.nanoTime()) - startNanos;
+        double seconds = elapsedNanos / 1e9;
+        long insertedCount = inserted.get();
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"requestId\": \"").append(JsonUtil.escape(requestId)).append("\",");
+        json.append("\"namespace\": \"").append(JsonUtil.escape(options.database + "." + options.collection)).append("\",");
+        json.append("\"status\": \"").append(status).append("\",");
+        json.append("\"startedAt\": ").append(startedAt).append(",");
+        json.append("\"elapsedMs\": ").append(elapsedNanos / 1_000_000).append(",");
+        json.append("\"batchSize\": ").append(options.batchSize).append(",");
+        json.append("\"writers\": ").append(options.writers).append(",");
+        json.append("\"charactersRead\": ").append(bytesRead).append(",");
+        json.append("\"parsed\": ").append(parsed).append(",");
+        json.append("\"parseErrors\": ").append(parseErrors).append(",");
+        json.append("\"inserted\": ").append(insertedCount).append(",");
+        json.append("\"failed\": ").append(failed.get()).append(",");
+        json.append("\"insertedPerSecond\": ").append(seconds > 0 ? Math.round(insertedCount / seconds) : 0).append(",");
+        json.append("\"batches\": ").append(batches.get()).append(",");
+        json.append("\"batchLatency\": ").append(batchLatency.toJson());
+        if (error != null) {
+            json.append(",\"error\": \"").append(JsonUtil.escape(error)).append("\"");
+        }
+        json.append(",\"errors\": [");
+        synchronized (errors) {
+            for (int i = 0; i < errors.size(); i++) {
+                if (i > 0) json.append(",");
+                json.append("\"").append(JsonUtil.escape(errors.get(i))).append("\"");
+            }
+        }
+        json.append("]");
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * JSON progress of one import, or null if it is unknown.
+     */
+    public static String progressJson(String requestId) {
+        BulkImporter importer;
+        synchronized (imports) {
+            importer = imports.get(requestId);
+        }
+        return importer == null ? null : importer.toJson();
+    }
+
+    /**
+     * JSON array of running and recent imports, newest first.
+     */
+    public static String historyJson() {
+        List<BulkImporter> all;
+        synchronized (imports) {
+            all = new ArrayList<>(imports.values());
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (int i = all.size() - 1; i >= 0; i--) {
+            if (i < all.size() - 1) json.append(",");
+            json.append(all.get(i).toJson());
+        }
+        json.append("]");
+        return json.toString();
+    }
+}
@@ -1,15 +1,18 @@
 package com.dani.mongo.tshoot;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
-import java.util.UUID;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
@@ -17,17 +20,16 @@ import javax.net.ssl.TrustManagerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mongodb.ConnectionString;
-import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
 
 public class CertificateManager {
 
     private static final Logger logger = LoggerFactory.getLogger(CertificateManager.class);
     private static final String CERT_STORAGE_DIR = "/tmp/mongo-certs";
     private static final String TRUSTSTORE_DIR = "/tmp/mongo-truststores";
-    private static final String TRUSTSTORE_PASSWORD = "changeit";
+
+    private static final Map<String, SSLContext> sslContextsByFingerprint = new ConcurrentHashMap<>();
+    private static final Map<String, String> fingerprintsByCertificateId = new ConcurrentHashMap<>();
 
     /**
      * Create a MongoDB client with custom truststore containing the uploaded certificate
@@ -37,85 +39,98 @@ public class CertificateManager {
 
         logger.info("Creating MongoDB client with certificate ID: {}", certificateId);
 
+        MongoClient mongoClient = MongoClientFactory.create(connectionString, certificateId);
+        logger.info("MongoDB client created successfully with custom certificate");
+        return mongoClient;
+    }
+
+    /**
+     * Get the SSL context for a certificate. Contexts are built in memory and shared by
+     * certificate fingerprint so that repeated connections can resume TLS sessions.
+     */
+    static SSLContext getSSLContext(String certificateId) throws Exception {
+        String fingerprint = fingerprintsByCertificateId.get(certificateId);
+        if (fingerprint != null) {
+            SSLContext cached = sslContextsByFingerprint.get(fingerprint);
+            if (cached != null) {
+                logger.info("Using cached SSL context for certificate: {}", certificateId);
+                return cached;
+            }
+        }
+
         // Get certificate path
         Path certPath = Paths.get(CERT_STORAGE_DIR, certificateId + ".pem");
         if (!Files.exists(certPath)) {
             throw new IllegalArgumentException("Certificate not found: " + certificateId);
         }
 
-        // Create truststore with the certificate
-        Path truststorePath = createTruststore(certPath, certificateId);
+        Collection<? extends Certificate> certificates = loadCertificates(certPath);
+        String certFingerprint = fingerprint(certificates);
+        fingerprintsByCertificateId.put(certificateId, certFingerprint);
 
-        // Create SSL context with the truststore
-        SSLContext sslContext = createSSLContext(truststorePath);
-
-        // Build MongoDB client settings
-        ConnectionString connString = new ConnectionString(connectionString);
-        MongoClientSettings settings = MongoClientSettings.builder()
-                .applyConnectionString(connString)
-                .applyToSslSettings(builder -> {
-                    builder.enabled(true);
-                    builder.context(sslContext);
-                })
-                .build();
-
-        logger.info("MongoDB client created successfully with custom certificate");
-        return MongoClients.create(settings);
+        // Uploads of the same CA under different IDs share one context
+        return sslContextsByFingerprint.computeIfAbsent(certFingerprint, key -> {
+            try {
+                return createSSLContext(createTruststore(certificates, certificateId));
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to create SSL context: " + e.getMessage(), e);
+            }
+        });
     }
 
     /**
-     * Create a truststore containing the specified certificate
+     * Load every certificate contained in a PEM file
      */
-    private static Path createTruststore(Path certPath, String certificateId) throws Exception {
-        logger.info("Creating truststore for certificate: {}", certificateId);
-
-        // Create truststore directory if it doesn't exist
-        Path truststoreDir = Paths.get(TRUSTSTORE_DIR);
-        if (!Files.exists(truststoreDir)) {
-            Files.createDirectories(truststoreDir);
+    private static Collection<? extends Certificate> loadCertificates(Path certPath) throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        try (InputStream is = Files.newInputStream(certPath)) {
+            Collection<? extends Certificate> certificates = cf.generateCertificates(is);
+            if (certificates.isEmpty()) {
+                throw new IllegalArgumentException("No certificate found in: " + certPath.getFileName());
+            }
+            logger.info("Loaded {} certificate(s) from {}", certificates.size(), certPath.getFileName());
+            return certificates;
         }
+    }
 
-        // Generate unique truststore filename
-        String truststoreFileName = "truststore-" + certificateId + ".jks";
-        Path truststorePath = truststoreDir.resolve(truststoreFileName);
-
-        // Load the certificate
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        Certificate cert;
-        try (FileInputStream fis = new FileInputStream(certPath.toFile())) {
-            cert = cf.generateCertificate(fis);
-            logger.info("Certificate loaded: {}", cert.getType());
+    /**
+     * SHA-256 fingerprint over the DER encoding of the given certificates
+     */
+    private static String fingerprint(Collection<? extends Certificate> certificates) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (Certificate cert : certificates) {
+            digest.update(cert.getEncoded());
         }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Create an in-memory truststore containing the specified certificates
+     */
+    private static KeyStore createTruststore(Collection<? extends Certificate> certificates, String certificateId)
+            throws Exception {
+        logger.info("Creating in-memory truststore for certificate: {}", certificateId);
 
         // Create a new keystore
         KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-        keyStore.load(null, TRUSTSTORE_PASSWORD.toCharArray());
-
-        // Add the certificate to the keystore
-        String alias = "mongodb-ca-" + UUID.randomUUID().toString();
-        keyStore.setCertificateEntry(alias, cert);
-        logger.info("Certificate added to truststore with alias: {}", alias);
-
-        // Save the keystore to file
-        try (FileOutputStream fos = new FileOutputStream(truststorePath.toFile())) {
-            keyStore.store(fos, TRUSTSTORE_PASSWORD.toCharArray());
+        keyStore.load(null, null);
+
+        // Add the certificates to the keystore
+        int index = 0;
+        for (Certificate cert : certificates) {
+            String alias = "mongodb-ca-" + index++;
+            keyStore.setCertificateEntry(alias, cert);
+            logger.info("Certificate added to truststore with alias: {}", alias);
         }
 
-        logger.info("Truststore created successfully: {}", truststorePath);
-        return truststorePath;
+        return keyStore;
     }
 
     /**
      * Create SSL context from truststore
      */
-    private static SSLContext createSSLContext(Path truststorePath) throws Exception {
-        logger.info("Creating SSL context from truststore: {}", truststorePath);
-
-        // Load the truststore
-        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-        try (FileInputStream fis = new FileInputStream(truststorePath.toFile())) {
-            trustStore.load(fis, TRUSTSTORE_PASSWORD.toCharArray());
-        }
+    private static SSLContext createSSLContext(KeyStore trustStore) throws Exception {
+        logger.info("Creating SSL context from in-memory truststore");
 
         // Initialize TrustManagerFactory with the truststore
         TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
@@ -162,11 +177,21 @@ public class CertificateManager {
             Files.deleteIfExists(certPath);
             logger.info("Deleted certificate: {}", certPath);
 
-            // Delete associated truststore
+            // Drop the cached SSL context unless another upload shares the same fingerprint
+            String fingerprint = fingerprintsByCertificateId.remove(certificateId);
+            if (fingerprint != null && !fingerprintsByCertificateId.containsValue(fingerprint)) {
+                sslContextsByFingerprint.remove(fingerprint);
+                logger.info("Invalidated cached SSL context for certificate: {}", certificateId);
+            }
+
+            // Delete truststore left behind by older versions
             Path truststorePath = Paths.get(TRUSTSTORE_DIR, "truststore-" + certificateId + ".jks");
             Files.deleteIfExists(truststorePath);
             logger.info("Deleted truststore: {}", truststorePath);
 
+            // Drop cached clients that were built with this certificate
+            MongoClientCache.invalidateCertificate(certificateId);
+
         } catch (IOException e) {
             logger.error("Error deleting certificate: {}", certificateId, e);
         }
@@ -56,6 +56,7 @@ public class CertificateUploadServlet extends HttpServlet {
         response.setCharacterEncoding("UTF-8");
 
         PrintWriter out = response.getWriter();
+        long startNanos = System.nanoTime();
 
         try {
             logger.info("=== Certificate Upload Request ===");
@@ -105,6 +106,7 @@ public class CertificateUploadServlet extends HttpServlet {
             logger.error("Error uploading certificate: {}", e.getMessage(), e);
             writeJsonResponse(out, false, "Error uploading certificate: " + e.getMessage(), null);
         } finally {
+            ToolMetrics.recordAction("uploadCertificate", System.nanoTime() - startNanos);
             logger.info("=== Certificate Upload Complete ===");
         }
     }
@@ -0,0 +1,347 @@
+package com.dani.mongo.tshoot;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Streams a collection, or the documents matching a filter, to an output stream as NDJSON
+ * or as concatenated BSON documents in the format of mongodump's .bson files, optionally
+ * gzip-compressed.
+ *
+ * Documents are read as RawBsonDocument and written from their bytes: BSON output copies
+ * them as they are and NDJSON pipes them through a JsonWriter, so no Document maps or
+ * strings are built and heap use stays at one cursor batch plus the stream buffers,
+ * whatever the export size. Progress of running and recent exports is kept by request id.
+ */
+public class CollectionExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectionExporter.class);
+
+    private static final int MAX_EXPORTS = EnvironmentConfig.getInt("MONGO_MAX_EXPORTS", 4);
+    private static final int HISTORY_SIZE = EnvironmentConfig.getInt("MONGO_EXPORT_HISTORY_SIZE", 20);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long LOG_INTERVAL_NANOS = 10_000_000_000L;
+    private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+    private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+
+    private static final Semaphore exportPermits = new Semaphore(MAX_EXPORTS);
+    // Running and recently finished exports by request id, oldest first
+    private static final Map<String, Progress> exports = new LinkedHashMap<>();
+
+    private CollectionExporter() {
+    }
+
+    public enum Format {
+        NDJSON("ndjson", "application/x-ndjson"),
+        BSON("bson", "application/octet-stream");
+
+        final String extension;
+        final String contentType;
+
+        Format(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+
+        static Format parse(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return NDJSON;
+            }
+            for (Format format : values()) {
+                if (format.extension.equalsIgnoreCase(value.trim())) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown export format: " + value);
+        }
+    }
+
+    /**
+     * What to export and how to encode it.
+     */
+    public static final class Options {
+        public String database;
+        public String collection;
+        public Document filter = new Document();
+        public Document projection;
+        /** Maximum documents, 0 for all */
+        public int limit;
+        /** Documents per getMore, 0 for the server default */
+        public int batchSize;
+        public Format format = Format.NDJSON;
+        public boolean gzip;
+        /** Extended JSON mode for NDJSON: RELAXED or CANONICAL */
+        public JsonMode jsonMode = JsonMode.RELAXED;
+
+        public String fileName() {
+            return collection + "." + format.extension + (gzip ? ".gz" : "");
+        }
+
+        public String contentType() {
+            return gzip ? "application/gzip" : format.contentType;
+        }
+    }
+
+    /**
+     * Counters of one export, updated by the exporting thread and read by progress requests.
+     */
+    public static final class Progress {
+        final String requestId;
+        final String namespace;
+        final String format;
+        final long startedAt = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        // Estimated documents when the whole collection is exported, -1 when unknown
+        volatile long expected = -1;
+        volatile long documents;
+        volatile long bytes;
+        volatile long bytesSent;
+        volatile long endNanos;
+        volatile String status = "running";
+        volatile String error;
+
+        Progress(String requestId, String namespace, String format) {
+            this.requestId = requestId;
+            this.namespace = namespace;
+            this.format = format;
+        }
+
+        public boolean isRunning() {
+            return "running".equals(status);
+        }
+
+        String toJson() {
+            long elapsedNanos = (endNanos > 0 ? endNanos : System.nanoTime()) - startNanos;
+            double seconds = elapsedNanos / 1e9;
+            long docs = documents;
+            long raw = bytes;
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"requestId\": \"").append(JsonUtil.escape(requestId)).append("\",");
+            json.append("\"namespace\": \"").append(JsonUtil.escape(namespace)).append("\",");
+            json.append("\"format\": \"").append(format).append("\",");
+            json.append("\"status\": \"").append(status).append("\",");
+            json.append("\"startedAt\": ").append(startedAt).append(",");
+            json.append("\"elapsedMs\": ").append(elapsedNanos / 1_000_000).append(",");
+            json.append("\"documents\": ").append(docs).append(",");
+            json.append("\"expectedDocuments\": ").append(expected < 0 ? "null" : expected).append(",");
+            json.append("\"bytes\": ").append(raw).append(",");
+            json.append("\"bytesSent\": ").append(bytesSent).append(",");
+            json.append("\"docsPerSecond\": ").append(seconds > 0 ? Math.round(docs / seconds) : 0).append(",");
+            json.append("\"mbPerSecond\": ").append(seconds > 0 ? Math.round(raw / seconds / 1024 / 1024 * 100) / 100.0 : 0.0);
+            if (error != null) {
+                json.append(",\"error\": \"").append(JsonUtil.escape(error)).append("\"");
+            }
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Reserve an export slot and register the export's progress, or return null when
+     * MONGO_MAX_EXPORTS exports are already running. The slot is freed by {@link #export}
+     * or {@link #fail}.
+     */
+    public static Progress begin(String requestId, Options options) {
+        if (!exportPermits.tryAcquire()) {
+            return null;
+        }
+        Progress progress = new Progress(requestId, options.database + "." + options.collection,
+                options.format.extension + (options.gzip ? "+gzip" : ""));
+        synchronized (exports) {
+            exports.put(requestId, progress);
+            // Drop the oldest finished exports beyond the history size
+            List<String> finished = new ArrayList<>();
+            for (Progress existing : exports.values()) {
+                if (!existing.isRunning()) {
+                    finished.add(existing.requestId);
+                }
+            }
+            for (int i = 0; i < finished.size() - HISTORY_SIZE; i++) {
+                exports.remove(finished.get(i));
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Open the cursor for an export. Query errors surface here, before anything is written.
+     */
+    public static MongoCursor<RawBsonDocument> open(MongoCollection<Document> source, OperationContext context,
+            Options options, Progress progress) {
+        MongoCollection<RawBsonDocument> collection = source.withDocumentClass(RawBsonDocument.class);
+        FindIterable<RawBsonDocument> find = context.apply(collection.find(options.filter));
+        if (options.projection != null) {
+            find.projection(options.projection);
+        }
+        if (options.limit > 0) {
+            find.limit(options.limit);
+        }
+        if (options.batchSize > 0) {
+            find.batchSize(options.batchSize);
+        }
+        if (options.filter.isEmpty()) {
+            // Metadata only, so progress can show a percentage for full exports
+            long count = collection.estimatedDocumentCount();
+            progress.expected = options.limit > 0 ? Math.min(count, options.limit) : count;
+        }
+        return find.cursor();
+    }
+
+    /**
+     * Write every document of the cursor to the stream and close the cursor. The stream is
+     * finished but not closed. Releases the export slot taken by {@link #begin}.
+     */
+    public static void export(MongoCursor<RawBsonDocument> cursor, Options options, Progress progress,
+            OutputStream target) throws IOException {
+        try (MongoCursor<RawBsonDocument> documents = cursor) {
+            CountingOutputStream sent = new CountingOutputStream(target);
+            GZIPOutputStream gzip = options.gzip ? new GZIPOutputStream(sent, BUFFER_SIZE) : null;
+            CountingOutputStream raw = new CountingOutputStream(gzip != null ? gzip : sent);
+            OutputStream out = new BufferedOutputStream(raw, BUFFER_SIZE);
+            Writer writer = options.format == Format.NDJSON ? new OutputStreamWriter(out, StandardCharsets.UTF_8) : null;
+            JsonWriterSettings jsonSettings = JsonWriterSettings.builder().outputMode(options.jsonMode).build();
+
+            long lastLog = System.nanoTime();
+            while (documents.hasNext()) {
+                // Set by the cancel action
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                RawBsonDocument document = documents.next();
+                if (writer != null) {
+                    RAW_CODEC.encode(new JsonWriter(writer, jsonSettings), document, ENCODER_CONTEXT);
+                    writer.write('\n');
+                } else {
+                    ByteBuffer bytes = document.getByteBuffer().asNIO();
+                    if (bytes.hasArray()) {
+                        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                    } else {
+                        byte[] copy = new byte[bytes.remaining()];
+                        bytes.get(copy);
+                        out.write(copy);
+                    }
+                }
+                progress.documents++;
+                // Counted after buffering, so this lags by at most the buffer sizes
+                progress.bytes = raw.count;
+                progress.bytesSent = sent.count;
+                if (System.nanoTime() - lastLog > LOG_INTERVAL_NANOS) {
+                    lastLog = System.nanoTime();
+                    logger.info("Export {} of {}: {}", progress.requestId, progress.namespace, progress.toJson());
+                }
+            }
+
+            if (writer != null) {
+                writer.flush();
+            }
+            out.flush();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            target.flush();
+            progress.bytes = raw.count;
+            progress.bytesSent = sent.count;
+            progress.status = "completed";
+        } catch (IOException | RuntimeException e) {
+            progress.status = "failed";
+            progress.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            finish(progress);
+        }
+        logger.info("Export {} of {} completed: {}", progress.requestId, progress.namespace, progress.toJson());
+    }
+
+    /**
+     * Record an export that failed before streaming started and free its slot.
+     */
+    public static void fail(Progress progress, Exception error) {
+        progress.status = "failed";
+        progress.error = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+        finish(progress);
+    }
+
+    private static void finish(Progress progress) {
+        progress.endNanos = System.nanoTime();
+        exportPermits.release();
+    }
+
+    /**
+     * JSON progress of one export, or null if it is unknown.
+     */
+    public static String progressJson(String requestId) {
+        Progress progress;
+        synchronized (exports) {
+            progress = exports.get(requestId);
+        }
+        return progress == null ? null : progress.toJson();
+    }
+
+    /**
+     * JSON array of running and recent exports, newest first.
+     */
+    public static String historyJson() {
+        List<Progress> all;
+        synchronized (exports) {
+            all = new ArrayList<>(exports.values());
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (int i = all.size() - 1; i >= 0; i--) {
+            if (i < all.size() - 1) json.append(",");
+            json.append(all.get(i).toJson());
+        }
+        json.append("]");
+        return json.toString();
+    }
+}
@@ -0,0 +1,288 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.event.CommandEvent;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * Wire commands and time breakdown of one API request.
+ *
+ * A CommandListener on every client records each command that completes on the thread
+ * handling a request: name, database, wire request id, server, duration and reply size.
+ * Together with the wait for a request slot, connection checkout waits and the time spent
+ * encoding and writing JSON, the request's wall time splits into queue, MongoDB round
+ * trips, checkout, serialization and the servlet's own processing. The last traces of a
+ * session are kept in a bounded buffer.
+ *
+ * Commands run on other threads, such as the parallel workers of collectAll statistics or
+ * pool stress runs, are not attributed to the request.
+ */
+public class CommandTrace {
+
+    private static final String SESSION_TRACE_BUFFER = "commandTraceBuffer";
+    private static final int MAX_COMMANDS = EnvironmentConfig.getInt("MONGO_TRACE_COMMANDS_PER_REQUEST", 200);
+    private static final int HISTORY_SIZE = EnvironmentConfig.getInt("MONGO_TRACE_HISTORY_SIZE", 50);
+
+    private static final Listener LISTENER = new Listener();
+
+    private static final class Command {
+        final String name;
+        final String database;
+        final int requestId;
+        final String server;
+        final long offsetMicros;
+        final long durationMicros;
+        final long replyBytes;
+        final String error;
+
+        Command(String name, String database, int requestId, String server, long offsetMicros, long durationMicros,
+                long replyBytes, String error) {
+            this.name = name;
+            this.database = database;
+            this.requestId = requestId;
+            this.server = server;
+            this.offsetMicros = offsetMicros;
+            this.durationMicros = durationMicros;
+            this.replyBytes = replyBytes;
+            this.error = error;
+        }
+    }
+
+    private final String requestId;
+    private final String action;
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private final List<Command> commands = new ArrayList<>();
+    private long commandCount;
+    private long failedCount;
+    private long commandNanos;
+    private long replyBytes;
+    private long checkoutCount;
+    private long checkoutNanos;
+    private long serializationNanos;
+    private long queueNanos;
+
+    CommandTrace(String requestId, String action) {
+        this.requestId = requestId;
+        this.action = action;
+    }
+
+    /**
+     * Register the command listener on client settings.
+     */
+    public static void attach(MongoClientSettings.Builder builder) {
+        builder.addCommandListener(LISTENER);
+    }
+
+    /**
+     * The trace of the request handled on the current thread, or null.
+     */
+    public static CommandTrace current() {
+        OperationContext context = OperationContext.current();
+        return context == null ? null : context.getTrace();
+    }
+
+    private static final class Listener implements CommandListener {
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            CommandTrace trace = current();
+            if (trace != null) {
+                trace.addCommand(event, event.getElapsedTime(TimeUnit.NANOSECONDS), replySize(event.getResponse()), null);
+            }
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+            CommandTrace trace = current();
+            if (trace != null) {
+                Throwable error = event.getThrowable();
+                trace.addCommand(event, event.getElapsedTime(TimeUnit.NANOSECONDS), -1,
+                        error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Size of a reply in bytes. The driver hands listeners the raw reply, whose size is known
+     * without decoding it; returns -1 for other documents.
+     */
+    static long replySize(BsonDocument response) {
+        if (response instanceof RawBsonDocument) {
+            return ((RawBsonDocument) response).getByteBuffer().remaining();
+        }
+        return -1;
+    }
+
+    private synchronized void addCommand(CommandEvent event, long nanos, long bytes, String error) {
+        commandCount++;
+        commandNanos += nanos;
+        if (bytes > 0) {
+            replyBytes += bytes;
+        }
+        if (error != null) {
+            failedCount++;
+        }
+        if (commands.size() < MAX_COMMANDS) {
+            long offset = System.nanoTime() - nanos - startNanos;
+            commands.add(new Command(event.getCommandName(), event.getDatabaseName(), event.getRequestId(),
+                    event.getConnectionDescription().getServerAddress().toString(),
+                    offset / 1000, nanos / 1000, bytes, error));
+        }
+    }
+
+    synchronized void addCheckoutWait(long nanos) {
+        checkoutCount++;
+        checkoutNanos += nanos;
+    }
+
+    synchronized void addSerialization(long nanos) {
+        serializationNanos += nanos;
+    }
+
+    /**
+     * Mark the end of the wait for a request slot: everything since the request arrived,
+     * including the hand-off to the worker thread, counts as queue time.
+     */
+    synchronized void endQueue() {
+        queueNanos = System.nanoTime() - startNanos;
+    }
+
+    synchronized void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    private long totalNanos() {
+        return (endNanos > 0 ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * Server-Timing header value with the breakdown so far.
+     */
+    public synchronized String serverTiming() {
+        long total = totalNanos();
+        return "queue;dur=" + millis(queueNanos)
+                + ", mongo;dur=" + millis(commandNanos) + ";desc=\"" + commandCount + " commands\""
+                + ", checkout;dur=" + millis(checkoutNanos)
+                + ", serialize;dur=" + millis(serializationNanos)
+                + ", servlet;dur=" + millis(servletNanos(total))
+                + ", total;dur=" + millis(total);
+    }
+
+    private long servletNanos(long total) {
+        return Math.max(0, total - queueNanos - commandNanos - checkoutNanos - serializationNanos);
+    }
+
+    /**
+     * JSON with the breakdown and, if requested, every recorded command.
+     */
+    public synchronized String toJson(boolean withCommands) {
+        long total = totalNanos();
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"requestId\": \"").append(JsonUtil.escape(requestId)).append("\",");
+        json.append("\"action\": ").append(action == null ? "null" : "\"" + JsonUtil.escape(action) + "\"").append(",");
+        json.append("\"startedAt\": ").append(startedAt).append(",");
+        json.append("\"breakdown\": {");
+        json.append("\"totalMs\": ").append(millis(total)).append(",");
+        json.append("\"queueMs\": ").append(millis(queueNanos)).append(",");
+        json.append("\"mongoMs\": ").append(millis(commandNanos)).append(",");
+        json.append("\"checkoutMs\": ").append(millis(checkoutNanos)).append(",");
+        json.append("\"serializationMs\": ").append(millis(serializationNanos)).append(",");
+        json.append("\"servletMs\": ").append(millis(servletNanos(total)));
+        json.append("},");
+        json.append("\"commandCount\": ").append(commandCount).append(",");
+        json.append("\"failedCommands\": ").append(failedCount).append(",");
+        json.append("\"checkouts\": ").append(checkoutCount).append(",");
+        json.append("\"replyBytes\": ").append(replyBytes);
+        if (withCommands) {
+            json.append(",\"commands\": [");
+            for (int i = 0; i < commands.size(); i++) {
+                Command command = commands.get(i);
+                if (i > 0) json.append(",");
+                json.append("{");
+                json.append("\"name\": \"").append(JsonUtil.escape(command.name)).append("\",");
+                json.append("\"database\": \"").append(JsonUtil.escape(command.database)).append("\",");
+                json.append("\"requestId\": ").append(command.requestId).append(",");
+                json.append("\"server\": \"").append(JsonUtil.escape(command.server)).append("\",");
+                json.append("\"offsetMs\": ").append(command.offsetMicros / 1000.0).append(",");
+                json.append("\"durationMs\": ").append(command.durationMicros / 1000.0).append(",");
+                json.append("\"replyBytes\": ").append(command.replyBytes < 0 ? "null" : command.replyBytes);
+                if (command.error != null) {
+                    json.append(",\"error\": \"").append(JsonUtil.escape(command.error)).append("\"");
+                }
+                json.append("}");
+            }
+            json.append("],");
+            json.append("\"commandsDropped\": ").append(commandCount - commands.size());
+        }
+        json.append("}");
+        return json.toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    /**
+     * Add a finished trace to the session's buffer, dropping the oldest beyond the history size.
+     */
+    @SuppressWarnings("unchecked")
+    public static void store(HttpSession session, CommandTrace trace) {
+        synchronized (session) {
+            ArrayDeque<CommandTrace> buffer = (ArrayDeque<CommandTrace>) session.getAttribute(SESSION_TRACE_BUFFER);
+            if (buffer == null) {
+                buffer = new ArrayDeque<>();
+                session.setAttribute(SESSION_TRACE_BUFFER, buffer);
+            }
+            synchronized (buffer) {
+                buffer.addLast(trace);
+                while (buffer.size() > HISTORY_SIZE) {
+                    buffer.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * JSON array of the session's traces, newest first, optionally only the one with the
+     * given request id. Commands are included when a request id is given.
+     */
+    @SuppressWarnings("unchecked")
+    public static String historyJson(HttpSession session, String requestId) {
+        ArrayDeque<CommandTrace> buffer = session == null ? null
+                : (ArrayDeque<CommandTrace>) session.getAttribute(SESSION_TRACE_BUFFER);
+        StringBuilder json = new StringBuilder("[");
+        if (buffer != null) {
+            List<CommandTrace> traces;
+            synchronized (buffer) {
+                traces = new ArrayList<>(buffer);
+            }
+            boolean first = true;
+            for (int i = traces.size() - 1; i >= 0; i--) {
+                CommandTrace trace = traces.get(i);
+                if (requestId != null && !requestId.equals(trace.requestId)) {
+                    continue;
+                }
+                if (!first) json.append(",");
+                first = false;
+                json.append(trace.toJson(requestId != null));
+            }
+        }
+        json.append("]");
+        return json.toString();
+    }
+}
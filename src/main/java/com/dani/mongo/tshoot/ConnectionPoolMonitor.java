@@ -0,0 +1,291 @@
+package com.dani.mongo.tshoot;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolClearedEvent;
+import com.mongodb.event.ConnectionPoolCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+/**
+ * Connection pool statistics of one client, per server: checkout wait times, checked-out,
+ * idle and waiting counts with their peaks, connection creation rate and checkout failures
+ * by reason.
+ *
+ * Checkouts that wait long while the server answers quickly point at pool exhaustion
+ * rather than server slowness. One monitor is registered on every client the tool creates
+ * and can be looked up by client.
+ */
+public class ConnectionPoolMonitor implements ConnectionPoolListener {
+
+    private static final Map<MongoClient, ConnectionPoolMonitor> monitors = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, ServerPool> pools = new ConcurrentHashMap<>();
+    // Extra histograms receiving every checkout wait, used by stress runs to measure their own period
+    private final Set<LatencyHistogram> waitRecorders = ConcurrentHashMap.newKeySet();
+    private final long createdAt = System.currentTimeMillis();
+
+    private ConnectionPoolMonitor() {
+    }
+
+    /**
+     * Counters of one server's pool. Current values are derived from event counts.
+     */
+    static final class ServerPool {
+        final String address;
+        volatile int maxSize;
+        volatile int minSize;
+        volatile long maxWaitTimeMs;
+        final LatencyHistogram checkoutWait = new LatencyHistogram();
+        final LongAdder checkOutStarted = new LongAdder();
+        final LongAdder checkedOut = new LongAdder();
+        final LongAdder checkedIn = new LongAdder();
+        final LongAdder created = new LongAdder();
+        final LongAdder closed = new LongAdder();
+        final LongAdder cleared = new LongAdder();
+        final Map<ConnectionCheckOutFailedEvent.Reason, LongAdder> failures = new EnumMap<>(ConnectionCheckOutFailedEvent.Reason.class);
+        final AtomicLong inUse = new AtomicLong();
+        final AtomicLong waiting = new AtomicLong();
+        final AtomicLong peakInUse = new AtomicLong();
+        final AtomicLong peakWaiting = new AtomicLong();
+        // Connections created per second over the last minute, indexed by epoch second modulo 60
+        private final long[] createdPerSecond = new long[60];
+        private final long[] createdSecond = new long[60];
+
+        ServerPool(String address) {
+            this.address = address;
+            for (ConnectionCheckOutFailedEvent.Reason reason : ConnectionCheckOutFailedEvent.Reason.values()) {
+                failures.put(reason, new LongAdder());
+            }
+        }
+
+        synchronized void countCreation(long epochSecond) {
+            int slot = (int) (epochSecond % 60);
+            if (createdSecond[slot] != epochSecond) {
+                createdSecond[slot] = epochSecond;
+                createdPerSecond[slot] = 0;
+            }
+            createdPerSecond[slot]++;
+        }
+
+        synchronized long createdLastMinute(long epochSecond) {
+            long total = 0;
+            for (int i = 0; i < 60; i++) {
+                if (epochSecond - createdSecond[i] < 60) {
+                    total += createdPerSecond[i];
+                }
+            }
+            return total;
+        }
+
+        String toJson() {
+            long now = System.currentTimeMillis() / 1000;
+            long open = created.sum() - closed.sum();
+            long lastMinute = createdLastMinute(now);
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"address\": \"").append(JsonUtil.escape(address)).append("\",");
+            json.append("\"maxPoolSize\": ").append(maxSize).append(",");
+            json.append("\"minPoolSize\": ").append(minSize).append(",");
+            json.append("\"maxWaitTimeMs\": ").append(maxWaitTimeMs).append(",");
+            json.append("\"connections\": {");
+            json.append("\"open\": ").append(open).append(",");
+            json.append("\"checkedOut\": ").append(inUse.get()).append(",");
+            json.append("\"available\": ").append(Math.max(0, open - inUse.get())).append(",");
+            json.append("\"waiting\": ").append(waiting.get()).append(",");
+            json.append("\"peakCheckedOut\": ").append(peakInUse.get()).append(",");
+            json.append("\"peakWaiting\": ").append(peakWaiting.get()).append(",");
+            json.append("\"utilization\": ").append(maxSize > 0 ? Math.round(inUse.get() * 1000.0 / maxSize) / 1000.0 : 0.0);
+            json.append("},");
+            json.append("\"checkouts\": {");
+            json.append("\"started\": ").append(checkOutStarted.sum()).append(",");
+            json.append("\"succeeded\": ").append(checkedOut.sum()).append(",");
+            json.append("\"failed\": {");
+            boolean first = true;
+            for (Map.Entry<ConnectionCheckOutFailedEvent.Reason, LongAdder> entry : failures.entrySet()) {
+                if (!first) json.append(",");
+                first = false;
+                json.append("\"").append(entry.getKey().name()).append("\": ").append(entry.getValue().sum());
+            }
+            json.append("}");
+            json.append("},");
+            json.append("\"checkoutWait\": ").append(checkoutWait.toJson()).append(",");
+            json.append("\"connectionsCreated\": ").append(created.sum()).append(",");
+            json.append("\"connectionsClosed\": ").append(closed.sum()).append(",");
+            json.append("\"createdLastMinute\": ").append(lastMinute).append(",");
+            json.append("\"poolCleared\": ").append(cleared.sum());
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Register a new monitor on client settings. The monitor must be linked to the client
+     * with {@link #register} once the client is built.
+     */
+    public static ConnectionPoolMonitor attach(MongoClientSettings.Builder builder) {
+        ConnectionPoolMonitor monitor = new ConnectionPoolMonitor();
+        builder.applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(monitor));
+        return monitor;
+    }
+
+    /**
+     * Link a monitor to the client it was attached to. Entries go away with the client.
+     */
+    public static void register(MongoClient client, ConnectionPoolMonitor monitor) {
+        monitors.put(client, monitor);
+    }
+
+    /**
+     * The monitor of a client, or null for clients not created by MongoClientFactory.
+     */
+    public static ConnectionPoolMonitor forClient(MongoClient client) {
+        return monitors.get(client);
+    }
+
+    private ServerPool pool(ServerId serverId) {
+        return pools.computeIfAbsent(serverId.getAddress().toString(), ServerPool::new);
+    }
+
+    /**
+     * Largest maxPoolSize among the client's pools, or 0 before any pool was created.
+     */
+    public int getMaxPoolSize() {
+        int max = 0;
+        for (ServerPool pool : pools.values()) {
+            max = Math.max(max, pool.maxSize);
+        }
+        return max;
+    }
+
+    /**
+     * Checkouts currently waiting for a connection across all servers.
+     */
+    public long getWaiting() {
+        long waiting = 0;
+        for (ServerPool pool : pools.values()) {
+            waiting += pool.waiting.get();
+        }
+        return waiting;
+    }
+
+    /**
+     * Checkout failures with the given reason across all servers.
+     */
+    public long getFailures(ConnectionCheckOutFailedEvent.Reason reason) {
+        long failures = 0;
+        for (ServerPool pool : pools.values()) {
+            failures += pool.failures.get(reason).sum();
+        }
+        return failures;
+    }
+
+    void addWaitRecorder(LatencyHistogram histogram) {
+        waitRecorders.add(histogram);
+    }
+
+    void removeWaitRecorder(LatencyHistogram histogram) {
+        waitRecorders.remove(histogram);
+    }
+
+    @Override
+    public void connectionPoolCreated(ConnectionPoolCreatedEvent event) {
+        ServerPool pool = pool(event.getServerId());
+        pool.maxSize = event.getSettings().getMaxSize();
+        pool.minSize = event.getSettings().getMinSize();
+        pool.maxWaitTimeMs = event.getSettings().getMaxWaitTime(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void connectionPoolCleared(ConnectionPoolClearedEvent event) {
+        pool(event.getServerId()).cleared.increment();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        ServerPool pool = pool(event.getServerId());
+        pool.checkOutStarted.increment();
+        long waiting = pool.waiting.incrementAndGet();
+        pool.peakWaiting.accumulateAndGet(waiting, Math::max);
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        ServerPool pool = pool(event.getConnectionId().getServerId());
+        pool.checkedOut.increment();
+        pool.waiting.decrementAndGet();
+        long inUse = pool.inUse.incrementAndGet();
+        pool.peakInUse.accumulateAndGet(inUse, Math::max);
+        long nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+        pool.checkoutWait.recordNanos(nanos);
+        for (LatencyHistogram recorder : waitRecorders) {
+            recorder.recordNanos(nanos);
+        }
+        // Checkouts happen on the thread running the operation
+        CommandTrace trace = CommandTrace.current();
+        if (trace != null) {
+            trace.addCheckoutWait(nanos);
+        }
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        ServerPool pool = pool(event.getServerId());
+        pool.failures.get(event.getReason()).increment();
+        pool.waiting.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        ServerPool pool = pool(event.getConnectionId().getServerId());
+        pool.checkedIn.increment();
+        pool.inUse.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        ServerPool pool = pool(event.getConnectionId().getServerId());
+        pool.created.increment();
+        pool.countCreation(System.currentTimeMillis() / 1000);
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        pool(event.getConnectionId().getServerId()).closed.increment();
+    }
+
+    /**
+     * JSON statistics of every server pool of the client.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"monitoredForMs\": ").append(System.currentTimeMillis() - createdAt).append(",");
+        json.append("\"servers\": [");
+        boolean first = true;
+        for (ServerPool pool : pools.values()) {
+            if (!first) json.append(",");
+            first = false;
+            json.append(pool.toJson());
+        }
+        json.append("]");
+        json.append("}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.dani.mongo.tshoot;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * Streams $currentOp deltas to the browser as server-sent events.
+ *
+ * EventSource can only issue GET requests, so the stream uses the session connection
+ * instead of taking a connection string in the URL. The stream ends when the session
+ * connection is closed or replaced.
+ */
+@WebServlet(urlPatterns = "/api/currentop", asyncSupported = true)
+public class CurrentOpStreamServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(CurrentOpStreamServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        logger.info("--- Watch currentOp ---");
+
+        HttpSession session = request.getSession(false);
+        MongoClient client = session == null ? null
+                : (MongoClient) session.getAttribute(MongoTroubleshootServlet.SESSION_MONGO_CLIENT);
+        if (client == null) {
+            writeError(response, HttpServletResponse.SC_CONFLICT, "Open a session connection to watch currentOp");
+            return;
+        }
+
+        CurrentOpWatcher.Options options = new CurrentOpWatcher.Options();
+        try {
+            options.intervalMs = MongoTroubleshootServlet.parseLongParameter(request, "intervalMs", options.intervalMs,
+                    CurrentOpWatcher.MIN_INTERVAL_MS, CurrentOpWatcher.MAX_INTERVAL_MS);
+            options.durationSeconds = MongoTroubleshootServlet.parseLongParameter(request, "durationSeconds", options.durationSeconds, 1,
+                    CurrentOpWatcher.MAX_DURATION_SECONDS);
+            options.minSecsRunning = MongoTroubleshootServlet.parseLongParameter(request, "minSecsRunning", 0, 0, Integer.MAX_VALUE);
+        } catch (IllegalArgumentException e) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        options.ns = request.getParameter("ns");
+        options.op = request.getParameter("op");
+
+        CurrentOpWatcher watcher = CurrentOpWatcher.register(client, options);
+        if (watcher == null) {
+            writeError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many currentOp watchers running");
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // Keep proxies from buffering the stream
+        response.setHeader("X-Accel-Buffering", "no");
+        PrintWriter out = response.getWriter();
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        // Set once the container has completed the request, after which complete() must not be called
+        AtomicBoolean finished = new AtomicBoolean();
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                finished.set(true);
+                watcher.stop();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                finished.set(true);
+                watcher.stop();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                finished.set(true);
+                watcher.stop();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        Thread.ofVirtual().name("currentop-watcher").start(() -> {
+            try {
+                watcher.run((event, data) -> {
+                    synchronized (out) {
+                        if (event == null) {
+                            out.print(": keepalive\n\n");
+                        } else {
+                            out.print("event: " + event + "\ndata: " + data + "\n\n");
+                        }
+                        out.flush();
+                        return !out.checkError();
+                    }
+                }, () -> {
+                    try {
+                        return session.getAttribute(MongoTroubleshootServlet.SESSION_MONGO_CLIENT) == client;
+                    } catch (IllegalStateException e) {
+                        // Session invalidated
+                        return false;
+                    }
+                });
+            } finally {
+                if (finished.compareAndSet(false, true)) {
+                    try {
+                        asyncContext.complete();
+                    } catch (IllegalStateException e) {
+                        // Completed by the container after an error in the meantime
+                        logger.debug("currentOp stream already completed: {}", e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+        logger.warn("currentOp watch rejected: {}", message);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().print("{\"success\": false, \"message\": \"" + JsonUtil.escape(message) + "\"}");
+    }
+}
@@ -0,0 +1,278 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Polls $currentOp at a fixed interval and reports what changed since the previous poll:
+ * operations that appeared, operations whose progress changed and operations that finished.
+ *
+ * Snapshots are kept in a map by opid, so a long-running operation is sent in full once and
+ * afterwards only as the fields that moved. The watcher's own aggregate is tagged with a
+ * comment and filtered out of its results.
+ */
+public class CurrentOpWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(CurrentOpWatcher.class);
+
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    public static final long MIN_INTERVAL_MS = 250;
+    public static final long MAX_INTERVAL_MS = 60_000;
+    public static final long DEFAULT_DURATION_SECONDS = 600;
+    public static final long MAX_DURATION_SECONDS = 3600;
+    private static final int MAX_WATCHERS = EnvironmentConfig.getInt("MONGO_MAX_CURRENTOP_WATCHERS", 8);
+    private static final long HEARTBEAT_MS = 15_000;
+    private static final int MAX_COMMAND_LENGTH = 1000;
+
+    // Fields compared between polls; everything else is only sent when an operation appears
+    private static final String[] CHANGING_FIELDS = {"secs_running", "active", "numYields", "waitingForLock",
+            "planSummary", "msg", "progress", "killPending"};
+    private static final String[] SUMMARY_FIELDS = {"type", "op", "ns", "secs_running", "active", "client", "appName",
+            "desc", "shard", "planSummary", "waitingForLock", "numYields", "msg", "progress", "killPending"};
+
+    private static final Set<CurrentOpWatcher> active = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Poll interval, filters and lifetime of a watcher.
+     */
+    public static final class Options {
+        public long intervalMs = DEFAULT_INTERVAL_MS;
+        public long durationSeconds = DEFAULT_DURATION_SECONDS;
+        /** Namespace prefix, such as "shop" or "shop.orders" */
+        public String ns;
+        public long minSecsRunning;
+        /** op type: query, command, update, insert, remove, getmore */
+        public String op;
+    }
+
+    /**
+     * Receives server-sent events; a null event is a heartbeat without data. Returns false
+     * once the client has gone away.
+     */
+    @FunctionalInterface
+    public interface Emitter {
+        boolean send(String event, String data);
+    }
+
+    private final MongoClient client;
+    private final Options options;
+    private final String comment = "tshoot:currentOpWatch:" + UUID.randomUUID();
+    private Map<String, Document> previous = new HashMap<>();
+    private volatile boolean stopped;
+
+    private CurrentOpWatcher(MongoClient client, Options options) {
+        this.client = client;
+        this.options = options;
+    }
+
+    /**
+     * Create a watcher, or return null when the maximum number of watchers is running.
+     */
+    public static CurrentOpWatcher register(MongoClient client, Options options) {
+        synchronized (active) {
+            if (active.size() >= MAX_WATCHERS) {
+                return null;
+            }
+            CurrentOpWatcher watcher = new CurrentOpWatcher(client, options);
+            active.add(watcher);
+            return watcher;
+        }
+    }
+
+    public static int activeCount() {
+        return active.size();
+    }
+
+    /**
+     * Stop every watcher, for application shutdown.
+     */
+    public static void shutdown() {
+        for (CurrentOpWatcher watcher : active) {
+            watcher.stop();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Poll until stopped, the duration has elapsed, the client disconnects or
+     * connectionValid reports that the connection was closed. Ends with an "end" event.
+     */
+    public void run(Emitter emitter, BooleanSupplier connectionValid) {
+        long deadline = System.currentTimeMillis() + options.durationSeconds * 1000;
+        long lastWrite = System.currentTimeMillis();
+        String reason = "stopped";
+        logger.info("currentOp watcher started (interval {}ms, ns {}, minSecsRunning {}, op {})",
+                options.intervalMs, options.ns, options.minSecsRunning, options.op);
+        try {
+            while (!stopped) {
+                if (System.currentTimeMillis() >= deadline) {
+                    reason = "duration elapsed";
+                    break;
+                }
+                if (!connectionValid.getAsBoolean()) {
+                    reason = "connection closed";
+                    break;
+                }
+
+                long pollStart = System.currentTimeMillis();
+                String delta;
+                try {
+                    delta = poll();
+                } catch (Exception e) {
+                    logger.warn("currentOp watcher poll failed: {}", e.getMessage());
+                    emitter.send("pollError", "{\"message\": \"" + JsonUtil.escape(String.valueOf(e.getMessage())) + "\"}");
+                    reason = "error";
+                    break;
+                }
+
+                if (delta != null || pollStart - lastWrite >= HEARTBEAT_MS) {
+                    // Heartbeats find clients that went away while nothing changed
+                    if (!emitter.send(delta != null ? "delta" : null, delta)) {
+                        reason = "client disconnected";
+                        break;
+                    }
+                    lastWrite = pollStart;
+                }
+
+                long sleep = options.intervalMs - (System.currentTimeMillis() - pollStart);
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reason = "interrupted";
+        } finally {
+            active.remove(this);
+            emitter.send("end", "{\"reason\": \"" + reason + "\"}");
+            logger.info("currentOp watcher ended: {}", reason);
+        }
+    }
+
+    /**
+     * Run $currentOp once and diff it against the previous snapshot. Returns the delta as
+     * JSON, or null when nothing changed.
+     */
+    String poll() {
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$currentOp", new Document("allUsers", true).append("idleConnections", false)));
+        pipeline.add(new Document("$match", buildFilter()));
+
+        Map<String, Document> current = new HashMap<>();
+        List<Document> added = new ArrayList<>();
+        List<Document> changed = new ArrayList<>();
+        try (MongoCursor<Document> cursor = client.getDatabase("admin").aggregate(pipeline)
+                .comment(comment).maxTime(Math.max(MIN_INTERVAL_MS, options.intervalMs * 5), TimeUnit.MILLISECONDS)
+                .cursor()) {
+            while (cursor.hasNext()) {
+                Document op = cursor.next();
+                Object opid = op.get("opid");
+                if (opid == null) {
+                    continue;
+                }
+                String key = String.valueOf(opid);
+                current.put(key, op);
+
+                Document before = previous.get(key);
+                if (before == null) {
+                    added.add(summarize(op));
+                } else {
+                    Document difference = null;
+                    for (String field : CHANGING_FIELDS) {
+                        if (!Objects.equals(before.get(field), op.get(field))) {
+                            if (difference == null) {
+                                difference = new Document("opid", opid);
+                            }
+                            difference.append(field, op.get(field));
+                        }
+                    }
+                    if (difference != null) {
+                        changed.add(difference);
+                    }
+                }
+            }
+        }
+
+        List<Document> finished = new ArrayList<>();
+        for (Map.Entry<String, Document> entry : previous.entrySet()) {
+            if (!current.containsKey(entry.getKey())) {
+                Document op = entry.getValue();
+                finished.add(new Document("opid", op.get("opid")).append("ns", op.get("ns")).append("op", op.get("op"))
+                        .append("secs_running", op.get("secs_running")));
+            }
+        }
+        previous = current;
+
+        if (added.isEmpty() && changed.isEmpty() && finished.isEmpty()) {
+            return null;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"ts\": ").append(System.currentTimeMillis()).append(",");
+        json.append("\"active\": ").append(current.size()).append(",");
+        appendDocuments(json, "new", added).append(",");
+        appendDocuments(json, "changed", changed).append(",");
+        appendDocuments(json, "finished", finished);
+        json.append("}");
+        return json.toString();
+    }
+
+    private Document buildFilter() {
+        Document filter = new Document("command.comment", new Document("$ne", comment));
+        if (options.ns != null && !options.ns.trim().isEmpty()) {
+            // A database name matches its collections but not other databases starting with it
+            filter.append("ns", new Document("$regex", "^" + Pattern.quote(options.ns.trim()) + "(\\.|$)"));
+        }
+        if (options.minSecsRunning > 0) {
+            filter.append("secs_running", new Document("$gte", options.minSecsRunning));
+        }
+        if (options.op != null && !options.op.trim().isEmpty()) {
+            filter.append("op", options.op.trim());
+        }
+        return filter;
+    }
+
+    private static Document summarize(Document op) {
+        Document summary = new Document("opid", op.get("opid"));
+        for (String field : SUMMARY_FIELDS) {
+            if (op.containsKey(field)) {
+                summary.append(field, op.get(field));
+            }
+        }
+        Object command = op.get("command");
+        if (command instanceof Document) {
+            String json = ((Document) command).toJson();
+            summary.append("command", json.length() > MAX_COMMAND_LENGTH ? json.substring(0, MAX_COMMAND_LENGTH) + "..." : json);
+        }
+        return summary;
+    }
+
+    private static StringBuilder appendDocuments(StringBuilder json, String name, List<Document> documents) {
+        json.append("\"").append(name).append("\": [");
+        for (int i = 0; i < documents.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(documents.get(i).toJson());
+        }
+        json.append("]");
+        return json;
+    }
+}
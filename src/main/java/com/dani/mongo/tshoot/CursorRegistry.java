@@ -0,0 +1,253 @@
+package com.dani.mongo.tshoot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Encoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoCursor;
+
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+import jakarta.servlet.http.HttpSessionBindingListener;
+
+/**
+ * Per-session registry of open query cursors, so results can be paged with getMore
+ * instead of re-running the query with skip.
+ *
+ * Cursors are identified by an opaque token, closed after being idle for longer than the
+ * configured timeout, and all closed when the session ends.
+ */
+public class CursorRegistry implements HttpSessionBindingListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(CursorRegistry.class);
+    private static final String SESSION_CURSOR_REGISTRY = "cursorRegistry";
+
+    private static final int MAX_CURSORS_PER_SESSION = EnvironmentConfig.getInt("MONGO_MAX_CURSORS_PER_SESSION", 10);
+    private static final long IDLE_TIMEOUT_MS = EnvironmentConfig.getInt("MONGO_CURSOR_IDLE_SECONDS", 600) * 1000L;
+    private static final long SWEEP_INTERVAL_MS = 30_000L;
+
+    private static final Set<CursorRegistry> registries = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mongo-cursor-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        sweeper.scheduleWithFixedDelay(CursorRegistry::closeIdleCursors,
+                SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Insertion-ordered so the oldest cursor is closed first when the session is at its limit
+    private final Map<String, PagedCursor> cursors = new LinkedHashMap<>();
+    // Set when the session ends; cursors registered afterwards are closed right away
+    private boolean unbound;
+
+    private CursorRegistry() {
+    }
+
+    /**
+     * Get the registry for a session, creating and binding it on first use.
+     */
+    public static CursorRegistry forSession(HttpSession session) {
+        synchronized (session) {
+            CursorRegistry registry = (CursorRegistry) session.getAttribute(SESSION_CURSOR_REGISTRY);
+            if (registry == null) {
+                registry = new CursorRegistry();
+                session.setAttribute(SESSION_CURSOR_REGISTRY, registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Get the registry for a session if one exists.
+     */
+    public static CursorRegistry existing(HttpSession session) {
+        return session == null ? null : (CursorRegistry) session.getAttribute(SESSION_CURSOR_REGISTRY);
+    }
+
+    /**
+     * An open cursor and everything needed to serve the next page from it.
+     */
+    public static final class PagedCursor {
+        public final String token;
+        public final MongoCursor<RawBsonDocument> cursor;
+        public final Encoder<RawBsonDocument> encoder;
+        public final String namespace;
+        private final Runnable onClose;
+        // Read by the idle sweeper and by requests without the cursor's lock
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile long returned;
+        private boolean closed;
+
+        PagedCursor(String token, MongoCursor<RawBsonDocument> cursor, Encoder<RawBsonDocument> encoder, String namespace,
+                Runnable onClose) {
+            this.token = token;
+            this.cursor = cursor;
+            this.encoder = encoder;
+            this.namespace = namespace;
+            this.onClose = onClose;
+        }
+
+        /**
+         * True if the server cursor is still open or documents are still buffered.
+         */
+        public boolean hasMore() {
+            return !closed && (cursor.available() > 0 || cursor.getServerCursor() != null);
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        public long getReturned() {
+            return returned;
+        }
+
+        public synchronized void addReturned(int count) {
+            returned += count;
+            lastAccess = System.currentTimeMillis();
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                cursor.close();
+            } catch (Exception e) {
+                logger.warn("Error closing cursor {}: {}", token, e.getMessage());
+            }
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+
+    /**
+     * Register an open cursor. onClose runs once the cursor is closed, for example to
+     * release the client it was opened on.
+     */
+    public synchronized PagedCursor register(MongoCursor<RawBsonDocument> cursor, Encoder<RawBsonDocument> encoder,
+            String namespace, Runnable onClose) {
+        while (cursors.size() >= MAX_CURSORS_PER_SESSION) {
+            Iterator<PagedCursor> oldest = cursors.values().iterator();
+            PagedCursor evicted = oldest.next();
+            oldest.remove();
+            logger.info("Session cursor limit reached, closing oldest cursor {}", evicted.token);
+            evicted.close();
+        }
+        PagedCursor paged = new PagedCursor(UUID.randomUUID().toString(), cursor, encoder, namespace, onClose);
+        if (unbound) {
+            logger.info("Session already ended, closing cursor on {}", namespace);
+            paged.close();
+            return paged;
+        }
+        cursors.put(paged.token, paged);
+        registries.add(this);
+        logger.info("Registered cursor {} on {} ({} open in session)", paged.token, namespace, cursors.size());
+        return paged;
+    }
+
+    /**
+     * Look up an open cursor by token.
+     */
+    public synchronized PagedCursor get(String token) {
+        return token == null ? null : cursors.get(token);
+    }
+
+    /**
+     * Close and forget a cursor.
+     */
+    public void close(String token) {
+        PagedCursor paged;
+        synchronized (this) {
+            paged = cursors.remove(token);
+            // Only registries with open cursors are tracked, so idle sessions are not retained
+            if (cursors.isEmpty()) {
+                registries.remove(this);
+            }
+        }
+        if (paged != null) {
+            paged.close();
+            logger.info("Closed cursor {}", token);
+        }
+    }
+
+    /**
+     * Close every cursor in this registry.
+     */
+    public void closeAll() {
+        PagedCursor[] open;
+        synchronized (this) {
+            open = cursors.values().toArray(new PagedCursor[0]);
+            cursors.clear();
+            registries.remove(this);
+        }
+        for (PagedCursor paged : open) {
+            paged.close();
+        }
+    }
+
+    /**
+     * Number of cursors open across all sessions.
+     */
+    public static int openCursorCount() {
+        int count = 0;
+        for (CursorRegistry registry : registries) {
+            synchronized (registry) {
+                count += registry.cursors.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close every open cursor in every session. Called when the application is stopped.
+     */
+    public static void shutdown() {
+        sweeper.shutdownNow();
+        for (CursorRegistry registry : registries) {
+            registry.closeAll();
+        }
+    }
+
+    @Override
+    public void valueUnbound(HttpSessionBindingEvent event) {
+        logger.info("Session ended, closing open cursors");
+        synchronized (this) {
+            unbound = true;
+        }
+        closeAll();
+    }
+
+    private static void closeIdleCursors() {
+        long now = System.currentTimeMillis();
+        for (CursorRegistry registry : registries) {
+            PagedCursor[] open;
+            synchronized (registry) {
+                open = registry.cursors.values().toArray(new PagedCursor[0]);
+            }
+            for (PagedCursor paged : open) {
+                if (now - paged.lastAccess > IDLE_TIMEOUT_MS) {
+                    logger.info("Closing idle cursor {} (idle {}ms)", paged.token, now - paged.lastAccess);
+                    registry.close(paged.token);
+                }
+            }
+        }
+    }
+}
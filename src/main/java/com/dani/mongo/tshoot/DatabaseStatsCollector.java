@@ -0,0 +1,238 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Collects dbStats for every database and storage statistics for every collection, running
+ * the commands in parallel with a bounded number in flight, and sums them into a size,
+ * index and document summary.
+ */
+public class DatabaseStatsCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseStatsCollector.class);
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int MAX_CONCURRENCY = 64;
+    private static final int MAX_ERRORS_PER_DATABASE = 10;
+
+    private DatabaseStatsCollector() {
+    }
+
+    /**
+     * Statistics gathered for one collection.
+     */
+    static final class CollectionStats {
+        final String name;
+        long count;
+        long size;
+        long storageSize;
+        long totalIndexSize;
+        long indexes;
+
+        CollectionStats(String name) {
+            this.name = name;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"name\": \"").append(JsonUtil.escape(name)).append("\",");
+            json.append("\"count\": ").append(count).append(",");
+            json.append("\"size\": ").append(size).append(",");
+            json.append("\"storageSize\": ").append(storageSize).append(",");
+            json.append("\"totalIndexSize\": ").append(totalIndexSize).append(",");
+            json.append("\"indexes\": ").append(indexes);
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Statistics gathered for one database, with its collections.
+     */
+    static final class DatabaseStats {
+        final String name;
+        Document dbStats;
+        List<String> collectionNames = Collections.emptyList();
+        final List<CollectionStats> collections = Collections.synchronizedList(new ArrayList<>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+        DatabaseStats(String name) {
+            this.name = name;
+        }
+
+        void recordError(String what, Exception e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            logger.warn("Failed to collect {} for {}: {}", what, name, message);
+            if (errors.size() < MAX_ERRORS_PER_DATABASE) {
+                errors.add(what + ": " + message);
+            }
+        }
+
+        long getLong(String field) {
+            return dbStats == null ? 0 : JsonUtil.toLong(dbStats.get(field));
+        }
+
+        String toJson() {
+            List<CollectionStats> sorted = new ArrayList<>(collections);
+            sorted.sort(Comparator.comparingLong((CollectionStats stats) -> stats.storageSize + stats.totalIndexSize)
+                    .reversed());
+
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"name\": \"").append(JsonUtil.escape(name)).append("\",");
+            json.append("\"collections\": ").append(getLong("collections")).append(",");
+            json.append("\"objects\": ").append(getLong("objects")).append(",");
+            json.append("\"dataSize\": ").append(getLong("dataSize")).append(",");
+            json.append("\"storageSize\": ").append(getLong("storageSize")).append(",");
+            json.append("\"indexes\": ").append(getLong("indexes")).append(",");
+            json.append("\"indexSize\": ").append(getLong("indexSize")).append(",");
+            json.append("\"collectionStats\": [");
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i > 0) json.append(",");
+                json.append(sorted.get(i).toJson());
+            }
+            json.append("],");
+            json.append("\"errors\": [");
+            synchronized (errors) {
+                for (int i = 0; i < errors.size(); i++) {
+                    if (i > 0) json.append(",");
+                    json.append("\"").append(JsonUtil.escape(errors.get(i))).append("\"");
+                }
+            }
+            json.append("]");
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Collect statistics for every database on the cluster. At most concurrency commands
+     * are sent at the same time.
+     */
+    public static String collect(MongoClient client, OperationContext context, int concurrency) throws Exception {
+        long start = System.currentTimeMillis();
+
+        List<DatabaseStats> databases = new ArrayList<>();
+        for (Document database : context.apply(client.listDatabases().nameOnly(true))) {
+            databases.add(new DatabaseStats(database.getString("name")));
+        }
+        logger.info("Collecting stats for {} databases with concurrency {}", databases.size(), concurrency);
+
+        try (BoundedFanOut fanOut = new BoundedFanOut(concurrency)) {
+            // First pass: dbStats and the collection list of every database
+            for (DatabaseStats stats : databases) {
+                fanOut.fork(() -> {
+                    MongoDatabase database = client.getDatabase(stats.name);
+                    fanOut.withPermit(() -> {
+                        try {
+                            stats.dbStats = database.runCommand(context.command(new Document("dbStats", 1)));
+                        } catch (Exception e) {
+                            stats.recordError("dbStats", e);
+                        }
+                    });
+                    fanOut.withPermit(() -> {
+                        try {
+                            List<String> names = new ArrayList<>();
+                            // Views have no storage of their own and would fail $collStats
+                            context.apply(database.listCollectionNames())
+                                    .filter(new Document("type", "collection"))
+                                    .into(names);
+                            stats.collectionNames = names;
+                        } catch (Exception e) {
+                            stats.recordError("listCollections", e);
+                        }
+                    });
+                });
+            }
+            fanOut.join();
+
+            // Second pass: storage statistics of every collection
+            for (DatabaseStats stats : databases) {
+                MongoDatabase database = client.getDatabase(stats.name);
+                for (String collectionName : stats.collectionNames) {
+                    fanOut.fork(() -> fanOut.withPermit(() -> {
+                        try {
+                            stats.collections.add(collectionStats(database, collectionName, context));
+                        } catch (Exception e) {
+                            stats.recordError("collStats " + collectionName, e);
+                        }
+                    }));
+                }
+            }
+            fanOut.join();
+        }
+
+        databases.sort(Comparator.comparingLong((DatabaseStats stats) ->
+                stats.getLong("storageSize") + stats.getLong("indexSize")).reversed());
+
+        long collections = 0;
+        long objects = 0;
+        long dataSize = 0;
+        long storageSize = 0;
+        long indexes = 0;
+        long indexSize = 0;
+        for (DatabaseStats stats : databases) {
+            collections += stats.getLong("collections");
+            objects += stats.getLong("objects");
+            dataSize += stats.getLong("dataSize");
+            storageSize += stats.getLong("storageSize");
+            indexes += stats.getLong("indexes");
+            indexSize += stats.getLong("indexSize");
+        }
+        long duration = System.currentTimeMillis() - start;
+        logger.info("Collected stats for {} databases in {}ms", databases.size(), duration);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"totals\": {");
+        json.append("\"databases\": ").append(databases.size()).append(",");
+        json.append("\"collections\": ").append(collections).append(",");
+        json.append("\"objects\": ").append(objects).append(",");
+        json.append("\"dataSize\": ").append(dataSize).append(",");
+        json.append("\"storageSize\": ").append(storageSize).append(",");
+        json.append("\"indexes\": ").append(indexes).append(",");
+        json.append("\"indexSize\": ").append(indexSize);
+        json.append("},");
+        json.append("\"concurrency\": ").append(concurrency).append(",");
+        json.append("\"collectionMs\": ").append(duration).append(",");
+        json.append("\"databases\": [");
+        for (int i = 0; i < databases.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(databases.get(i).toJson());
+        }
+        json.append("]");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static CollectionStats collectionStats(MongoDatabase database, String collectionName,
+            OperationContext context) {
+        CollectionStats stats = new CollectionStats(collectionName);
+        List<Document> pipeline = Collections.singletonList(
+                new Document("$collStats", new Document("storageStats", new Document())));
+        // Sharded collections return one document per shard
+        for (Document shard : context.apply(database.getCollection(collectionName).aggregate(pipeline))) {
+            Document storage = shard.get("storageStats", Document.class);
+            if (storage == null) {
+                continue;
+            }
+            stats.count += JsonUtil.toLong(storage.get("count"));
+            stats.size += JsonUtil.toLong(storage.get("size"));
+            stats.storageSize += JsonUtil.toLong(storage.get("storageSize"));
+            stats.totalIndexSize += JsonUtil.toLong(storage.get("totalIndexSize"));
+            stats.indexes = Math.max(stats.indexes, JsonUtil.toLong(storage.get("nindexes")));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,31 @@
+package com.dani.mongo.tshoot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads tuning options from environment variables, falling back to defaults.
+ */
+public class EnvironmentConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(EnvironmentConfig.class);
+
+    private EnvironmentConfig() {
+    }
+
+    /**
+     * Read an integer environment variable, using the default when it is missing or invalid.
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value for {}: {}, using default {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bson.BsonRegularExpression;
+import org.bson.Document;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Turns executionStats explain output for a find or aggregate into a digest: the winning
+ * plan, per-stage work and timing, collection scans, blocking sorts, rejected plans and
+ * the ratio of documents examined to documents returned, plus candidate indexes derived
+ * from the filter, sort and projection.
+ *
+ * Handles classic and slot-based (SBE) plans, $cursor pipelines and sharded output, where
+ * every shard's plan is reported with its shard name.
+ */
+public class ExplainAnalyzer {
+
+    // Examining more documents than this per document returned is reported as inefficient
+    private static final double EXAMINED_RATIO_WARNING = 10.0;
+    private static final long EXAMINED_MINIMUM_WARNING = 1000;
+
+    private ExplainAnalyzer() {
+    }
+
+    /**
+     * Whether the request asks for explain output (explain=true or explain=full).
+     */
+    public static boolean isRequested(HttpServletRequest request) {
+        String value = request.getParameter("explain");
+        return "true".equalsIgnoreCase(value) || "full".equalsIgnoreCase(value);
+    }
+
+    /**
+     * Whether the raw explain document should be returned along with the digest.
+     */
+    public static boolean isFullRequested(HttpServletRequest request) {
+        return "full".equalsIgnoreCase(request.getParameter("explain"));
+    }
+
+    /**
+     * Digest of a find explain, with index suggestions for the filter, sort and projection.
+     */
+    public static String analyzeFind(String collection, Document explain, Document filter, Document sort,
+            Document projection) {
+        return analyze("find", collection, explain, filter, sort, projection);
+    }
+
+    /**
+     * Digest of an aggregate explain. Leading $match stages and the $sort that follows them
+     * are what an index can serve, so suggestions are derived from those.
+     */
+    public static String analyzeAggregate(String collection, Document explain, List<Document> pipeline) {
+        List<Object> matches = new ArrayList<>();
+        Document sort = null;
+        for (Document stage : pipeline) {
+            if (stage.get("$match") instanceof Document) {
+                matches.add(stage.get("$match"));
+            } else {
+                if (stage.get("$sort") instanceof Document) {
+                    sort = (Document) stage.get("$sort");
+                }
+                break;
+            }
+        }
+        Document filter = matches.size() == 1 ? (Document) matches.get(0) : new Document("$and", matches);
+        return analyze("aggregate", collection, explain, matches.isEmpty() ? new Document() : filter, sort, null);
+    }
+
+    /**
+     * Plan details gathered from every queryPlanner/executionStats pair in the output.
+     */
+    private static final class Digest {
+        final List<String> winningPlan = new ArrayList<>();
+        final List<String> executionStages = new ArrayList<>();
+        final List<String> pipelineStages = new ArrayList<>();
+        final List<String> rejectedPlans = new ArrayList<>();
+        final List<Document> indexesUsed = new ArrayList<>();
+        boolean collectionScan;
+        boolean blockingSort;
+        boolean sortUsedDisk;
+        boolean fetch;
+        long nReturned;
+        long keysExamined;
+        long docsExamined;
+        long executionTimeMillis;
+    }
+
+    private static String analyze(String operation, String collection, Document explain, Document filter,
+            Document sort, Document projection) {
+        Digest digest = new Digest();
+        collectSources(explain, null, digest);
+
+        List<String> warnings = new ArrayList<>();
+        if (digest.collectionScan) {
+            warnings.add("Collection scan: " + digest.docsExamined + " documents examined to return "
+                    + digest.nReturned);
+        }
+        if (digest.blockingSort) {
+            warnings.add("Blocking in-memory SORT" + (digest.sortUsedDisk ? " that spilled to disk" : "")
+                    + ": no index provides the requested order");
+        }
+        double examinedRatio = digest.nReturned == 0 ? digest.docsExamined : (double) digest.docsExamined / digest.nReturned;
+        if (digest.docsExamined >= EXAMINED_MINIMUM_WARNING && examinedRatio >= EXAMINED_RATIO_WARNING) {
+            warnings.add(String.format("%.1f documents examined per document returned", examinedRatio));
+        }
+        if (digest.keysExamined > 0 && digest.keysExamined >= EXAMINED_MINIMUM_WARNING
+                && digest.keysExamined >= EXAMINED_RATIO_WARNING * Math.max(1, digest.nReturned)) {
+            warnings.add(digest.keysExamined + " index keys examined to return " + digest.nReturned
+                    + " documents: the index is not selective for this filter");
+        }
+
+        List<String> notes = new ArrayList<>();
+        List<Document> suggestions = suggestIndexes(filter, sort, projection, digest, notes);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"operation\": \"").append(operation).append("\",");
+        json.append("\"collectionScan\": ").append(digest.collectionScan).append(",");
+        json.append("\"inMemorySort\": ").append(digest.blockingSort).append(",");
+        json.append("\"nReturned\": ").append(digest.nReturned).append(",");
+        json.append("\"totalKeysExamined\": ").append(digest.keysExamined).append(",");
+        json.append("\"totalDocsExamined\": ").append(digest.docsExamined).append(",");
+        json.append("\"docsExaminedPerReturned\": ").append(Math.round(examinedRatio * 100) / 100.0).append(",");
+        json.append("\"executionTimeMillis\": ").append(digest.executionTimeMillis).append(",");
+        appendRawArray(json, "winningPlan", digest.winningPlan).append(",");
+        appendRawArray(json, "executionStages", digest.executionStages).append(",");
+        if (!digest.pipelineStages.isEmpty()) {
+            appendRawArray(json, "pipelineStages", digest.pipelineStages).append(",");
+        }
+        appendRawArray(json, "rejectedPlans", digest.rejectedPlans).append(",");
+        appendStringArray(json, "warnings", warnings).append(",");
+        json.append("\"indexSuggestions\": [");
+        for (int i = 0; i < suggestions.size(); i++) {
+            Document suggestion = suggestions.get(i);
+            Document key = (Document) suggestion.get("key");
+            if (i > 0) json.append(",");
+            json.append("{");
+            json.append("\"key\": ").append(key.toJson()).append(",");
+            json.append("\"command\": \"").append(JsonUtil.escape("db.getCollection(\"" + collection + "\").createIndex("
+                    + key.toJson() + ")")).append("\",");
+            json.append("\"reason\": \"").append(JsonUtil.escape(suggestion.getString("reason"))).append("\"");
+            json.append("}");
+        }
+        json.append("],");
+        appendStringArray(json, "notes", notes);
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * Find the queryPlanner/executionStats pairs in find output, $cursor stages and
+     * per-shard aggregate output.
+     */
+    private static void collectSources(Document explain, String shard, Digest digest) {
+        if (explain.get("queryPlanner") instanceof Document) {
+            addSource((Document) explain.get("queryPlanner"), explain.get("executionStats", Document.class), shard, digest);
+        }
+        Object stages = explain.get("stages");
+        if (stages instanceof List) {
+            for (Object element : (List<?>) stages) {
+                if (!(element instanceof Document)) {
+                    continue;
+                }
+                Document stage = (Document) element;
+                Object cursor = stage.get("$cursor");
+                if (cursor instanceof Document) {
+                    collectSources((Document) cursor, shard, digest);
+                    continue;
+                }
+                String name = stage.keySet().stream().filter(k -> k.startsWith("$")).findFirst().orElse("?");
+                StringBuilder json = new StringBuilder("{");
+                appendShard(json, shard);
+                json.append("\"stage\": \"").append(JsonUtil.escape(name)).append("\"");
+                appendNumber(json, stage, "nReturned");
+                appendNumber(json, stage, "executionTimeMillisEstimate");
+                json.append("}");
+                digest.pipelineStages.add(json.toString());
+                if ("$sort".equals(name)) {
+                    digest.blockingSort = true;
+                    digest.sortUsedDisk |= Boolean.TRUE.equals(stage.get("usedDisk"));
+                }
+            }
+        }
+        if (explain.get("shards") instanceof Document) {
+            for (Map.Entry<String, Object> entry : ((Document) explain.get("shards")).entrySet()) {
+                if (entry.getValue() instanceof Document) {
+                    collectSources((Document) entry.getValue(), entry.getKey(), digest);
+                }
+            }
+        }
+    }
+
+    private static void addSource(Document queryPlanner, Document executionStats, String shard, Digest digest) {
+        if (queryPlanner.get("winningPlan") instanceof Document) {
+            walkPlan(planRoot((Document) queryPlanner.get("winningPlan")), shard, 0, digest.winningPlan, digest, true);
+        }
+        addRejectedPlans(queryPlanner, shard, digest);
+        if (executionStats != null) {
+            digest.nReturned += JsonUtil.getLong(executionStats, "nReturned");
+            digest.keysExamined += JsonUtil.getLong(executionStats, "totalKeysExamined");
+            digest.docsExamined += JsonUtil.getLong(executionStats, "totalDocsExamined");
+            digest.executionTimeMillis = Math.max(digest.executionTimeMillis, JsonUtil.getLong(executionStats, "executionTimeMillis"));
+            if (executionStats.get("executionStages") instanceof Document) {
+                walkPlan((Document) executionStats.get("executionStages"), shard, 0, digest.executionStages, digest, false);
+            }
+        }
+    }
+
+    private static void addRejectedPlans(Document planner, String shard, Digest digest) {
+        Object rejected = planner.get("rejectedPlans");
+        if (rejected instanceof List) {
+            for (Object plan : (List<?>) rejected) {
+                if (plan instanceof Document) {
+                    List<String> stages = new ArrayList<>();
+                    summarizePlan(planRoot((Document) plan), stages);
+                    StringBuilder json = new StringBuilder("{");
+                    appendShard(json, shard);
+                    json.append("\"stages\": \"").append(JsonUtil.escape(String.join(" <- ", stages))).append("\"}");
+                    digest.rejectedPlans.add(json.toString());
+                }
+            }
+        }
+        // Sharded find: every shard has its own planner output
+        Object winningPlan = planner.get("winningPlan");
+        if (winningPlan instanceof Document && ((Document) winningPlan).get("shards") instanceof List) {
+            for (Object element : (List<?>) ((Document) winningPlan).get("shards")) {
+                if (element instanceof Document) {
+                    addRejectedPlans((Document) element, ((Document) element).getString("shardName"), digest);
+                }
+            }
+        }
+    }
+
+    /**
+     * SBE plans wrap the query solution tree in queryPlan.
+     */
+    private static Document planRoot(Document plan) {
+        return plan.get("queryPlan") instanceof Document ? (Document) plan.get("queryPlan") : plan;
+    }
+
+    /**
+     * Add every stage of a plan tree, parent before children, as one JSON object each.
+     * Winning-plan stages also set the collection scan, sort and fetch flags.
+     */
+    private static void walkPlan(Document stage, String shard, int depth, List<String> out, Digest digest,
+            boolean winning) {
+        String name = stage.getString("stage");
+        if (name != null) {
+            StringBuilder json = new StringBuilder("{");
+            appendShard(json, shard);
+            json.append("\"depth\": ").append(depth).append(",");
+            json.append("\"stage\": \"").append(JsonUtil.escape(name)).append("\"");
+            if (stage.get("indexName") != null) {
+                json.append(",\"indexName\": \"").append(JsonUtil.escape(String.valueOf(stage.get("indexName")))).append("\"");
+            }
+            if (stage.get("keyPattern") instanceof Document) {
+                json.append(",\"keyPattern\": ").append(((Document) stage.get("keyPattern")).toJson());
+            }
+            if (winning) {
+                if (stage.get("filter") instanceof Document) {
+                    json.append(",\"filter\": ").append(((Document) stage.get("filter")).toJson());
+                }
+            } else {
+                appendNumber(json, stage, "nReturned");
+                appendNumber(json, stage, "executionTimeMillisEstimate");
+                appendNumber(json, stage, "works");
+                appendNumber(json, stage, "keysExamined");
+                appendNumber(json, stage, "docsExamined");
+                appendNumber(json, stage, "memUsage");
+                if (stage.get("usedDisk") != null) {
+                    json.append(",\"usedDisk\": ").append(Boolean.TRUE.equals(stage.get("usedDisk")));
+                }
+            }
+            json.append("}");
+            out.add(json.toString());
+
+            String upper = name.toUpperCase();
+            if (upper.equals("COLLSCAN")) {
+                digest.collectionScan = true;
+            } else if (winning && upper.equals("SORT")) {
+                digest.blockingSort = true;
+            } else if (winning && upper.equals("FETCH")) {
+                digest.fetch = true;
+            } else if (winning && upper.equals("IXSCAN") && stage.get("keyPattern") instanceof Document) {
+                digest.indexesUsed.add((Document) stage.get("keyPattern"));
+            }
+            if (upper.equals("SORT") && Boolean.TRUE.equals(stage.get("usedDisk"))) {
+                digest.sortUsedDisk = true;
+            }
+        }
+
+        for (Document child : children(stage)) {
+            walkPlan(child, shard, depth + 1, out, digest, winning);
+        }
+        Object shards = stage.get("shards");
+        if (shards instanceof List) {
+            for (Object element : (List<?>) shards) {
+                if (!(element instanceof Document)) {
+                    continue;
+                }
+                Document shardPlan = (Document) element;
+                Object root = winning ? shardPlan.get("winningPlan") : shardPlan.get("executionStages");
+                if (root instanceof Document) {
+                    walkPlan(planRoot((Document) root), shardPlan.getString("shardName"), depth + 1, out, digest, winning);
+                }
+            }
+        }
+    }
+
+    private static void summarizePlan(Document stage, List<String> stages) {
+        String name = stage.getString("stage");
+        if (name != null) {
+            if (stage.get("keyPattern") instanceof Document) {
+                stages.add(name + " " + ((Document) stage.get("keyPattern")).toJson());
+            } else {
+                stages.add(name);
+            }
+        }
+        for (Document child : children(stage)) {
+            summarizePlan(child, stages);
+        }
+    }
+
+    private static List<Document> children(Document stage) {
+        // Classic plans use inputStage(s); SBE execution trees also use outer/inner and then/else
+        List<Document> children = new ArrayList<>();
+        for (String field : new String[] {"inputStage", "inputStages", "outerStage", "innerStage", "thenStage", "elseStage"}) {
+            Object value = stage.get(field);
+            if (value instanceof Document) {
+                children.add((Document) value);
+            } else if (value instanceof List) {
+                for (Object child : (List<?>) value) {
+                    if (child instanceof Document) {
+                        children.add((Document) child);
+                    }
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Candidate indexes following the equality, sort, range order. A candidate is only
+     * offered when the plan shows a problem an index would fix and no index with the
+     * same leading fields was used.
+     */
+    private static List<Document> suggestIndexes(Document filter, Document sort, Document projection, Digest digest,
+            List<String> notes) {
+        Set<String> equality = new LinkedHashSet<>();
+        Set<String> range = new LinkedHashSet<>();
+        classifyFilter(filter, equality, range, notes);
+
+        Document key = new Document();
+        for (String field : equality) {
+            key.append(field, 1);
+        }
+        if (sort != null) {
+            for (Map.Entry<String, Object> entry : sort.entrySet()) {
+                if (!equality.contains(entry.getKey()) && entry.getValue() instanceof Number) {
+                    key.append(entry.getKey(), ((Number) entry.getValue()).intValue() < 0 ? -1 : 1);
+                } else if (!(entry.getValue() instanceof Number)) {
+                    notes.add("Sort on " + entry.getKey() + " is not a plain ascending/descending sort");
+                }
+            }
+        }
+        for (String field : range) {
+            if (!key.containsKey(field)) {
+                key.append(field, 1);
+            }
+        }
+
+        List<Document> suggestions = new ArrayList<>();
+        if (key.isEmpty()) {
+            if (digest.collectionScan) {
+                notes.add("No filter or sort fields to index: the whole collection is read");
+            }
+            return suggestions;
+        }
+
+        boolean inefficient = digest.collectionScan || digest.blockingSort
+                || (digest.docsExamined >= EXAMINED_MINIMUM_WARNING
+                        && digest.docsExamined >= EXAMINED_RATIO_WARNING * Math.max(1, digest.nReturned));
+        for (Document used : digest.indexesUsed) {
+            if (hasLeadingFields(used, key)) {
+                notes.add("The winning plan already uses index " + used.toJson() + " for these fields");
+                return suggestions;
+            }
+        }
+        if (!inefficient) {
+            notes.add("The winning plan does not show a collection scan, blocking sort or excessive examination");
+            return suggestions;
+        }
+
+        String reason = "Equality " + equality + ", sort " + (sort == null ? "[]" : sort.keySet()) + ", range " + range
+                + " (equality fields first, then sort, then range)";
+        suggestions.add(new Document("key", key).append("reason", reason));
+
+        // An inclusion projection without _id can be answered from the index alone
+        Document covering = coveringKey(key, projection);
+        if (covering != null) {
+            suggestions.add(new Document("key", covering)
+                    .append("reason", "Adds the projected fields so the query is covered and skips FETCH"));
+        }
+        return suggestions;
+    }
+
+    private static void classifyFilter(Document filter, Set<String> equality, Set<String> range, List<String> notes) {
+        if (filter == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            String field = entry.getKey();
+            Object value = entry.getValue();
+            if ("$and".equals(field) && value instanceof List) {
+                for (Object clause : (List<?>) value) {
+                    if (clause instanceof Document) {
+                        classifyFilter((Document) clause, equality, range, notes);
+                    }
+                }
+            } else if (field.startsWith("$")) {
+                notes.add(field + " clauses are not used for index suggestions"
+                        + ("$or".equals(field) ? "; each $or branch needs its own index" : ""));
+            } else if (value instanceof Pattern || value instanceof BsonRegularExpression) {
+                range.add(field);
+            } else if (value instanceof Document && isOperatorDocument((Document) value)) {
+                Document operators = (Document) value;
+                if (operators.containsKey("$eq") || operators.containsKey("$in") || operators.containsKey("$elemMatch")) {
+                    equality.add(field);
+                } else if (operators.containsKey("$ne") || operators.containsKey("$nin") || operators.containsKey("$not")) {
+                    range.add(field);
+                    notes.add("Negation on " + field + " rarely benefits from an index");
+                } else if (operators.containsKey("$exists") || operators.containsKey("$type")
+                        || operators.containsKey("$gt") || operators.containsKey("$gte")
+                        || operators.containsKey("$lt") || operators.containsKey("$lte")
+                        || operators.containsKey("$regex")) {
+                    range.add(field);
+                }
+            } else {
+                equality.add(field);
+            }
+        }
+    }
+
+    private static boolean isOperatorDocument(Document value) {
+        return !value.isEmpty() && value.keySet().iterator().next().startsWith("$");
+    }
+
+    private static boolean hasLeadingFields(Document index, Document key) {
+        List<String> indexFields = new ArrayList<>(index.keySet());
+        List<String> keyFields = new ArrayList<>(key.keySet());
+        return indexFields.size() >= keyFields.size() && indexFields.subList(0, keyFields.size()).equals(keyFields);
+    }
+
+    private static Document coveringKey(Document key, Document projection) {
+        if (projection == null || projection.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> extra = new LinkedHashMap<>();
+        boolean idExcluded = false;
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            Object value = entry.getValue();
+            boolean included = Boolean.TRUE.equals(value) || (value instanceof Number && ((Number) value).intValue() != 0);
+            boolean excluded = Boolean.FALSE.equals(value) || (value instanceof Number && ((Number) value).intValue() == 0);
+            if ("_id".equals(entry.getKey())) {
+                idExcluded = excluded;
+            } else if (!included) {
+                // Exclusions and computed fields need the full document
+                return null;
+            } else if (!key.containsKey(entry.getKey())) {
+                extra.put(entry.getKey(), 1);
+            }
+        }
+        if (!idExcluded || extra.isEmpty()) {
+            return null;
+        }
+        Document covering = new Document(key);
+        covering.putAll(extra);
+        return covering;
+    }
+
+    private static void appendNumber(StringBuilder json, Document document, String field) {
+        Object value = document.get(field);
+        if (value instanceof Number) {
+            json.append(",\"").append(field).append("\": ").append(((Number) value).longValue());
+        }
+    }
+
+    private static void appendShard(StringBuilder json, String shard) {
+        if (shard != null) {
+            json.append("\"shard\": \"").append(JsonUtil.escape(shard)).append("\",");
+        }
+    }
+
+    private static StringBuilder appendRawArray(StringBuilder json, String name, List<String> elements) {
+        json.append("\"").append(name).append("\": [").append(String.join(",", elements)).append("]");
+        return json;
+    }
+
+    private static StringBuilder appendStringArray(StringBuilder json, String name, List<String> values) {
+        json.append("\"").append(name).append("\": [");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("\"").append(JsonUtil.escape(values.get(i))).append("\"");
+        }
+        json.append("]");
+        return json;
+    }
+}
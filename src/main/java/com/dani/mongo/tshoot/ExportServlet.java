@@ -0,0 +1,231 @@
+package com.dani.mongo.tshoot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCursor;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * Downloads a collection as NDJSON or BSON, see {@link CollectionExporter}.
+ *
+ * POST starts an export and streams it as the response body; it uses the session connection
+ * or the connectionString parameter like /api/mongo, and can be cancelled there with
+ * action=cancel. GET returns the progress of the export with the given requestId, or of all
+ * running and recent exports.
+ */
+@WebServlet(urlPatterns = "/api/export", asyncSupported = true)
+public class ExportServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ExportServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        String requestId = request.getParameter("requestId");
+        if (requestId == null || requestId.trim().isEmpty()) {
+            response.getWriter().print("{\"success\": true, \"exports\": " + CollectionExporter.historyJson() + "}");
+            return;
+        }
+        String progress = CollectionExporter.progressJson(requestId.trim());
+        if (progress == null) {
+            writeError(response, HttpServletResponse.SC_NOT_FOUND, "Export not found: " + requestId);
+            return;
+        }
+        response.getWriter().print("{\"success\": true, \"export\": " + progress + "}");
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        logger.info("--- Export ---");
+
+        CollectionExporter.Options options;
+        try {
+            options = parseOptions(request);
+        } catch (IllegalArgumentException e) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        logger.info("Exporting {}.{} as {} (gzip {}), filter {}", options.database, options.collection,
+                options.format, options.gzip, options.filter.toJson());
+
+        // A find's maxTimeMS covers all of its getMores, so exports have no server time limit
+        // unless asked; cancel and the export slots bound them instead
+        OperationContext context = OperationContext.create(request, 0);
+        CollectionExporter.Progress progress = CollectionExporter.begin(context.getRequestId(), options);
+        if (progress == null) {
+            context.complete();
+            writeError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many exports running");
+            return;
+        }
+        response.setHeader("X-Request-Id", context.getRequestId());
+
+        try {
+            AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(0);
+            Thread.ofVirtual().name("export-" + context.getRequestId()).start(() -> {
+                context.attachWorker(Thread.currentThread());
+                try {
+                    export(request, response, context, options, progress);
+                } finally {
+                    context.attachWorker(null);
+                    context.complete();
+                    asyncContext.complete();
+                }
+            });
+        } catch (RuntimeException e) {
+            // No worker will run the export, so free its slot here
+            CollectionExporter.fail(progress, e);
+            context.complete();
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().complete();
+            }
+            throw e;
+        }
+    }
+
+    private void export(HttpServletRequest request, HttpServletResponse response, OperationContext context,
+            CollectionExporter.Options options, CollectionExporter.Progress progress) {
+        MongoClient client = null;
+        boolean isSessionConnection = false;
+        MongoCursor<RawBsonDocument> cursor;
+        try {
+            client = MongoTroubleshootServlet.getOrCreateMongoClient(request);
+            HttpSession session = request.getSession(false);
+            isSessionConnection = session != null && session.getAttribute(MongoTroubleshootServlet.SESSION_MONGO_CLIENT) == client;
+            // Open the cursor before the headers so that query errors still get a normal error response
+            cursor = CollectionExporter.open(client.getDatabase(options.database).getCollection(options.collection),
+                    context, options, progress);
+        } catch (Exception e) {
+            logger.error("Export of {}.{} failed to start: {}", options.database, options.collection, e.getMessage(), e);
+            CollectionExporter.fail(progress, e);
+            MongoTroubleshootServlet.releaseMongoClient(client, isSessionConnection);
+            try {
+                writeError(response, e instanceof IllegalArgumentException ? HttpServletResponse.SC_BAD_REQUEST
+                        : HttpServletResponse.SC_INTERNAL_SERVER_ERROR, progress.error);
+            } catch (IOException writeError) {
+                logger.warn("Could not send export error: {}", writeError.getMessage());
+            }
+            return;
+        }
+
+        boolean streaming = false;
+        try {
+            response.setContentType(options.contentType());
+            response.setHeader("Content-Disposition", contentDisposition(options.fileName()));
+            response.setHeader("Cache-Control", "no-cache");
+            OutputStream out = response.getOutputStream();
+            streaming = true;
+            CollectionExporter.export(cursor, options, progress, out);
+        } catch (Exception e) {
+            if (!streaming) {
+                // export() records its own failures; this one happened before it took over the cursor
+                cursor.close();
+                CollectionExporter.fail(progress, e);
+            }
+            // Headers are sent, so the client only sees a truncated file; gzip output lacks its trailer
+            logger.error("Export of {}.{} failed after {} documents: {}", options.database, options.collection,
+                    progress.documents, e.getMessage(), e);
+        } finally {
+            MongoTroubleshootServlet.releaseMongoClient(client, isSessionConnection);
+        }
+    }
+
+    /**
+     * Content-Disposition for a download: an ASCII fallback name with anything but letters,
+     * digits, dots, dashes and underscores replaced, and the exact name in RFC 5987 form.
+     */
+    static String contentDisposition(String fileName) {
+        StringBuilder fallback = new StringBuilder();
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '_';
+            fallback.append(safe ? c : '_');
+        }
+        for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || "!#$&+-.^_`|~".indexOf(c) >= 0) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            }
+        }
+        return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    private CollectionExporter.Options parseOptions(HttpServletRequest request) {
+        CollectionExporter.Options options = new CollectionExporter.Options();
+        options.database = request.getParameter("database");
+        options.collection = request.getParameter("collection");
+        if (options.database == null || options.database.trim().isEmpty()
+                || options.collection == null || options.collection.trim().isEmpty()) {
+            throw new IllegalArgumentException("Database and collection are required");
+        }
+        options.database = options.database.trim();
+        options.collection = options.collection.trim();
+        options.filter = parseDocument(request, "filter", new Document());
+        options.projection = parseDocument(request, "projection", null);
+        options.limit = parseInt(request, "limit");
+        options.batchSize = parseInt(request, "batchSize");
+        options.format = CollectionExporter.Format.parse(request.getParameter("format"));
+        options.gzip = "true".equalsIgnoreCase(request.getParameter("gzip"));
+        options.jsonMode = "canonical".equalsIgnoreCase(request.getParameter("jsonMode")) ? JsonMode.EXTENDED : JsonMode.RELAXED;
+        return options;
+    }
+
+    private Document parseDocument(HttpServletRequest request, String name, Document defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Document.parse(value);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + e.getMessage());
+        }
+    }
+
+    private int parseInt(HttpServletRequest request, String name) {
+        String value = request.getParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+        logger.warn("Export rejected: {}", message);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().print("{\"success\": false, \"message\": \"" + JsonUtil.escape(message) + "\"}");
+    }
+}
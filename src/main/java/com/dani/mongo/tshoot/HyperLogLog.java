@@ -0,0 +1,81 @@
+package com.dani.mongo.tshoot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct values added to it.
+ *
+ * Values are added as 64-bit hashes. With 2^10 one-byte registers the sketch takes 1 KB
+ * and the standard error is about 3%; small counts use linear counting and are close to
+ * exact. Sketches are not thread safe but can be merged, so each thread can fill its own.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 10;
+    private static final int REGISTER_COUNT = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTER_COUNT);
+
+    private final byte[] registers = new byte[REGISTER_COUNT];
+
+    /**
+     * Add a value by its 64-bit hash, see {@link #hash}.
+     */
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - PRECISION));
+        // Position of the first set bit in the remaining bits, the guard bit caps it
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Add the values added to another sketch to this one.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * Estimated number of distinct values added.
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTER_COUNT * REGISTER_COUNT / sum;
+        if (estimate <= 2.5 * REGISTER_COUNT && zeros > 0) {
+            // Small range: count the empty registers instead
+            estimate = REGISTER_COUNT * Math.log((double) REGISTER_COUNT / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * 64-bit hash of length bytes of a buffer starting at offset, mixed with a seed such
+     * as the BSON type so equal bytes of different types count as different values.
+     */
+    public static long hash(ByteBuffer bytes, int offset, int length, long seed) {
+        // FNV-1a over the bytes, then the MurmurHash3 finalizer to spread the bits
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes.get(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
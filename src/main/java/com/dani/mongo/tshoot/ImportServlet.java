@@ -0,0 +1,253 @@
+package com.dani.mongo.tshoot;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.MultipartConfig;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.Part;
+
+/**
+ * Loads NDJSON or a JSON array into a collection, see {@link BulkImporter}.
+ *
+ * POST takes the data either as the raw request body, with the other parameters in the
+ * query string, or as the "file" part of a multipart form. Only raw bodies are streamed:
+ * they are parsed as they arrive, whatever their size. A multipart upload is received in
+ * full and spooled to disk by the container before loading starts, so it is limited to
+ * MAX_MULTIPART_BYTES; larger files must be sent as a raw body. Gzip input is detected and
+ * decompressed. GET returns the progress of the import with the given requestId, or of all
+ * running and recent imports.
+ */
+@WebServlet(urlPatterns = "/api/import", asyncSupported = true)
+@MultipartConfig(
+    fileSizeThreshold = 1024 * 1024,                        // 1 MB, larger parts go to disk
+    maxFileSize = ImportServlet.MAX_MULTIPART_BYTES,
+    maxRequestSize = ImportServlet.MAX_MULTIPART_BYTES + 64 * 1024
+)
+public class ImportServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ImportServlet.class);
+
+    /** Largest file accepted as a multipart upload, 256 MB */
+    static final long MAX_MULTIPART_BYTES = 256L * 1024 * 1024;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        String requestId = request.getParameter("requestId");
+        if (requestId == null || requestId.trim().isEmpty()) {
+            response.getWriter().print("{\"success\": true, \"imports\": " + BulkImporter.historyJson() + "}");
+            return;
+        }
+        String progress = BulkImporter.progressJson(requestId.trim());
+        if (progress == null) {
+            writeError(response, HttpServletResponse.SC_NOT_FOUND, "Import not found: " + requestId);
+            return;
+        }
+        response.getWriter().print("{\"success\": true, \"import\": " + progress + "}");
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        logger.info("--- Import ---");
+
+        BulkImporter.Options options;
+        OperationContext context = OperationContext.create(request);
+        BulkImporter importer;
+        try {
+            options = parseOptions(request);
+            importer = BulkImporter.begin(context.getRequestId(), options);
+        } catch (IllegalArgumentException e) {
+            context.complete();
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (importer == null) {
+            context.complete();
+            writeError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many imports running");
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("X-Request-Id", context.getRequestId());
+
+        try {
+            AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(0);
+            Thread.ofVirtual().name("import-" + context.getRequestId()).start(() -> {
+                context.attachWorker(Thread.currentThread());
+                try {
+                    load(request, response, context, options, importer);
+                } finally {
+                    context.attachWorker(null);
+                    context.complete();
+                    asyncContext.complete();
+                }
+            });
+        } catch (RuntimeException e) {
+            // No worker will run the import, so free its slot here
+            importer.fail(e);
+            context.complete();
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().complete();
+            }
+            throw e;
+        }
+    }
+
+    private void load(HttpServletRequest request, HttpServletResponse response, OperationContext context,
+            BulkImporter.Options options, BulkImporter importer) {
+        MongoClient client = null;
+        boolean isSessionConnection = false;
+        InputStream input;
+        try {
+            input = openInput(request);
+            client = MongoTroubleshootServlet.getOrCreateMongoClient(request);
+            HttpSession session = request.getSession(false);
+            isSessionConnection = session != null && session.getAttribute(MongoTroubleshootServlet.SESSION_MONGO_CLIENT) == client;
+        } catch (Exception e) {
+            logger.error("Import into {}.{} failed to start: {}", options.database, options.collection, e.getMessage(), e);
+            importer.fail(e);
+            MongoTroubleshootServlet.releaseMongoClient(client, isSessionConnection);
+            sendError(response, errorStatus(e), e);
+            return;
+        }
+
+        try (InputStream data = input) {
+            String result = importer.run(client.getDatabase(options.database).getCollection(options.collection), context,
+                    new InputStreamReader(data, StandardCharsets.UTF_8));
+            PrintWriter out = response.getWriter();
+            out.print("{\"success\": true, \"import\": " + result + "}");
+        } catch (Exception e) {
+            logger.error("Import into {}.{} failed: {}", options.database, options.collection, e.getMessage(), e);
+            try {
+                response.getWriter().print("{\"success\": false, \"message\": \"" + JsonUtil.escape(
+                        e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName())
+                        + "\", \"import\": " + importer.toJson() + "}");
+            } catch (IOException writeError) {
+                logger.warn("Could not send import error: {}", writeError.getMessage());
+            }
+        } finally {
+            MongoTroubleshootServlet.releaseMongoClient(client, isSessionConnection);
+        }
+    }
+
+    private int errorStatus(Exception e) {
+        if (e instanceof IllegalStateException) {
+            // getPart throws it when the upload exceeds the multipart limits
+            return HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+        }
+        return e instanceof IllegalArgumentException ? HttpServletResponse.SC_BAD_REQUEST
+                : HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * The uploaded data: the "file" part of a multipart request or the request body,
+     * decompressed if it starts with the gzip magic number.
+     */
+    private InputStream openInput(HttpServletRequest request) throws IOException, ServletException {
+        String contentType = request.getContentType();
+        InputStream raw;
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+            Part part = request.getPart("file");
+            if (part == null) {
+                throw new IllegalArgumentException("No file uploaded");
+            }
+            logger.info("Importing {} ({} bytes)", part.getSubmittedFileName(), part.getSize());
+            raw = part.getInputStream();
+        } else {
+            raw = request.getInputStream();
+        }
+        BufferedInputStream buffered = new BufferedInputStream(raw, 64 * 1024);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return new GZIPInputStream(buffered, 64 * 1024);
+        }
+        return buffered;
+    }
+
+    private BulkImporter.Options parseOptions(HttpServletRequest request) {
+        BulkImporter.Options options = new BulkImporter.Options();
+        options.database = trim(request.getParameter("database"));
+        options.collection = trim(request.getParameter("collection"));
+        options.batchSize = parseInt(request, "batchSize", BulkImporter.DEFAULT_BATCH_SIZE);
+        options.writers = parseInt(request, "writers", BulkImporter.DEFAULT_WRITERS);
+
+        WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
+        String w = trim(request.getParameter("w"));
+        if (w != null && !w.isEmpty()) {
+            if ("majority".equalsIgnoreCase(w)) {
+                writeConcern = WriteConcern.MAJORITY;
+            } else {
+                try {
+                    writeConcern = new WriteConcern(Integer.parseInt(w));
+                } catch (NumberFormatException e) {
+                    // Custom write concern tag
+                    writeConcern = new WriteConcern(w);
+                }
+            }
+        }
+        if ("true".equalsIgnoreCase(request.getParameter("journal"))) {
+            writeConcern = writeConcern.withJournal(true);
+        }
+        options.writeConcern = writeConcern;
+        return options;
+    }
+
+    private String trim(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private int parseInt(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private void sendError(HttpServletResponse response, int status, Exception e) {
+        try {
+            writeError(response, status, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } catch (IOException writeError) {
+            logger.warn("Could not send import error: {}", writeError.getMessage());
+        }
+    }
+
+    private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+        logger.warn("Import rejected: {}", message);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().print("{\"success\": false, \"message\": \"" + JsonUtil.escape(message) + "\"}");
+    }
+}
@@ -0,0 +1,494 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Reports how the indexes of a database, or of every database, are used: access counts
+ * from $indexStats, sizes from $collStats, indexes with no accesses and indexes whose key
+ * is a prefix of another index on the same collection, and the total index size against
+ * the server's memory and WiredTiger cache. Through mongos the memory figures are left out,
+ * as they would be the router's.
+ *
+ * Access counters are kept per mongod since it started or since the index was built, so
+ * an index is only reported unused for that period, and on a replica set only for the
+ * member that answered. Collections are read in parallel with a bounded number of
+ * commands in flight.
+ */
+public class IndexUsageReport {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexUsageReport.class);
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int MAX_CONCURRENCY = 64;
+    private static final int MAX_ERRORS = 50;
+    private static final Set<String> SKIPPED_DATABASES = Set.of("admin", "local", "config");
+    // Warn when indexes alone would take this share of the WiredTiger cache
+    private static final double CACHE_WARNING_RATIO = 0.8;
+
+    private IndexUsageReport() {
+    }
+
+    /**
+     * Usage and size of one index, summed over shards.
+     */
+    static final class IndexUsage {
+        final String namespace;
+        final String name;
+        Document key;
+        long ops;
+        Date since;
+        long size;
+        boolean unique;
+        boolean sparse;
+        boolean partial;
+        boolean ttl;
+        Document collation;
+        final Set<String> hosts = new LinkedHashSet<>();
+
+        IndexUsage(String namespace, String name) {
+            this.namespace = namespace;
+            this.name = name;
+        }
+
+        boolean isId() {
+            return "_id_".equals(name);
+        }
+
+        /**
+         * True when every key is ascending or descending, the only kind whose prefixes
+         * can serve the same queries.
+         */
+        boolean isPlain() {
+            if (key == null || key.isEmpty()) {
+                return false;
+            }
+            for (Object direction : key.values()) {
+                if (!(direction instanceof Number)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * True when this index's key is a prefix of, or equal to, the other's. An index
+         * can be walked backwards, so a prefix with every direction reversed also counts.
+         */
+        boolean isPrefixOf(IndexUsage other) {
+            if (!isPlain() || !other.isPlain() || key.size() > other.key.size()) {
+                return false;
+            }
+            List<Map.Entry<String, Object>> mine = new ArrayList<>(key.entrySet());
+            List<Map.Entry<String, Object>> theirs = new ArrayList<>(other.key.entrySet());
+            double flip = 0;
+            for (int i = 0; i < mine.size(); i++) {
+                if (!mine.get(i).getKey().equals(theirs.get(i).getKey())) {
+                    return false;
+                }
+                double direction = Math.signum(((Number) mine.get(i).getValue()).doubleValue())
+                        * Math.signum(((Number) theirs.get(i).getValue()).doubleValue());
+                if (i == 0) {
+                    flip = direction;
+                } else if (direction != flip) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"name\": \"").append(JsonUtil.escape(name)).append("\",");
+            json.append("\"key\": ").append(key == null ? "null" : key.toJson()).append(",");
+            json.append("\"ops\": ").append(ops).append(",");
+            json.append("\"since\": ").append(since == null ? "null" : String.valueOf(since.getTime())).append(",");
+            json.append("\"opsPerHour\": ").append(opsPerHour()).append(",");
+            json.append("\"size\": ").append(size).append(",");
+            json.append("\"unique\": ").append(unique).append(",");
+            json.append("\"sparse\": ").append(sparse).append(",");
+            json.append("\"partial\": ").append(partial).append(",");
+            json.append("\"ttl\": ").append(ttl).append(",");
+            json.append("\"hosts\": [");
+            int i = 0;
+            for (String host : hosts) {
+                if (i++ > 0) json.append(",");
+                json.append("\"").append(JsonUtil.escape(host)).append("\"");
+            }
+            json.append("]");
+            json.append("}");
+            return json.toString();
+        }
+
+        private double opsPerHour() {
+            if (since == null) {
+                return 0.0;
+            }
+            double hours = (System.currentTimeMillis() - since.getTime()) / 3_600_000.0;
+            return hours <= 0 ? 0.0 : Math.round(ops * 10.0 / hours) / 10.0;
+        }
+    }
+
+    /**
+     * The indexes of one collection.
+     */
+    static final class CollectionIndexes {
+        final String namespace;
+        final Map<String, IndexUsage> indexes = new LinkedHashMap<>();
+        long totalIndexSize;
+
+        CollectionIndexes(String namespace) {
+            this.namespace = namespace;
+        }
+
+        IndexUsage index(String name) {
+            return indexes.computeIfAbsent(name, key -> new IndexUsage(namespace, key));
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"ns\": \"").append(JsonUtil.escape(namespace)).append("\",");
+            json.append("\"totalIndexSize\": ").append(totalIndexSize).append(",");
+            json.append("\"indexes\": [");
+            int i = 0;
+            for (IndexUsage index : indexes.values()) {
+                if (i++ > 0) json.append(",");
+                json.append(index.toJson());
+            }
+            json.append("]");
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Build the report for one database, or for every database but admin, local and
+     * config when database is null. At most concurrency commands are sent at the same time.
+     */
+    public static String report(MongoClient client, OperationContext context, String database, int concurrency)
+            throws Exception {
+        long start = System.currentTimeMillis();
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+        List<String> databaseNames = new ArrayList<>();
+        if (database != null) {
+            databaseNames.add(database);
+        } else {
+            for (Document entry : context.apply(client.listDatabases().nameOnly(true))) {
+                String name = entry.getString("name");
+                if (!SKIPPED_DATABASES.contains(name)) {
+                    databaseNames.add(name);
+                }
+            }
+        }
+
+        List<CollectionIndexes> collections = Collections.synchronizedList(new ArrayList<>());
+        try (BoundedFanOut fanOut = new BoundedFanOut(concurrency)) {
+            // First pass: the collections of every database
+            Map<String, List<String>> collectionNames = Collections.synchronizedMap(new LinkedHashMap<>());
+            for (String databaseName : databaseNames) {
+                fanOut.fork(() -> fanOut.withPermit(() -> {
+                    try {
+                        List<String> names = new ArrayList<>();
+                        // Views have no indexes of their own and system collections are internal
+                        context.apply(client.getDatabase(databaseName).listCollectionNames())
+                                .filter(new Document("type", "collection")
+                                        .append("name", new Document("$not", Pattern.compile("^system\\."))))
+                                .into(names);
+                        collectionNames.put(databaseName, names);
+                    } catch (Exception e) {
+                        recordError(errors, "listCollections " + databaseName, e);
+                    }
+                }));
+            }
+            fanOut.join();
+
+            // Second pass: index usage and sizes of every collection
+            for (Map.Entry<String, List<String>> entry : collectionNames.entrySet()) {
+                MongoDatabase db = client.getDatabase(entry.getKey());
+                for (String collectionName : entry.getValue()) {
+                    fanOut.fork(() -> {
+                        CollectionIndexes indexes = new CollectionIndexes(entry.getKey() + "." + collectionName);
+                        fanOut.withPermit(() -> {
+                            try {
+                                readIndexStats(db, collectionName, context, indexes);
+                            } catch (Exception e) {
+                                recordError(errors, "$indexStats " + indexes.namespace, e);
+                            }
+                        });
+                        fanOut.withPermit(() -> {
+                            try {
+                                readIndexSizes(db, collectionName, context, indexes);
+                            } catch (Exception e) {
+                                recordError(errors, "$collStats " + indexes.namespace, e);
+                            }
+                        });
+                        collections.add(indexes);
+                    });
+                }
+            }
+            fanOut.join();
+        }
+
+        List<CollectionIndexes> sorted = new ArrayList<>(collections);
+        sorted.sort(Comparator.comparingLong((CollectionIndexes indexes) -> indexes.totalIndexSize).reversed());
+
+        long indexCount = 0;
+        long indexSize = 0;
+        List<IndexUsage> unused = new ArrayList<>();
+        long unusedSize = 0;
+        List<String> ttlJson = new ArrayList<>();
+        List<String> redundantJson = new ArrayList<>();
+        long redundantSize = 0;
+        for (CollectionIndexes collection : sorted) {
+            indexSize += collection.totalIndexSize;
+            for (IndexUsage index : collection.indexes.values()) {
+                indexCount++;
+                // Counters exist only for indexes $indexStats reported
+                if (!index.isId() && index.since != null && index.ops == 0) {
+                    if (index.ttl) {
+                        // TTL deletes do not count as accesses, so the index is still in use
+                        ttlJson.add(usageJson(index, null));
+                    } else {
+                        unusedSize += index.size;
+                        unused.add(index);
+                    }
+                }
+                IndexUsage coveredBy = coveringIndex(collection, index);
+                if (coveredBy != null) {
+                    redundantSize += index.size;
+                    redundantJson.add(usageJson(index, coveredBy));
+                }
+            }
+        }
+        unused.sort(Comparator.comparingLong((IndexUsage index) -> index.size).reversed());
+        List<String> unusedJson = new ArrayList<>();
+        for (IndexUsage index : unused) {
+            unusedJson.add(usageJson(index, null));
+        }
+
+        Long ramBytes = null;
+        Long cacheBytes = null;
+        String memoryNote = null;
+        MongoDatabase admin = client.getDatabase("admin");
+        boolean mongos = false;
+        try {
+            Document hello = admin.runCommand(context.command(new Document("hello", 1)));
+            mongos = "isdbgrid".equals(hello.getString("msg"));
+        } catch (Exception e) {
+            recordError(errors, "hello", e);
+        }
+        if (mongos) {
+            // hostInfo and serverStatus would describe the router, which holds no indexes
+            memoryNote = "Connected to mongos; hostInfo and serverStatus there describe the router, not the shards";
+        } else {
+            try {
+                Document hostInfo = admin.runCommand(context.command(new Document("hostInfo", 1)));
+                Document system = hostInfo.get("system", Document.class);
+                if (system != null && system.get("memSizeMB") instanceof Number) {
+                    ramBytes = ((Number) system.get("memSizeMB")).longValue() * 1024 * 1024;
+                }
+            } catch (Exception e) {
+                recordError(errors, "hostInfo", e);
+            }
+            try {
+                Document serverStatus = admin.runCommand(context.command(new Document("serverStatus", 1)));
+                Document wiredTiger = serverStatus.get("wiredTiger", Document.class);
+                Document cache = wiredTiger == null ? null : wiredTiger.get("cache", Document.class);
+                if (cache != null && cache.get("maximum bytes configured") instanceof Number) {
+                    cacheBytes = ((Number) cache.get("maximum bytes configured")).longValue();
+                }
+            } catch (Exception e) {
+                recordError(errors, "serverStatus", e);
+            }
+        }
+
+        List<String> warnings = new ArrayList<>();
+        if (!unusedJson.isEmpty()) {
+            warnings.add(unusedJson.size() + " indexes (" + unusedSize + " bytes) have no accesses since their counters started");
+        }
+        if (!redundantJson.isEmpty()) {
+            warnings.add(redundantJson.size() + " indexes (" + redundantSize + " bytes) are prefixes of other indexes");
+        }
+        if (cacheBytes != null && cacheBytes > 0 && indexSize >= cacheBytes * CACHE_WARNING_RATIO) {
+            warnings.add("Indexes take " + Math.round(indexSize * 100.0 / cacheBytes)
+                    + "% of the WiredTiger cache, leaving little room for documents");
+        }
+        long duration = System.currentTimeMillis() - start;
+        logger.info("Index report for {}: {} collections, {} indexes, {} unused, {} redundant in {}ms",
+                database != null ? database : "all databases", sorted.size(), indexCount, unusedJson.size(),
+                redundantJson.size(), duration);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"database\": ").append(database == null ? "null" : "\"" + JsonUtil.escape(database) + "\"").append(",");
+        json.append("\"totals\": {");
+        json.append("\"databases\": ").append(databaseNames.size()).append(",");
+        json.append("\"collections\": ").append(sorted.size()).append(",");
+        json.append("\"indexes\": ").append(indexCount).append(",");
+        json.append("\"indexSize\": ").append(indexSize).append(",");
+        json.append("\"unusedIndexes\": ").append(unusedJson.size()).append(",");
+        json.append("\"unusedIndexSize\": ").append(unusedSize).append(",");
+        json.append("\"redundantIndexes\": ").append(redundantJson.size()).append(",");
+        json.append("\"redundantIndexSize\": ").append(redundantSize);
+        json.append("},");
+        json.append("\"memory\": {");
+        json.append("\"ramBytes\": ").append(ramBytes).append(",");
+        json.append("\"cacheBytes\": ").append(cacheBytes).append(",");
+        json.append("\"indexSizeToRam\": ").append(ratio(indexSize, ramBytes)).append(",");
+        json.append("\"indexSizeToCache\": ").append(ratio(indexSize, cacheBytes));
+        if (memoryNote != null) {
+            json.append(",\"note\": \"").append(JsonUtil.escape(memoryNote)).append("\"");
+        }
+        json.append("},");
+        json.append("\"concurrency\": ").append(concurrency).append(",");
+        json.append("\"reportMs\": ").append(duration).append(",");
+        appendArray(json, "warnings", warnings, true).append(",");
+        appendArray(json, "unused", unusedJson, false).append(",");
+        appendArray(json, "ttlWithoutQueries", ttlJson, false).append(",");
+        appendArray(json, "redundant", redundantJson, false).append(",");
+        json.append("\"collections\": [");
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(sorted.get(i).toJson());
+        }
+        json.append("],");
+        appendArray(json, "errors", errors, true);
+        json.append("}");
+        return json.toString();
+    }
+
+    private static void readIndexStats(MongoDatabase database, String collectionName, OperationContext context,
+            CollectionIndexes indexes) {
+        List<Document> pipeline = Collections.singletonList(new Document("$indexStats", new Document()));
+        // Sharded collections return one document per index per shard
+        for (Document stats : context.apply(database.getCollection(collectionName).aggregate(pipeline))) {
+            IndexUsage index = indexes.index(stats.getString("name"));
+            index.key = stats.get("key", Document.class);
+            Document accesses = stats.get("accesses", Document.class);
+            if (accesses != null) {
+                index.ops += JsonUtil.toLong(accesses.get("ops"));
+                Date since = accesses.getDate("since");
+                if (since != null && (index.since == null || since.before(index.since))) {
+                    index.since = since;
+                }
+            }
+            if (stats.getString("host") != null) {
+                index.hosts.add(stats.getString("host"));
+            }
+            // Index options, reported by MongoDB 4.2 and later
+            Document spec = stats.get("spec", Document.class);
+            if (spec != null) {
+                index.unique = Boolean.TRUE.equals(spec.get("unique"));
+                index.sparse = Boolean.TRUE.equals(spec.get("sparse"));
+                index.partial = spec.containsKey("partialFilterExpression");
+                index.ttl = spec.containsKey("expireAfterSeconds");
+                index.collation = spec.get("collation", Document.class);
+            }
+        }
+    }
+
+    private static void readIndexSizes(MongoDatabase database, String collectionName, OperationContext context,
+            CollectionIndexes indexes) {
+        List<Document> pipeline = Collections.singletonList(
+                new Document("$collStats", new Document("storageStats", new Document())));
+        for (Document shard : context.apply(database.getCollection(collectionName).aggregate(pipeline))) {
+            Document storage = shard.get("storageStats", Document.class);
+            if (storage == null) {
+                continue;
+            }
+            indexes.totalIndexSize += JsonUtil.toLong(storage.get("totalIndexSize"));
+            Document sizes = storage.get("indexSizes", Document.class);
+            if (sizes != null) {
+                for (Map.Entry<String, Object> size : sizes.entrySet()) {
+                    indexes.index(size.getKey()).size += JsonUtil.toLong(size.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Another index of the collection that serves every query the given one can, or null.
+     * Indexes that enforce something or hold only some documents are never reported, and
+     * string comparisons only use an index with the same collation.
+     */
+    private static IndexUsage coveringIndex(CollectionIndexes collection, IndexUsage index) {
+        if (index.isId() || index.unique || index.ttl || index.partial) {
+            return null;
+        }
+        for (IndexUsage other : collection.indexes.values()) {
+            if (other == index || other.partial || other.sparse || !Objects.equals(index.collation, other.collation)
+                    || !index.isPrefixOf(other)) {
+                continue;
+            }
+            // Of two indexes with the same key only the one with the greater name is reported
+            if (other.key.size() == index.key.size() && other.name.compareTo(index.name) > 0) {
+                continue;
+            }
+            return other;
+        }
+        return null;
+    }
+
+    private static String usageJson(IndexUsage index, IndexUsage coveredBy) {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"ns\": \"").append(JsonUtil.escape(index.namespace)).append("\",");
+        json.append("\"name\": \"").append(JsonUtil.escape(index.name)).append("\",");
+        json.append("\"key\": ").append(index.key == null ? "null" : index.key.toJson()).append(",");
+        json.append("\"size\": ").append(index.size).append(",");
+        json.append("\"ops\": ").append(index.ops).append(",");
+        json.append("\"since\": ").append(index.since == null ? "null" : String.valueOf(index.since.getTime()));
+        if (coveredBy != null) {
+            json.append(",\"coveredBy\": \"").append(JsonUtil.escape(coveredBy.name)).append("\",");
+            json.append("\"coveredByKey\": ").append(coveredBy.key.toJson());
+        } else {
+            json.append(",\"unique\": ").append(index.unique).append(",");
+            json.append("\"ttl\": ").append(index.ttl);
+        }
+        json.append("}");
+        return json.toString();
+    }
+
+    private static StringBuilder appendArray(StringBuilder json, String name, List<String> values, boolean strings) {
+        json.append("\"").append(name).append("\": [");
+        synchronized (values) {
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) json.append(",");
+                json.append(strings ? "\"" + JsonUtil.escape(values.get(i)) + "\"" : values.get(i));
+            }
+        }
+        json.append("]");
+        return json;
+    }
+
+    private static String ratio(long value, Long total) {
+        return total == null || total == 0 ? "null" : String.valueOf(Math.round(value * 1000.0 / total) / 1000.0);
+    }
+
+    private static void recordError(List<String> errors, String what, Exception e) {
+        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        logger.warn("Index report: {} failed: {}", what, message);
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(what + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.dani.mongo.tshoot;
+
+import java.io.PrintWriter;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Writes documents from a driver cursor straight to the response as a JSON array of
+ * Extended JSON documents, without collecting them in memory first.
+ */
+public class JsonResultStreamer {
+
+    private static final Logger logger = LoggerFactory.getLogger(JsonResultStreamer.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_RESULTS = 100;
+    public static final int MAX_RESULTS_CAP = EnvironmentConfig.getInt("MONGO_MAX_RESULTS", 100_000);
+
+    // Same output as Document.toJson()
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder()
+            .outputMode(JsonMode.RELAXED)
+            .build();
+    private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+    private JsonResultStreamer() {
+    }
+
+    /**
+     * Outcome of streaming a cursor: how many documents were written, whether the client
+     * stopped reading and the error that stopped the stream, if any.
+     */
+    public static final class StreamResult {
+        public final int count;
+        public final boolean truncated;
+        public final boolean aborted;
+        public final Exception error;
+
+        StreamResult(int count, boolean truncated, boolean aborted, Exception error) {
+            this.count = count;
+            this.truncated = truncated;
+            this.aborted = aborted;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Write up to maxResults documents from the cursor as a JSON array, flushing the
+     * writer every flushEvery documents. The array is always closed, even when the
+     * cursor fails part way through; the failure is returned in the result.
+     *
+     * With detectTruncation, a cursor that still has a document after maxResults is
+     * reported as truncated. That may fetch another batch, so finds should be limited to
+     * maxResults + 1; paged cursors, whose next page stays on the server, pass false.
+     *
+     * PrintWriter swallows write errors, so the writer is checked after every flush. Once the
+     * client has gone away no further batches are fetched: the cursor is closed and the
+     * result is marked as aborted.
+     */
+    public static <T> StreamResult writeArray(MongoCursor<T> cursor, Encoder<T> encoder, PrintWriter out,
+            int maxResults, int flushEvery, boolean detectTruncation) {
+        int count = 0;
+        boolean truncated = false;
+        boolean aborted = false;
+        Exception error = null;
+        // Time spent encoding and writing, excluding the cursor's own fetches
+        long serializationNanos = 0;
+
+        out.print("[");
+        try {
+            while (count < maxResults && cursor.hasNext()) {
+                T document = cursor.next();
+                long encodeStart = System.nanoTime();
+                if (count > 0) {
+                    out.print(",");
+                }
+                encoder.encode(new JsonWriter(out, JSON_SETTINGS), document, ENCODER_CONTEXT);
+                count++;
+                if (count % flushEvery == 0) {
+                    out.flush();
+                    aborted = out.checkError();
+                }
+                serializationNanos += System.nanoTime() - encodeStart;
+                if (aborted) {
+                    break;
+                }
+            }
+            truncated = !aborted && detectTruncation && count >= maxResults && cursor.hasNext();
+        } catch (Exception e) {
+            logger.error("Cursor failed after {} documents: {}", count, e.getMessage(), e);
+            error = e;
+        }
+        out.print("]");
+        if (aborted) {
+            logger.warn("Client stopped reading after {} documents, closing the cursor", count);
+            cursor.close();
+        }
+        CommandTrace trace = CommandTrace.current();
+        if (trace != null) {
+            trace.addSerialization(serializationNanos);
+        }
+        return new StreamResult(count, truncated, aborted, error);
+    }
+
+    /**
+     * A single result as Extended JSON, in the same format as the streamed arrays. Raw
+     * documents are written straight from their bytes. The time taken counts as
+     * serialization in the current request's trace.
+     */
+    public static String toJson(Bson document) {
+        long start = System.nanoTime();
+        String json;
+        if (document instanceof BsonDocument) {
+            json = ((BsonDocument) document).toJson(JSON_SETTINGS);
+        } else if (document instanceof Document) {
+            json = ((Document) document).toJson(JSON_SETTINGS);
+        } else {
+            json = document.toBsonDocument().toJson(JSON_SETTINGS);
+        }
+        CommandTrace trace = CommandTrace.current();
+        if (trace != null) {
+            trace.addSerialization(System.nanoTime() - start);
+        }
+        return json;
+    }
+
+    /**
+     * Resolve the batchSize request parameter.
+     */
+    public static int resolveBatchSize(String value) {
+        return parseBounded(value, DEFAULT_BATCH_SIZE, 1, MAX_RESULTS_CAP);
+    }
+
+    /**
+     * Resolve the limit request parameter, capped at MONGO_MAX_RESULTS.
+     */
+    public static int resolveMaxResults(String value) {
+        return parseBounded(value, DEFAULT_MAX_RESULTS, 1, MAX_RESULTS_CAP);
+    }
+
+    private static int parseBounded(String value, int defaultValue, int min, int max) {
+        if (value == null || value.trim().isEmpty()) {
+            return Math.min(defaultValue, max);
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return Math.max(min, Math.min(max, parsed));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + value);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.dani.mongo.tshoot;
+
+import org.bson.Document;
+
+/**
+ * JSON helpers shared by the diagnostic components that build their responses by hand,
+ * including reading numeric fields out of server command results.
+ */
+public class JsonUtil {
+
+    private JsonUtil() {
+    }
+
+    /**
+     * Escape a value for use inside a JSON string literal. Escapes the same characters as
+     * the servlets' escapeJson methods.
+     */
+    public static String escape(String str) {
+        if (str == null) return "";
+        StringBuilder escaped = null;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            String replacement;
+            switch (c) {
+                case '\\': replacement = "\\\\"; break;
+                case '"': replacement = "\\\""; break;
+                case '\n': replacement = "\\n"; break;
+                case '\r': replacement = "\\r"; break;
+                case '\t': replacement = "\\t"; break;
+                default: replacement = null;
+            }
+            if (replacement != null) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(str.length() + 16).append(str, 0, i);
+                }
+                escaped.append(replacement);
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? str : escaped.toString();
+    }
+
+    /**
+     * A numeric value from a command result as a long, 0 when missing or not a number.
+     * Servers report the same statistic as int, long or double depending on its size.
+     */
+    public static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * A numeric field of a command result as a long, 0 when missing or not a number.
+     */
+    public static long getLong(Document document, String field) {
+        return toLong(document.get(field));
+    }
+}
@@ -0,0 +1,142 @@
+package com.dani.mongo.tshoot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size latency histogram with HDR-style log-linear buckets.
+ *
+ * Values are recorded in microseconds. Values below 128us get an exact bucket, larger
+ * values are grouped into 64 sub-buckets per power of two, which keeps the relative error
+ * under 1.6% while using a few kilobytes per histogram. Recording is lock free, so one
+ * histogram can be shared by several threads.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    // Shifts up to 40 cover values up to 2^47us, far beyond any realistic latency
+    private static final int MAX_SHIFT = 40;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * HALF_SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong minMicros = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Record a duration measured with System.nanoTime().
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Record a duration in microseconds.
+     */
+    public void recordMicros(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(value);
+        minMicros.accumulateAndGet(value, Math::min);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Add all values recorded by another histogram to this one.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalMicros.addAndGet(other.totalMicros.get());
+        minMicros.accumulateAndGet(other.minMicros.get(), Math::min);
+        maxMicros.accumulateAndGet(other.maxMicros.get(), Math::max);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        long count = totalCount.get();
+        return count == 0 ? 0.0 : (double) totalMicros.get() / count;
+    }
+
+    /**
+     * Value at the given percentile (0-100) in microseconds, reported as the upper bound
+     * of the bucket that contains it.
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * JSON summary with count, mean, percentiles and max, in milliseconds.
+     */
+    public String toJson() {
+        long count = totalCount.get();
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"count\": ").append(count).append(",");
+        json.append("\"minMs\": ").append(count == 0 ? 0.0 : toMillis(minMicros.get())).append(",");
+        json.append("\"meanMs\": ").append(toMillis(getMeanMicros())).append(",");
+        json.append("\"p50Ms\": ").append(toMillis(getPercentileMicros(50))).append(",");
+        json.append("\"p90Ms\": ").append(toMillis(getPercentileMicros(90))).append(",");
+        json.append("\"p99Ms\": ").append(toMillis(getPercentileMicros(99))).append(",");
+        json.append("\"p999Ms\": ").append(toMillis(getPercentileMicros(99.9))).append(",");
+        json.append("\"maxMs\": ").append(toMillis(maxMicros.get()));
+        json.append("}");
+        return json.toString();
+    }
+
+    private static double toMillis(double micros) {
+        // Three decimals keep microsecond resolution without long fractions in the JSON
+        return Math.round(micros) / 1000.0;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift so that the value lands in [64, 127]
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (int) ((value >> shift) - HALF_SUB_BUCKET_COUNT);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / HALF_SUB_BUCKET_COUNT + 1;
+        long subBucket = offset % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,197 @@
+package com.dani.mongo.tshoot;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide cache for the results of read-only metadata commands (show dbs, show
+ * collections, getIndexes, stats) that the UI issues again and again while browsing.
+ *
+ * Entries are scoped to the connection string and certificate they were read with, so
+ * users with different privileges never see each other's results. They expire after the
+ * configured TTL, and the least recently used entry is dropped when the cache is full.
+ * Requests can skip the cache or force a reload with the metadataCache parameter.
+ */
+public class MetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+
+    private static final long TTL_MS = EnvironmentConfig.getInt("MONGO_METADATA_CACHE_TTL_SECONDS", 30) * 1000L;
+    private static final int MAX_SIZE = EnvironmentConfig.getInt("MONGO_METADATA_CACHE_MAX_SIZE", 512);
+
+    /**
+     * How a request uses the cache.
+     */
+    public enum Mode {
+        /** Return a fresh cached result if there is one */
+        USE,
+        /** Go to the server and leave the cache alone */
+        BYPASS,
+        /** Go to the server and replace the cached result */
+        REFRESH;
+
+        static Mode parse(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return USE;
+            }
+            switch (value.trim().toLowerCase()) {
+                case "bypass":
+                case "off":
+                    return BYPASS;
+                case "refresh":
+                    return REFRESH;
+                default:
+                    return USE;
+            }
+        }
+    }
+
+    /**
+     * Loads the result on a cache miss.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        List<Bson> load() throws Exception;
+    }
+
+    /**
+     * A result and where it came from: hit, miss, refresh or bypass.
+     */
+    public static final class Lookup {
+        public final List<Bson> results;
+        public final String status;
+        public final long ageMs;
+
+        Lookup(List<Bson> results, String status, long ageMs) {
+            this.results = results;
+            this.status = status;
+            this.ageMs = ageMs;
+        }
+
+        /**
+         * JSON describing this lookup, with the cache-wide hit ratio.
+         */
+        public String toJson() {
+            return "{\"status\": \"" + status + "\", \"ageMs\": " + ageMs + ", \"hitRatio\": " + hitRatio() + "}";
+        }
+    }
+
+    private static final class Entry {
+        final List<Bson> results;
+        final long loadedAt;
+
+        Entry(List<Bson> results, long loadedAt) {
+            this.results = results;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    // Access-ordered so that the eldest entry is the least recently used
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > MAX_SIZE) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static long hits;
+    private static long misses;
+    private static long expirations;
+    private static long evictions;
+    private static long bypasses;
+    private static long refreshes;
+
+    private MetadataCache() {
+    }
+
+    /**
+     * Scope for results read with the given connection settings.
+     */
+    public static String scope(String connectionString, String certificateId) {
+        String normalizedCertificate = certificateId == null ? "" : certificateId.trim();
+        return (connectionString == null ? "" : connectionString.trim()) + "\u0000" + normalizedCertificate;
+    }
+
+    /**
+     * Get the result for key from the cache, or load it. Requests without a cache scope,
+     * such as those not bound to a connection, always load.
+     *
+     * Cached results are shared between requests and must not be modified.
+     */
+    public static Lookup get(OperationContext context, String key, Loader loader) throws Exception {
+        String scope = context.getCacheScope();
+        Mode mode = context.getMetadataCacheMode();
+        if (scope == null || mode == Mode.BYPASS || TTL_MS <= 0) {
+            synchronized (MetadataCache.class) {
+                bypasses++;
+            }
+            return new Lookup(loader.load(), "bypass", 0);
+        }
+
+        String fullKey = scope + "\u0000" + key;
+        if (mode == Mode.USE) {
+            synchronized (MetadataCache.class) {
+                Entry entry = entries.get(fullKey);
+                long now = System.currentTimeMillis();
+                if (entry != null && now - entry.loadedAt < TTL_MS) {
+                    hits++;
+                    return new Lookup(entry.results, "hit", now - entry.loadedAt);
+                }
+                if (entry != null) {
+                    entries.remove(fullKey);
+                    expirations++;
+                }
+                misses++;
+            }
+        } else {
+            synchronized (MetadataCache.class) {
+                refreshes++;
+            }
+        }
+
+        // Load outside the lock; concurrent misses for the same key each go to the server once
+        List<Bson> results = Collections.unmodifiableList(loader.load());
+        synchronized (MetadataCache.class) {
+            entries.put(fullKey, new Entry(results, System.currentTimeMillis()));
+        }
+        logger.info("Metadata cache {} for {}", mode == Mode.REFRESH ? "refresh" : "miss", key);
+        return new Lookup(results, mode == Mode.REFRESH ? "refresh" : "miss", 0);
+    }
+
+    private static synchronized double hitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    /**
+     * JSON statistics for the cache.
+     */
+    public static synchronized String getStatsJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"size\": ").append(entries.size()).append(",");
+        json.append("\"maxSize\": ").append(MAX_SIZE).append(",");
+        json.append("\"ttlSeconds\": ").append(TTL_MS / 1000).append(",");
+        json.append("\"hits\": ").append(hits).append(",");
+        json.append("\"misses\": ").append(misses).append(",");
+        json.append("\"expirations\": ").append(expirations).append(",");
+        json.append("\"evictions\": ").append(evictions).append(",");
+        json.append("\"refreshes\": ").append(refreshes).append(",");
+        json.append("\"bypasses\": ").append(bypasses).append(",");
+        json.append("\"hitRatio\": ").append(hitRatio());
+        json.append("}");
+        return json.toString();
+    }
+}
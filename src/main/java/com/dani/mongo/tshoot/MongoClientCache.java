@@ -0,0 +1,337 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.client.MongoClient;
+
+/**
+ * Process-wide cache of MongoClient instances used for non-session requests.
+ *
+ * Clients are keyed by connection string and certificate ID, reference counted while
+ * in use, and closed once they have been idle for longer than the configured timeout
+ * or when the cache has to make room for a new cluster.
+ *
+ * Creating and closing clients happens outside the cache lock: closing sends endSessions
+ * to the server, so an unreachable cluster must not stall requests for the other ones.
+ */
+public class MongoClientCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoClientCache.class);
+
+    private static final int MAX_SIZE = EnvironmentConfig.getInt("MONGO_CLIENT_CACHE_MAX_SIZE", 16);
+    private static final long IDLE_TIMEOUT_MS = EnvironmentConfig.getInt("MONGO_CLIENT_CACHE_IDLE_SECONDS", 300) * 1000L;
+    private static final long EVICTION_INTERVAL_MS = 30_000L;
+
+    // Access-ordered so that iteration starts with the least recently used entry
+    private static final Map<ClientKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<MongoClient, CacheEntry> entriesByClient = new IdentityHashMap<>();
+
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+    private static long uncachedCreations;
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mongo-client-cache-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        evictor.scheduleWithFixedDelay(MongoClientCache::evictIdleClients,
+                EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private MongoClientCache() {
+    }
+
+    /**
+     * Get a client for the given cluster, creating one if needed. Every call must be
+     * paired with a call to {@link #release(MongoClient)}.
+     */
+    public static MongoClient acquire(String connectionString, String certificateId) throws Exception {
+        ClientKey key = new ClientKey(normalizeConnectionString(connectionString), normalizeCertificateId(certificateId));
+
+        CacheEntry victim = null;
+        synchronized (MongoClientCache.class) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null) {
+                entry.refCount++;
+                entry.lastUsed = System.currentTimeMillis();
+                hits++;
+                logger.info("Client cache hit (refCount={})", entry.refCount);
+                return entry.client;
+            }
+            misses++;
+            if (entries.size() >= MAX_SIZE) {
+                victim = removeLeastRecentlyUsedIdle();
+            }
+        }
+        if (victim != null) {
+            logger.info("Evicting least recently used client to make room");
+            closeQuietly(victim.client);
+        }
+
+        MongoClient client = createClient(key);
+        MongoClient duplicate = null;
+        try {
+            synchronized (MongoClientCache.class) {
+                CacheEntry entry = entries.get(key);
+                if (entry != null) {
+                    // Another request cached a client for the same cluster while this one was created
+                    entry.refCount++;
+                    entry.lastUsed = System.currentTimeMillis();
+                    duplicate = client;
+                    return entry.client;
+                }
+                if (entries.size() >= MAX_SIZE) {
+                    // Every cached client is in use, hand out a client that is closed on release
+                    uncachedCreations++;
+                    logger.warn("Client cache full ({} entries in use), created uncached client", entries.size());
+                    entry = new CacheEntry(key, client, false);
+                    entry.refCount = 1;
+                    entriesByClient.put(client, entry);
+                    return client;
+                }
+                entry = new CacheEntry(key, client, true);
+                entry.refCount = 1;
+                entries.put(key, entry);
+                entriesByClient.put(client, entry);
+                logger.info("Client cache miss, cached new client ({} entries)", entries.size());
+                return client;
+            }
+        } finally {
+            if (duplicate != null) {
+                closeQuietly(duplicate);
+            }
+        }
+    }
+
+    /**
+     * Take an additional reference on a client obtained from {@link #acquire(String, String)},
+     * for work that outlives the request (such as an open cursor). Returns false if the
+     * client is not managed by the cache.
+     */
+    public static boolean retain(MongoClient client) {
+        synchronized (MongoClientCache.class) {
+            CacheEntry entry = entriesByClient.get(client);
+            if (entry == null) {
+                return false;
+            }
+            entry.refCount++;
+            entry.lastUsed = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * Release a client obtained from {@link #acquire(String, String)}. Clients that are
+     * not tracked by the cache, or were handed out while the cache was full, are closed
+     * once their last reference is released.
+     */
+    public static void release(MongoClient client) {
+        if (client == null) {
+            return;
+        }
+        synchronized (MongoClientCache.class) {
+            CacheEntry entry = entriesByClient.get(client);
+            if (entry != null) {
+                entry.refCount = Math.max(0, entry.refCount - 1);
+                entry.lastUsed = System.currentTimeMillis();
+                if (entry.cached || entry.refCount > 0) {
+                    return;
+                }
+                entriesByClient.remove(client);
+            }
+        }
+        closeQuietly(client);
+    }
+
+    /**
+     * Drop every cached client that uses the given certificate. Idle clients are closed
+     * now; clients still referenced by requests, cursors or workloads are closed when their
+     * last reference is released.
+     */
+    public static void invalidateCertificate(String certificateId) {
+        String normalized = normalizeCertificateId(certificateId);
+        List<MongoClient> toClose = new ArrayList<>();
+        synchronized (MongoClientCache.class) {
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CacheEntry entry = iterator.next();
+                if (normalized.equals(entry.key.certificateId)) {
+                    iterator.remove();
+                    evictions++;
+                    if (entry.refCount == 0) {
+                        entriesByClient.remove(entry.client);
+                        toClose.add(entry.client);
+                    } else {
+                        entry.cached = false;
+                    }
+                }
+            }
+        }
+        toClose.forEach(MongoClientCache::closeQuietly);
+    }
+
+    /**
+     * Number of clients currently in the cache.
+     */
+    public static int size() {
+        synchronized (MongoClientCache.class) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Build the JSON statistics object for the cache.
+     */
+    public static String getStatsJson() {
+        synchronized (MongoClientCache.class) {
+            int inUse = 0;
+            for (CacheEntry entry : entries.values()) {
+                if (entry.refCount > 0) {
+                    inUse++;
+                }
+            }
+            long lookups = hits + misses;
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"size\": ").append(entries.size()).append(",");
+            json.append("\"maxSize\": ").append(MAX_SIZE).append(",");
+            json.append("\"inUse\": ").append(inUse).append(",");
+            json.append("\"idleTimeoutMs\": ").append(IDLE_TIMEOUT_MS).append(",");
+            json.append("\"hits\": ").append(hits).append(",");
+            json.append("\"misses\": ").append(misses).append(",");
+            json.append("\"evictions\": ").append(evictions).append(",");
+            json.append("\"uncachedCreations\": ").append(uncachedCreations).append(",");
+            json.append("\"hitRatio\": ").append(lookups == 0 ? 0.0 : (double) hits / lookups);
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Close every cached client. Called when the application is stopped.
+     */
+    public static void shutdown() {
+        evictor.shutdownNow();
+        List<MongoClient> toClose;
+        synchronized (MongoClientCache.class) {
+            toClose = new ArrayList<>(entriesByClient.keySet());
+            entries.clear();
+            entriesByClient.clear();
+        }
+        toClose.forEach(MongoClientCache::closeQuietly);
+        logger.info("Client cache shut down");
+    }
+
+    private static void evictIdleClients() {
+        long now = System.currentTimeMillis();
+        List<MongoClient> toClose = new ArrayList<>();
+        synchronized (MongoClientCache.class) {
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CacheEntry entry = iterator.next();
+                if (entry.refCount == 0 && now - entry.lastUsed > IDLE_TIMEOUT_MS) {
+                    iterator.remove();
+                    entriesByClient.remove(entry.client);
+                    evictions++;
+                    logger.info("Evicting idle client (idle {}ms)", now - entry.lastUsed);
+                    toClose.add(entry.client);
+                }
+            }
+        }
+        toClose.forEach(MongoClientCache::closeQuietly);
+    }
+
+    // Caller must hold the class lock and close the returned entry's client after releasing it
+    private static CacheEntry removeLeastRecentlyUsedIdle() {
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            if (entry.refCount == 0) {
+                iterator.remove();
+                entriesByClient.remove(entry.client);
+                evictions++;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static MongoClient createClient(ClientKey key) throws Exception {
+        return MongoClientFactory.create(key.connectionString, key.certificateId);
+    }
+
+    private static String normalizeConnectionString(String connectionString) {
+        if (connectionString == null || connectionString.trim().isEmpty()) {
+            throw new IllegalArgumentException("Connection string is required");
+        }
+        // Parse up front so an invalid string fails before it reaches the cache
+        return new ConnectionString(connectionString.trim()).getConnectionString();
+    }
+
+    private static String normalizeCertificateId(String certificateId) {
+        return certificateId == null ? "" : certificateId.trim();
+    }
+
+    private static void closeQuietly(MongoClient client) {
+        try {
+            client.close();
+        } catch (Exception e) {
+            logger.warn("Error closing MongoDB client: {}", e.getMessage());
+        }
+    }
+
+    private static final class ClientKey {
+        final String connectionString;
+        final String certificateId;
+
+        ClientKey(String connectionString, String certificateId) {
+            this.connectionString = connectionString;
+            this.certificateId = certificateId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientKey)) return false;
+            ClientKey other = (ClientKey) o;
+            return connectionString.equals(other.connectionString) && certificateId.equals(other.certificateId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(connectionString, certificateId);
+        }
+    }
+
+    private static final class CacheEntry {
+        final ClientKey key;
+        final MongoClient client;
+        // False once the entry has left the cache; the client is then closed on its last release
+        boolean cached;
+        int refCount;
+        long lastUsed = System.currentTimeMillis();
+
+        CacheEntry(ClientKey key, MongoClient client, boolean cached) {
+            this.key = key;
+            this.client = client;
+            this.cached = cached;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.dani.mongo.tshoot;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.connection.ClusterConnectionMode;
+import com.mongodb.connection.ClusterSettings;
+
+/**
+ * Single place where the tool builds MongoClient instances, so every client gets the same
+ * TLS handling, topology and connection pool monitoring regardless of which feature created it.
+ */
+public class MongoClientFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoClientFactory.class);
+
+    private MongoClientFactory() {
+    }
+
+    /**
+     * Create a client for a connection string, trusting the uploaded certificate if one is given.
+     */
+    public static MongoClient create(String connectionString, String certificateId) throws Exception {
+        return build(settingsBuilder(connectionString, certificateId));
+    }
+
+    /**
+     * Create a client connected directly to one member of the cluster described by the
+     * connection string, bypassing server discovery.
+     */
+    public static MongoClient createDirect(String connectionString, String certificateId, ServerAddress address)
+            throws Exception {
+        MongoClientSettings.Builder builder = settingsBuilder(connectionString, certificateId);
+        ClusterSettings original = builder.build().getClusterSettings();
+
+        logger.info("Creating direct connection to {}", address);
+        // Start from fresh cluster settings so an SRV host or replica set name does not conflict with SINGLE mode
+        builder.applyToClusterSettings(cluster -> cluster.applySettings(ClusterSettings.builder()
+                .hosts(Collections.singletonList(address))
+                .mode(ClusterConnectionMode.SINGLE)
+                .serverSelectionTimeout(original.getServerSelectionTimeout(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                .clusterListenerList(original.getClusterListeners())
+                .build()));
+        return build(builder);
+    }
+
+    /**
+     * Build the client with its own topology and connection pool monitors.
+     */
+    private static MongoClient build(MongoClientSettings.Builder builder) {
+        TopologyMonitor topologyMonitor = TopologyMonitor.attach(builder);
+        ConnectionPoolMonitor poolMonitor = ConnectionPoolMonitor.attach(builder);
+        MongoClient client = MongoClients.create(builder.build());
+        TopologyMonitor.register(client, topologyMonitor);
+        ConnectionPoolMonitor.register(client, poolMonitor);
+        return client;
+    }
+
+    /**
+     * Build client settings from a connection string, applying the SSL context of the
+     * uploaded certificate if one is given and registering the command listener.
+     */
+    public static MongoClientSettings.Builder settingsBuilder(String connectionString, String certificateId)
+            throws Exception {
+        ConnectionString parsed = new ConnectionString(connectionString);
+        MongoClientSettings.Builder builder = MongoClientSettings.builder()
+                .applyConnectionString(parsed);
+        CommandTrace.attach(builder);
+
+        if (certificateId != null && !certificateId.trim().isEmpty()) {
+            SSLContext sslContext = CertificateManager.getSSLContext(certificateId.trim());
+            builder.applyToSslSettings(ssl -> {
+                ssl.enabled(true);
+                ssl.context(sslContext);
+            });
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,547 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.json.JsonReader;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * Parser for the subset of mongosh syntax the tool executes.
+ *
+ * A command is read in a single pass into a {@link Plan}: an optional database from
+ * db.getSiblingDB(), an optional collection, the chain of method calls with their decoded
+ * arguments, and trailing property accesses such as db.serverStatus().mem. Object and
+ * array literals are handed to the BSON JSON reader, which understands the shell forms
+ * (unquoted keys, single quotes, ObjectId(), ISODate(), ...), so nested pipelines such as
+ * $lookup sub-pipelines and $facet parse like any other value.
+ *
+ * Plans are cached by command text in an LRU, so repeated commands skip parsing.
+ */
+public final class MongoshParser {
+
+    private static final int CACHE_SIZE = EnvironmentConfig.getInt("MONGO_MONGOSH_PLAN_CACHE_SIZE", 256);
+
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+    @SuppressWarnings("rawtypes")
+    private static final Codec<List> LIST_CODEC = MongoClientSettings.getDefaultCodecRegistry().get(List.class);
+    private static final Codec<Document> DOCUMENT_CODEC =
+            MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+    private static final Map<String, Plan> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private static long hits;
+    private static long misses;
+
+    /**
+     * What a command addresses.
+     */
+    public enum Kind {
+        /** show dbs, show collections, ... */
+        SHOW,
+        /** A method on the database, such as db.serverStatus() */
+        DATABASE,
+        /** A method chain on a collection, such as db.orders.find().limit(5) */
+        COLLECTION
+    }
+
+    /**
+     * One method call in a chain with its decoded arguments: Document for objects, List for
+     * arrays, String, Integer/Long/Double, Boolean or null.
+     */
+    public static final class Call {
+        public final String name;
+        public final List<Object> args;
+
+        Call(String name, List<Object> args) {
+            this.name = name;
+            this.args = args;
+        }
+
+        public int argCount() {
+            return args.size();
+        }
+
+        /**
+         * The argument at index as a document, or null if there is no such argument.
+         */
+        public Document documentArg(int index) {
+            Object value = index < args.size() ? args.get(index) : null;
+            if (value == null || value instanceof Document) {
+                return (Document) value;
+            }
+            throw new IllegalArgumentException(name + "() argument " + (index + 1) + " must be a document");
+        }
+
+        public String stringArg(int index) {
+            Object value = index < args.size() ? args.get(index) : null;
+            if (value instanceof String) {
+                return (String) value;
+            }
+            throw new IllegalArgumentException(name + "() argument " + (index + 1) + " must be a string");
+        }
+
+        public Number numberArg(int index) {
+            Object value = index < args.size() ? args.get(index) : null;
+            if (value instanceof Number) {
+                return (Number) value;
+            }
+            throw new IllegalArgumentException(name + "() argument " + (index + 1) + " must be a number");
+        }
+    }
+
+    /**
+     * A parsed command. Plans are shared between requests through the cache, so neither the
+     * plan nor the documents in its arguments may be modified; copy a document before
+     * adding fields to it.
+     */
+    public static final class Plan {
+        public final Kind kind;
+        /** show target (dbs, collections, ...) for SHOW plans */
+        public final String showTarget;
+        /** Database from db.getSiblingDB(), or null for the request's database */
+        public final String database;
+        public final String collection;
+        public final List<Call> calls;
+        /** Property accesses after a database method, e.g. [mem] for db.serverStatus().mem */
+        public final List<String> properties;
+
+        Plan(Kind kind, String showTarget, String database, String collection, List<Call> calls,
+                List<String> properties) {
+            this.kind = kind;
+            this.showTarget = showTarget;
+            this.database = database;
+            this.collection = collection;
+            this.calls = Collections.unmodifiableList(calls);
+            this.properties = Collections.unmodifiableList(properties);
+        }
+
+        /**
+         * The first call, which names the operation (find, aggregate, serverStatus, ...).
+         */
+        public Call operation() {
+            return calls.get(0);
+        }
+    }
+
+    private MongoshParser() {
+    }
+
+    /**
+     * Parse a command, using the cached plan if the same text was parsed before.
+     */
+    public static Plan parse(String command) {
+        String text = command.trim();
+        synchronized (cache) {
+            Plan plan = cache.get(text);
+            if (plan != null) {
+                hits++;
+                return plan;
+            }
+            misses++;
+        }
+        // Parse outside the lock; two threads parsing the same new command both get a valid plan
+        Plan plan = parseUncached(text);
+        synchronized (cache) {
+            cache.put(text, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Parse a trimmed command without consulting or filling the cache.
+     */
+    static Plan parseUncached(String text) {
+        return new Parser(text).parseCommand();
+    }
+
+    /**
+     * JSON statistics for the plan cache.
+     */
+    public static String getCacheStatsJson() {
+        synchronized (cache) {
+            long lookups = hits + misses;
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"size\": ").append(cache.size()).append(",");
+            json.append("\"maxSize\": ").append(CACHE_SIZE).append(",");
+            json.append("\"hits\": ").append(hits).append(",");
+            json.append("\"misses\": ").append(misses).append(",");
+            json.append("\"hitRatio\": ").append(lookups == 0 ? 0.0 : (double) hits / lookups);
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Recursive-descent parser over the command text. The scanner is folded into the
+     * parser: it works on indexes into the text and only allocates for names and values.
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Plan parseCommand() {
+            skipWhitespace();
+            if (text.startsWith("show", pos) && pos + 4 < text.length()
+                    && Character.isWhitespace(text.charAt(pos + 4))) {
+                pos += 4;
+                skipWhitespace();
+                String target = readIdentifier();
+                finish();
+                return new Plan(Kind.SHOW, target, null, null, new ArrayList<>(), new ArrayList<>());
+            }
+
+            if (!"db".equals(peekIdentifier())) {
+                throw error("Command must start with 'db.' or 'show'");
+            }
+            readIdentifier();
+
+            String database = null;
+            StringBuilder collection = null;
+            List<Call> calls = new ArrayList<>();
+            List<String> properties = new ArrayList<>();
+
+            while (true) {
+                skipWhitespace();
+                if (atEnd()) {
+                    break;
+                }
+                String member;
+                if (peek() == '.') {
+                    pos++;
+                    skipWhitespace();
+                    member = readIdentifier();
+                } else if (peek() == '[') {
+                    // db["my-collection"] addresses names that are not identifiers
+                    pos++;
+                    skipWhitespace();
+                    member = readString();
+                    skipWhitespace();
+                    expect(']');
+                } else {
+                    break;
+                }
+                skipWhitespace();
+                boolean isCall = !atEnd() && peek() == '(';
+                List<Object> args = isCall ? readArguments() : null;
+
+                if (!calls.isEmpty()) {
+                    if (isCall && properties.isEmpty() && collection != null) {
+                        calls.add(new Call(member, args));
+                    } else if (!isCall && collection == null) {
+                        properties.add(member);
+                    } else {
+                        throw error(isCall ? "Unexpected call to " + member + "()" : "Unexpected property " + member);
+                    }
+                } else if (collection == null && isCall && "getSiblingDB".equals(member)) {
+                    if (database != null) {
+                        throw error("getSiblingDB() can only be used once");
+                    }
+                    database = singleStringArgument(member, args);
+                } else if (collection == null && isCall && "getCollection".equals(member)) {
+                    collection = new StringBuilder(singleStringArgument(member, args));
+                } else if (isCall) {
+                    calls.add(new Call(member, args));
+                } else if (collection == null) {
+                    collection = new StringBuilder(member);
+                } else {
+                    // db.system.profile addresses the collection "system.profile"
+                    collection.append('.').append(member);
+                }
+            }
+            finish();
+
+            if (calls.isEmpty()) {
+                throw error("Incomplete command: no method called");
+            }
+            if (collection == null) {
+                return new Plan(Kind.DATABASE, null, database, null, calls, properties);
+            }
+            return new Plan(Kind.COLLECTION, null, database, collection.toString(), calls, properties);
+        }
+
+        private String singleStringArgument(String method, List<Object> args) {
+            if (args.size() != 1 || !(args.get(0) instanceof String)) {
+                throw error(method + "() takes a single string argument");
+            }
+            return (String) args.get(0);
+        }
+
+        private List<Object> readArguments() {
+            expect('(');
+            List<Object> args = new ArrayList<>();
+            skipWhitespace();
+            if (!atEnd() && peek() == ')') {
+                pos++;
+                return args;
+            }
+            while (true) {
+                skipWhitespace();
+                args.add(readValue());
+                skipWhitespace();
+                if (atEnd()) {
+                    throw error("Missing ')'");
+                }
+                char c = text.charAt(pos++);
+                if (c == ')') {
+                    return args;
+                }
+                if (c != ',') {
+                    pos--;
+                    throw error("Expected ',' or ')'");
+                }
+            }
+        }
+
+        private Object readValue() {
+            if (atEnd()) {
+                throw error("Missing value");
+            }
+            char c = peek();
+            if (c == '{') {
+                int start = pos;
+                skipBalanced();
+                return DOCUMENT_CODEC.decode(new JsonReader(text.substring(start, pos)), DECODER_CONTEXT);
+            }
+            if (c == '[') {
+                int start = pos;
+                skipBalanced();
+                return LIST_CODEC.decode(new JsonReader(text.substring(start, pos)), DECODER_CONTEXT);
+            }
+            if (c == '"' || c == '\'') {
+                return readString();
+            }
+            if (c == '-' || c == '+' || c == '.' || Character.isDigit(c)) {
+                return readNumber();
+            }
+            if (isIdentifierStart(c)) {
+                int start = pos;
+                String word = readIdentifier();
+                switch (word) {
+                    case "true": return Boolean.TRUE;
+                    case "false": return Boolean.FALSE;
+                    case "null":
+                    case "undefined":
+                        return null;
+                    default:
+                        break;
+                }
+                // Shell constructors such as ObjectId("..."), ISODate("...") or new Date(...)
+                skipWhitespace();
+                if ("new".equals(word)) {
+                    readIdentifier();
+                    skipWhitespace();
+                }
+                if (!atEnd() && peek() == '(') {
+                    skipBalanced();
+                    Document wrapper = Document.parse("{\"v\": " + text.substring(start, pos) + "}");
+                    return wrapper.get("v");
+                }
+                pos = start;
+                throw error("Unsupported value '" + word + "'");
+            }
+            throw error("Unexpected character '" + c + "'");
+        }
+
+        /**
+         * Advance past a bracketed literal, honouring nesting and quoted strings. Every
+         * closing bracket must match the innermost open one.
+         */
+        private void skipBalanced() {
+            StringBuilder open = new StringBuilder();
+            int start = pos;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '"' || c == '\'') {
+                    skipString(c);
+                    continue;
+                }
+                if (c == '{' || c == '[' || c == '(') {
+                    open.append(c == '{' ? '}' : c == '[' ? ']' : ')');
+                } else if (c == '}' || c == ']' || c == ')') {
+                    if (open.length() == 0 || open.charAt(open.length() - 1) != c) {
+                        throw error("Unexpected '" + c + "'");
+                    }
+                    open.setLength(open.length() - 1);
+                    if (open.length() == 0) {
+                        pos++;
+                        return;
+                    }
+                }
+                pos++;
+            }
+            pos = start;
+            throw error("Unbalanced brackets");
+        }
+
+        private void skipString(char quote) {
+            int start = pos;
+            pos++;
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '\\') {
+                    pos++;
+                } else if (c == quote) {
+                    return;
+                }
+            }
+            pos = start;
+            throw error("Unterminated string");
+        }
+
+        private String readString() {
+            if (atEnd() || (peek() != '"' && peek() != '\'')) {
+                throw error("Expected a string");
+            }
+            char quote = text.charAt(pos++);
+            int start = pos;
+            StringBuilder value = null;
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == quote) {
+                    return value == null ? text.substring(start, pos - 1) : value.toString();
+                }
+                if (c == '\\') {
+                    if (value == null) {
+                        value = new StringBuilder().append(text, start, pos - 1);
+                    }
+                    if (pos >= text.length()) {
+                        break;
+                    }
+                    char escaped = text.charAt(pos++);
+                    switch (escaped) {
+                        case 'n': value.append('\n'); break;
+                        case 't': value.append('\t'); break;
+                        case 'r': value.append('\r'); break;
+                        case 'b': value.append('\b'); break;
+                        case 'f': value.append('\f'); break;
+                        case 'u':
+                            if (pos + 4 > text.length()) {
+                                throw error("Invalid unicode escape");
+                            }
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: value.append(escaped); break;
+                    }
+                } else if (value != null) {
+                    value.append(c);
+                }
+            }
+            pos = start - 1;
+            throw error("Unterminated string");
+        }
+
+        private Number readNumber() {
+            int start = pos;
+            if (peek() == '-' || peek() == '+') {
+                pos++;
+            }
+            boolean decimal = false;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (Character.isDigit(c)) {
+                    pos++;
+                } else if (c == '.' || c == 'e' || c == 'E'
+                        || ((c == '-' || c == '+') && (text.charAt(pos - 1) == 'e' || text.charAt(pos - 1) == 'E'))) {
+                    decimal = true;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            String number = text.substring(start, pos);
+            try {
+                if (decimal) {
+                    return Double.parseDouble(number);
+                }
+                long value = Long.parseLong(number);
+                return value == (int) value ? (Number) (int) value : (Number) value;
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("Invalid number '" + number + "'");
+            }
+        }
+
+        private String peekIdentifier() {
+            int start = pos;
+            int end = start;
+            while (end < text.length() && (end == start ? isIdentifierStart(text.charAt(end))
+                    : isIdentifierPart(text.charAt(end)))) {
+                end++;
+            }
+            return text.substring(start, end);
+        }
+
+        private String readIdentifier() {
+            String identifier = peekIdentifier();
+            if (identifier.isEmpty()) {
+                throw error("Expected a name");
+            }
+            pos += identifier.length();
+            return identifier;
+        }
+
+        private void expect(char expected) {
+            if (atEnd() || peek() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+            pos++;
+        }
+
+        private void finish() {
+            skipWhitespace();
+            while (!atEnd() && peek() == ';') {
+                pos++;
+                skipWhitespace();
+            }
+            if (!atEnd()) {
+                throw error("Unexpected text '" + text.substring(pos, Math.min(text.length(), pos + 20)) + "'");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean atEnd() {
+            return pos >= text.length();
+        }
+
+        private char peek() {
+            return text.charAt(pos);
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return Character.isLetter(c) || c == '_' || c == '$';
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+    }
+}
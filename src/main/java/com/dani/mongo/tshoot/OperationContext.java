@@ -0,0 +1,313 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.DistinctIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.ListCollectionNamesIterable;
+import com.mongodb.client.ListDatabasesIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.InsertManyOptions;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Per-request settings for driver operations: the maxTimeMS limit and a comment that tags
+ * every operation so the request can be found in currentOp and cancelled.
+ *
+ * Contexts of in-flight requests are tracked by request ID for the cancel action.
+ */
+public class OperationContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(OperationContext.class);
+    private static final String REQUEST_ATTRIBUTE = OperationContext.class.getName();
+    private static final String COMMENT_PREFIX = "tshoot:";
+
+    public static final long DEFAULT_MAX_TIME_MS = EnvironmentConfig.getInt("MONGO_DEFAULT_MAX_TIME_MS", 60_000);
+    public static final long MAX_TIME_MS_LIMIT = EnvironmentConfig.getInt("MONGO_MAX_TIME_MS_LIMIT", 3_600_000);
+
+    private static final Map<String, OperationContext> inFlight = new ConcurrentHashMap<>();
+    private static final ThreadLocal<OperationContext> current = new ThreadLocal<>();
+
+    private final String requestId;
+    private final String action;
+    private final long maxTimeMs;
+    private final MetadataCache.Mode metadataCacheMode;
+    private final long startedAt = System.currentTimeMillis();
+    private final CommandTrace trace;
+    private volatile MongoClient client;
+    private volatile String cacheScope;
+    private volatile Thread worker;
+    private volatile boolean cancelled;
+
+    private OperationContext(String requestId, String action, long maxTimeMs, MetadataCache.Mode metadataCacheMode) {
+        this.requestId = requestId;
+        this.action = action;
+        this.maxTimeMs = maxTimeMs;
+        this.metadataCacheMode = metadataCacheMode;
+        this.trace = new CommandTrace(requestId, action);
+    }
+
+    /**
+     * Create the context for a request from its requestId, maxTimeMS and metadataCache parameters, and
+     * register it as in flight until {@link #complete()} is called.
+     */
+    public static OperationContext create(HttpServletRequest request) {
+        return create(request, DEFAULT_MAX_TIME_MS);
+    }
+
+    /**
+     * Create the context for a request whose operations default to defaultMaxTimeMs when the
+     * request has no maxTimeMS parameter.
+     */
+    public static OperationContext create(HttpServletRequest request, long defaultMaxTimeMs) {
+        String requestId = request.getParameter("requestId");
+        if (requestId == null || requestId.trim().isEmpty() || inFlight.containsKey(requestId.trim())) {
+            requestId = UUID.randomUUID().toString();
+        }
+
+        long maxTimeMs = defaultMaxTimeMs;
+        String maxTimeParam = request.getParameter("maxTimeMS");
+        if (maxTimeParam != null && !maxTimeParam.trim().isEmpty()) {
+            try {
+                // 0 disables the limit
+                maxTimeMs = Math.max(0, Math.min(MAX_TIME_MS_LIMIT, Long.parseLong(maxTimeParam.trim())));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid maxTimeMS: {}, using default {}", maxTimeParam, defaultMaxTimeMs);
+            }
+        }
+
+        OperationContext context = new OperationContext(requestId.trim(), request.getParameter("action"), maxTimeMs,
+                MetadataCache.Mode.parse(request.getParameter("metadataCache")));
+        inFlight.put(context.requestId, context);
+        request.setAttribute(REQUEST_ATTRIBUTE, context);
+        return context;
+    }
+
+    /**
+     * Get the context created for a request.
+     */
+    public static OperationContext from(HttpServletRequest request) {
+        return (OperationContext) request.getAttribute(REQUEST_ATTRIBUTE);
+    }
+
+    /**
+     * The context of the request whose handler runs on the current thread, or null.
+     */
+    public static OperationContext current() {
+        return current.get();
+    }
+
+    public static OperationContext get(String requestId) {
+        return requestId == null ? null : inFlight.get(requestId);
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public long getMaxTimeMs() {
+        return maxTimeMs;
+    }
+
+    public CommandTrace getTrace() {
+        return trace;
+    }
+
+    public MetadataCache.Mode getMetadataCacheMode() {
+        return metadataCacheMode;
+    }
+
+    /**
+     * Scope of the connection the request is bound to, see {@link MetadataCache#scope}.
+     */
+    public String getCacheScope() {
+        return cacheScope;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Remember the client the request runs its operations on, so cancel can kill them, and
+     * the connection settings it was created with, which scope cached metadata.
+     */
+    public void bindClient(MongoClient client, String connectionString, String certificateId) {
+        this.client = client;
+        this.cacheScope = MetadataCache.scope(connectionString, certificateId);
+    }
+
+    /**
+     * Set the thread running the request's handler, or null once it has finished. Must be
+     * called on that thread, which then reports this context as {@link #current()}.
+     */
+    public void attachWorker(Thread worker) {
+        this.worker = worker;
+        if (worker != null) {
+            current.set(this);
+        } else {
+            current.remove();
+        }
+    }
+
+    /**
+     * Mark the request as finished.
+     */
+    public void complete() {
+        inFlight.remove(requestId);
+    }
+
+    /**
+     * Kill the request's operations on the server and interrupt the thread running it.
+     * Returns the number of server operations killed.
+     */
+    public int cancel() {
+        cancelled = true;
+        int killed = 0;
+        MongoClient boundClient = client;
+        if (boundClient != null) {
+            MongoDatabase admin = boundClient.getDatabase("admin");
+            List<Document> pipeline = Arrays.asList(
+                    new Document("$currentOp", new Document("allUsers", true)),
+                    new Document("$match", new Document("command.comment", getComment())));
+            List<Object> opIds = new ArrayList<>();
+            for (Document op : admin.aggregate(pipeline).maxTime(10, TimeUnit.SECONDS)) {
+                opIds.add(op.get("opid"));
+            }
+            for (Object opId : opIds) {
+                try {
+                    admin.runCommand(new Document("killOp", 1).append("op", opId));
+                    killed++;
+                    logger.info("Killed operation {} of request {}", opId, requestId);
+                } catch (Exception e) {
+                    logger.warn("Failed to kill operation {} of request {}: {}", opId, requestId, e.getMessage());
+                }
+            }
+        }
+        Thread running = worker;
+        if (running != null) {
+            running.interrupt();
+        }
+        return killed;
+    }
+
+    /**
+     * JSON description of the in-flight request.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"requestId\": \"").append(JsonUtil.escape(requestId)).append("\",");
+        json.append("\"action\": \"").append(JsonUtil.escape(action)).append("\",");
+        json.append("\"maxTimeMS\": ").append(maxTimeMs).append(",");
+        json.append("\"runningMs\": ").append(System.currentTimeMillis() - startedAt).append(",");
+        json.append("\"cancelled\": ").append(cancelled);
+        json.append("}");
+        return json.toString();
+    }
+
+    public static int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * JSON array describing every in-flight request.
+     */
+    public static String inFlightJson() {
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        for (OperationContext context : inFlight.values()) {
+            if (!first) json.append(",");
+            json.append(context.toJson());
+            first = false;
+        }
+        json.append("]");
+        return json.toString();
+    }
+
+    private String getComment() {
+        return COMMENT_PREFIX + requestId;
+    }
+
+    /**
+     * Add maxTimeMS and the request comment to a database command.
+     */
+    public Document command(Document command) {
+        if (maxTimeMs > 0 && !command.containsKey("maxTimeMS")) {
+            command.append("maxTimeMS", maxTimeMs);
+        }
+        if (!command.containsKey("comment")) {
+            command.append("comment", getComment());
+        }
+        return command;
+    }
+
+    public <T> FindIterable<T> apply(FindIterable<T> iterable) {
+        if (maxTimeMs > 0) {
+            iterable.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return iterable.comment(getComment());
+    }
+
+    public <T> AggregateIterable<T> apply(AggregateIterable<T> iterable) {
+        if (maxTimeMs > 0) {
+            iterable.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return iterable.comment(getComment());
+    }
+
+    public <T> DistinctIterable<T> apply(DistinctIterable<T> iterable) {
+        if (maxTimeMs > 0) {
+            iterable.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return iterable.comment(getComment());
+    }
+
+    public <T> ListIndexesIterable<T> apply(ListIndexesIterable<T> iterable) {
+        if (maxTimeMs > 0) {
+            iterable.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return iterable.comment(getComment());
+    }
+
+    public <T> ListDatabasesIterable<T> apply(ListDatabasesIterable<T> iterable) {
+        if (maxTimeMs > 0) {
+            iterable.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return iterable.comment(getComment());
+    }
+
+    public ListCollectionNamesIterable apply(ListCollectionNamesIterable iterable) {
+        if (maxTimeMs > 0) {
+            iterable.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return iterable.comment(getComment());
+    }
+
+    public CountOptions countOptions() {
+        CountOptions options = new CountOptions().comment(getComment());
+        if (maxTimeMs > 0) {
+            options.maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
+        }
+        return options;
+    }
+
+    public InsertManyOptions insertManyOptions() {
+        return new InsertManyOptions().comment(getComment());
+    }
+}
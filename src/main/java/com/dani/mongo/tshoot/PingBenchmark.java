@@ -0,0 +1,220 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.connection.ServerDescription;
+
+/**
+ * Runs ping commands from several concurrent workers and records their latency, to
+ * characterize round-trip time and its tail rather than a single sample.
+ */
+public class PingBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(PingBenchmark.class);
+
+    public static final int MAX_CONCURRENCY = 64;
+    public static final int MAX_DURATION_SECONDS = 300;
+    public static final long MAX_PINGS = 1_000_000L;
+    private static final int MAX_ERROR_MESSAGES = 10;
+
+    private PingBenchmark() {
+    }
+
+    /**
+     * Benchmark parameters. A run stops when totalPings have been sent or the duration has
+     * elapsed, whichever comes first.
+     */
+    public static final class Options {
+        public long totalPings = 1000;
+        public int concurrency = 4;
+        public int durationSeconds = 30;
+        public boolean perMember;
+    }
+
+    /**
+     * Latency and error counts collected for one target.
+     */
+    public static final class Result {
+        final String target;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final Map<String, LongAdder> errorMessages = new ConcurrentHashMap<>();
+        long elapsedNanos;
+
+        Result(String target) {
+            this.target = target;
+        }
+
+        void recordError(Exception e) {
+            errors.increment();
+            String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            if (errorMessages.size() < MAX_ERROR_MESSAGES || errorMessages.containsKey(message)) {
+                errorMessages.computeIfAbsent(message, key -> new LongAdder()).increment();
+            }
+        }
+
+        String toJson() {
+            double seconds = elapsedNanos / 1_000_000_000.0;
+            long successes = histogram.getCount();
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"target\": \"").append(JsonUtil.escape(target)).append("\",");
+            json.append("\"pings\": ").append(successes + errors.sum()).append(",");
+            json.append("\"successes\": ").append(successes).append(",");
+            json.append("\"errors\": ").append(errors.sum()).append(",");
+            json.append("\"elapsedMs\": ").append(elapsedNanos / 1_000_000).append(",");
+            json.append("\"throughputPerSec\": ").append(seconds > 0 ? Math.round(successes / seconds * 10) / 10.0 : 0.0).append(",");
+            json.append("\"latency\": ").append(histogram.toJson()).append(",");
+            json.append("\"errorMessages\": {");
+            boolean first = true;
+            for (Map.Entry<String, LongAdder> entry : errorMessages.entrySet()) {
+                if (!first) json.append(",");
+                json.append("\"").append(JsonUtil.escape(entry.getKey())).append("\": ").append(entry.getValue().sum());
+                first = false;
+            }
+            json.append("}");
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Run the benchmark against the client's cluster. With perMember set, each member is
+     * additionally benchmarked over its own direct connection at the same time.
+     *
+     * Pings carry the request's comment so they can be found with killOp, and workers stop
+     * as soon as the request is cancelled or its thread interrupted.
+     */
+    public static String run(MongoClient client, OperationContext context, String connectionString,
+            String certificateId, Options options) throws Exception {
+        logger.info("Starting ping benchmark: pings={}, concurrency={}, duration={}s, perMember={}",
+            options.totalPings, options.concurrency, options.durationSeconds, options.perMember);
+
+        if (!options.perMember) {
+            Result overall = benchmark(client, "cluster", context, options);
+            return "{\"overall\": " + overall.toJson() + "}";
+        }
+
+        // Make sure discovery has run so the member list is complete
+        client.getDatabase("admin").runCommand(context.command(new Document("ping", 1)));
+        List<ServerAddress> members = new ArrayList<>();
+        for (ServerDescription description : client.getClusterDescription().getServerDescriptions()) {
+            if (description.isOk()) {
+                members.add(description.getAddress());
+            }
+        }
+
+        List<MongoClient> directClients = new ArrayList<>();
+        try {
+            // Connect to every member before any run starts, so a failure does not wait for the others
+            for (ServerAddress member : members) {
+                directClients.add(MongoClientFactory.createDirect(connectionString, certificateId, member));
+            }
+            return benchmarkMembers(client, context, options, members, directClients);
+        } finally {
+            for (MongoClient direct : directClients) {
+                try {
+                    direct.close();
+                } catch (Exception e) {
+                    logger.warn("Error closing direct client: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static String benchmarkMembers(MongoClient client, OperationContext context, Options options,
+            List<ServerAddress> members, List<MongoClient> directClients) throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            // The cluster run goes through the normal client alongside the member runs
+            Future<Result> cluster = executor.submit(() -> benchmark(client, "cluster", context, options));
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < members.size(); i++) {
+                MongoClient direct = directClients.get(i);
+                String target = members.get(i).toString();
+                futures.add(executor.submit(() -> benchmark(direct, target, context, options)));
+            }
+
+            try {
+                Result allMembers = new Result("all members");
+                StringBuilder memberJson = new StringBuilder("[");
+                for (int i = 0; i < futures.size(); i++) {
+                    Result memberResult = futures.get(i).get();
+                    allMembers.histogram.merge(memberResult.histogram);
+                    allMembers.errors.add(memberResult.errors.sum());
+                    memberResult.errorMessages.forEach((message, count) ->
+                        allMembers.errorMessages.computeIfAbsent(message, key -> new LongAdder()).add(count.sum()));
+                    allMembers.elapsedNanos = Math.max(allMembers.elapsedNanos, memberResult.elapsedNanos);
+                    if (i > 0) memberJson.append(",");
+                    memberJson.append(memberResult.toJson());
+                }
+                memberJson.append("]");
+                return "{\"overall\": " + cluster.get().toJson() + ",\"allMembers\": " + allMembers.toJson()
+                    + ",\"members\": " + memberJson + "}";
+            } catch (Exception e) {
+                // Interrupt the runs, which in turn stop their workers, instead of closing on their deadline
+                executor.shutdownNow();
+                throw e;
+            }
+        }
+    }
+
+    private static Result benchmark(MongoClient client, String target, OperationContext context, Options options)
+            throws Exception {
+        Result result = new Result(target);
+        MongoDatabase admin = client.getDatabase("admin");
+        Document ping = context.command(new Document("ping", 1));
+        AtomicLong remaining = new AtomicLong(options.totalPings > 0 ? options.totalPings : Long.MAX_VALUE);
+
+        long start = System.nanoTime();
+        long deadline = start + options.durationSeconds * 1_000_000_000L;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<LatencyHistogram>> workers = new ArrayList<>();
+            for (int i = 0; i < options.concurrency; i++) {
+                workers.add(executor.submit(() -> {
+                    // Each worker records locally, histograms are merged once the run ends
+                    LatencyHistogram local = new LatencyHistogram();
+                    while (!context.isCancelled() && !Thread.currentThread().isInterrupted()
+                            && System.nanoTime() < deadline && remaining.getAndDecrement() > 0) {
+                        long pingStart = System.nanoTime();
+                        try {
+                            admin.runCommand(ping);
+                            local.recordNanos(System.nanoTime() - pingStart);
+                        } catch (Exception e) {
+                            result.recordError(e);
+                        }
+                    }
+                    return local;
+                }));
+            }
+            try {
+                for (Future<LatencyHistogram> worker : workers) {
+                    result.histogram.merge(worker.get());
+                }
+            } catch (Exception e) {
+                // Closing the executor would otherwise wait for every worker to reach the deadline
+                executor.shutdownNow();
+                throw e;
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+
+        logger.info("Ping benchmark against {} finished: {} ok, {} errors in {}ms",
+            target, result.histogram.getCount(), result.errors.sum(), result.elapsedNanos / 1_000_000);
+        return result;
+    }
+}
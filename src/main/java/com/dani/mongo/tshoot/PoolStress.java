@@ -0,0 +1,151 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+
+/**
+ * Runs more concurrent operations than the connection pool has connections, to reproduce
+ * checkout queueing and show how much of each operation's latency is spent waiting for a
+ * connection rather than on the server.
+ *
+ * The checkout wait and queue depth are read from the client's pool monitor, so the client
+ * should be dedicated to the run: on a shared client they would include other requests,
+ * which would also queue behind the stress.
+ */
+public class PoolStress {
+
+    private static final Logger logger = LoggerFactory.getLogger(PoolStress.class);
+
+    public static final int MAX_CONCURRENCY = 1024;
+    public static final int MAX_DURATION_SECONDS = 120;
+    private static final long SAMPLE_INTERVAL_MS = 100;
+
+    private PoolStress() {
+    }
+
+    /**
+     * Stress parameters. Without a collection every operation is a ping; with one it is a
+     * find with the given filter, limited to findLimit documents.
+     */
+    public static final class Options {
+        /** Concurrent operations, 0 for twice the pool's maxPoolSize */
+        public int concurrency;
+        public int durationSeconds = 10;
+        public String database = "admin";
+        public String collection;
+        public Document filter = new Document();
+        public int findLimit = 10;
+    }
+
+    /**
+     * Run the stress test on a dedicated client created by MongoClientFactory and return operation
+     * latency, checkout wait and queue depth during the run, plus the pool statistics after it.
+     */
+    public static String run(MongoClient client, OperationContext context, Options options) throws Exception {
+        ConnectionPoolMonitor monitor = ConnectionPoolMonitor.forClient(client);
+        if (monitor == null) {
+            throw new IllegalStateException("Client has no connection pool monitor");
+        }
+
+        // Make sure the pool exists so that maxPoolSize is known
+        client.getDatabase("admin").runCommand(context.command(new Document("ping", 1)));
+        int maxPoolSize = monitor.getMaxPoolSize();
+        int concurrency = options.concurrency > 0 ? options.concurrency
+                : Math.min(MAX_CONCURRENCY, Math.max(2, maxPoolSize * 2));
+        logger.info("Starting pool stress: concurrency={}, maxPoolSize={}, duration={}s, collection={}",
+                concurrency, maxPoolSize, options.durationSeconds, options.collection);
+
+        PingBenchmark.Result result = new PingBenchmark.Result(options.collection == null ? "ping" : "find");
+        LatencyHistogram checkoutWait = new LatencyHistogram();
+        long timeoutsBefore = monitor.getFailures(ConnectionCheckOutFailedEvent.Reason.TIMEOUT);
+        long peakWaiting = 0;
+        long waitingTotal = 0;
+        long waitingSamples = 0;
+
+        MongoDatabase database = client.getDatabase(options.database);
+        MongoCollection<Document> collection = options.collection == null ? null : database.getCollection(options.collection);
+        Document ping = context.command(new Document("ping", 1));
+
+        monitor.addWaitRecorder(checkoutWait);
+        long start = System.nanoTime();
+        long deadline = start + options.durationSeconds * 1_000_000_000L;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<LatencyHistogram>> workers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(() -> {
+                    LatencyHistogram local = new LatencyHistogram();
+                    while (!context.isCancelled() && !Thread.currentThread().isInterrupted()
+                            && System.nanoTime() < deadline) {
+                        long operationStart = System.nanoTime();
+                        try {
+                            if (collection == null) {
+                                database.runCommand(ping);
+                            } else {
+                                context.apply(collection.find(options.filter)).limit(options.findLimit).into(new ArrayList<>());
+                            }
+                            local.recordNanos(System.nanoTime() - operationStart);
+                        } catch (Exception e) {
+                            result.recordError(e);
+                        }
+                    }
+                    return local;
+                }));
+            }
+
+            try {
+                // Sample the checkout queue depth while the workers run
+                while (System.nanoTime() < deadline) {
+                    long waiting = monitor.getWaiting();
+                    peakWaiting = Math.max(peakWaiting, waiting);
+                    waitingTotal += waiting;
+                    waitingSamples++;
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                }
+                for (Future<LatencyHistogram> worker : workers) {
+                    result.histogram.merge(worker.get());
+                }
+            } catch (InterruptedException e) {
+                // Closing the executor would otherwise wait for every worker to reach the deadline
+                executor.shutdownNow();
+                throw e;
+            }
+        } finally {
+            monitor.removeWaitRecorder(checkoutWait);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        long timeouts = monitor.getFailures(ConnectionCheckOutFailedEvent.Reason.TIMEOUT) - timeoutsBefore;
+
+        double meanOperation = result.histogram.getMeanMicros();
+        double meanWait = checkoutWait.getMeanMicros();
+        logger.info("Pool stress finished: {} ok, {} errors, mean checkout wait {}us of {}us per operation",
+                result.histogram.getCount(), result.errors.sum(), Math.round(meanWait), Math.round(meanOperation));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"concurrency\": ").append(concurrency).append(",");
+        json.append("\"maxPoolSize\": ").append(maxPoolSize).append(",");
+        json.append("\"durationSeconds\": ").append(options.durationSeconds).append(",");
+        json.append("\"operations\": ").append(result.toJson()).append(",");
+        json.append("\"checkoutWait\": ").append(checkoutWait.toJson()).append(",");
+        // Share of operation latency spent waiting for a connection; near 1 means the pool is the bottleneck
+        json.append("\"checkoutWaitShare\": ").append(meanOperation > 0 ? Math.round(meanWait / meanOperation * 1000) / 1000.0 : 0.0).append(",");
+        json.append("\"checkoutTimeouts\": ").append(timeouts).append(",");
+        json.append("\"peakWaiting\": ").append(peakWaiting).append(",");
+        json.append("\"meanWaiting\": ").append(waitingSamples > 0 ? Math.round(waitingTotal * 10.0 / waitingSamples) / 10.0 : 0.0).append(",");
+        json.append("\"pool\": ").append(monitor.toJson());
+        json.append("}");
+        return json.toString();
+    }
+}
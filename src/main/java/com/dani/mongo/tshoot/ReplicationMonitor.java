@@ -0,0 +1,445 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+import jakarta.servlet.http.HttpSessionBindingListener;
+
+/**
+ * Polls replSetGetStatus and the oplog on a session connection and keeps a history of
+ * member lag, oplog window and oplog write rate.
+ *
+ * Lag is measured against the primary's last applied optime (or the newest optime when
+ * there is no primary). The oplog window is the time between the first and last oplog
+ * entries. The write rate is measured between consecutive samples: the growth of the used
+ * size plus what was truncated from the front, over the advance of the newest entry. Like
+ * {@link ServerStatusSampler}, the monitor is bound to the session and keeps a fixed-size
+ * ring buffer.
+ */
+public class ReplicationMonitor implements HttpSessionBindingListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationMonitor.class);
+    private static final String SESSION_REPLICATION_MONITOR = "replicationMonitor";
+    private static final String COMMENT = "tshoot:replicationMonitor";
+
+    public static final int DEFAULT_INTERVAL_SECONDS = EnvironmentConfig.getInt("MONGO_REPL_MONITOR_INTERVAL_SECONDS", 10);
+    public static final int MIN_INTERVAL_SECONDS = 1;
+    public static final int MAX_INTERVAL_SECONDS = 3600;
+    public static final int DEFAULT_LAG_ALERT_SECONDS = EnvironmentConfig.getInt("MONGO_REPL_LAG_ALERT_SECONDS", 10);
+    public static final int DEFAULT_OPLOG_WINDOW_ALERT_HOURS = EnvironmentConfig.getInt("MONGO_OPLOG_WINDOW_ALERT_HOURS", 24);
+    private static final int HISTORY_SIZE = EnvironmentConfig.getInt("MONGO_REPL_MONITOR_HISTORY_SIZE", 360);
+
+    private static final double BYTES_PER_GB = 1024.0 * 1024 * 1024;
+
+    /**
+     * Sampling interval and alert thresholds.
+     */
+    public static final class Options {
+        public int intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+        public double lagAlertSeconds = DEFAULT_LAG_ALERT_SECONDS;
+        public double oplogWindowAlertHours = DEFAULT_OPLOG_WINDOW_ALERT_HOURS;
+    }
+
+    private static final Set<ReplicationMonitor> monitors = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mongo-replication-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService sampleExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final MongoClient client;
+    private final Options options;
+    private final AtomicBoolean sampling = new AtomicBoolean();
+    private volatile ScheduledFuture<?> schedule;
+    private String lastError;
+
+    // Ring buffer: index i of every column belongs to the same sample
+    private final long[] timestamps = new long[HISTORY_SIZE];
+    private final double[] oplogWindowHours = new double[HISTORY_SIZE];
+    private final double[] oplogGBPerHour = new double[HISTORY_SIZE];
+    private final double[] oplogUsedBytes = new double[HISTORY_SIZE];
+    private final double[] maxLagSeconds = new double[HISTORY_SIZE];
+    // Lag per member host; a column is created when a member first appears
+    private final Map<String, double[]> memberLag = new LinkedHashMap<>();
+    private int head;
+    private int size;
+
+    // Latest replSetGetStatus summary and oplog figures, for the current state and alerts
+    private List<Document> latestMembers = new ArrayList<>();
+    private Document latestOplog;
+    private String setName;
+
+    private ReplicationMonitor(MongoClient client, Options options) {
+        this.client = client;
+        this.options = options;
+    }
+
+    /**
+     * Start monitoring the session's connection, replacing any monitor already bound to the session.
+     */
+    public static ReplicationMonitor start(HttpSession session, MongoClient client, Options options) {
+        ReplicationMonitor monitor = new ReplicationMonitor(client, options);
+        session.setAttribute(SESSION_REPLICATION_MONITOR, monitor);
+        monitors.add(monitor);
+        monitor.schedule = scheduler.scheduleAtFixedRate(monitor::triggerSample, 0, options.intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Started replication monitor every {}s", options.intervalSeconds);
+        return monitor;
+    }
+
+    /**
+     * Get the monitor bound to a session, if any.
+     */
+    public static ReplicationMonitor existing(HttpSession session) {
+        return session == null ? null : (ReplicationMonitor) session.getAttribute(SESSION_REPLICATION_MONITOR);
+    }
+
+    /**
+     * Stop and unbind the session's monitor.
+     */
+    public static void stop(HttpSession session) {
+        session.removeAttribute(SESSION_REPLICATION_MONITOR);
+    }
+
+    /**
+     * Stop every monitor. Called when the application is stopped.
+     */
+    public static void shutdown() {
+        scheduler.shutdownNow();
+        for (ReplicationMonitor monitor : monitors) {
+            monitor.cancel();
+        }
+        sampleExecutor.shutdownNow();
+    }
+
+    @Override
+    public void valueUnbound(HttpSessionBindingEvent event) {
+        cancel();
+    }
+
+    private void cancel() {
+        ScheduledFuture<?> scheduled = schedule;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        if (monitors.remove(this)) {
+            logger.info("Stopped replication monitor");
+        }
+    }
+
+    private void triggerSample() {
+        if (!sampling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sampleExecutor.execute(() -> {
+                try {
+                    sample();
+                } finally {
+                    sampling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sampling.set(false);
+        }
+    }
+
+    private void sample() {
+        long maxTimeMS = options.intervalSeconds * 1000L;
+        Document status;
+        Document oplog;
+        try {
+            status = client.getDatabase("admin").runCommand(new Document("replSetGetStatus", 1)
+                    .append("maxTimeMS", maxTimeMS)
+                    .append("comment", COMMENT));
+            oplog = readOplog(maxTimeMS);
+        } catch (Exception e) {
+            synchronized (this) {
+                lastError = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            }
+            logger.warn("Replication monitor sample failed: {}", e.getMessage());
+            return;
+        }
+
+        List<Document> members = summarizeMembers(status);
+        synchronized (this) {
+            lastError = null;
+            setName = status.getString("set");
+            latestMembers = members;
+            double growth = latestOplog == null ? Double.NaN : growthGBPerHour(latestOplog, oplog);
+            if (!Double.isNaN(growth)) {
+                oplog.append("gbPerHour", growth);
+            }
+            latestOplog = oplog;
+
+            int slot = (head + size) % HISTORY_SIZE;
+            timestamps[slot] = System.currentTimeMillis();
+            oplogWindowHours[slot] = getDouble(oplog, "windowHours");
+            oplogGBPerHour[slot] = getDouble(oplog, "gbPerHour");
+            oplogUsedBytes[slot] = getDouble(oplog, "usedBytes");
+
+            double maxLag = Double.NaN;
+            for (double[] column : memberLag.values()) {
+                column[slot] = Double.NaN;
+            }
+            for (Document member : members) {
+                double lag = getDouble(member, "lagSeconds");
+                memberLag.computeIfAbsent(member.getString("name"), name -> {
+                    double[] column = new double[HISTORY_SIZE];
+                    Arrays.fill(column, Double.NaN);
+                    return column;
+                })[slot] = lag;
+                if (!Double.isNaN(lag) && (Double.isNaN(maxLag) || lag > maxLag)) {
+                    maxLag = lag;
+                }
+            }
+            maxLagSeconds[slot] = maxLag;
+
+            if (size < HISTORY_SIZE) {
+                size++;
+            } else {
+                head = (head + 1) % HISTORY_SIZE;
+            }
+        }
+    }
+
+    /**
+     * First and last oplog entries and the oplog's size, read from the connected member.
+     */
+    private Document readOplog(long maxTimeMS) {
+        MongoCollection<Document> oplog = client.getDatabase("local").getCollection("oplog.rs");
+        Document first = oplog.find().sort(new Document("$natural", 1)).projection(Projections.include("ts", "wall"))
+                .comment(COMMENT).maxTime(maxTimeMS, TimeUnit.MILLISECONDS).first();
+        Document last = oplog.find().sort(new Document("$natural", -1)).projection(Projections.include("ts", "wall"))
+                .comment(COMMENT).maxTime(maxTimeMS, TimeUnit.MILLISECONDS).first();
+        Document stats = client.getDatabase("local").runCommand(new Document("collStats", "oplog.rs")
+                .append("maxTimeMS", maxTimeMS)
+                .append("comment", COMMENT));
+
+        // Missing figures are left out rather than stored as NaN, which would not serialize as plain JSON
+        Document result = new Document();
+        double usedBytes = getDouble(stats, "size");
+        if (!Double.isNaN(usedBytes)) {
+            result.append("usedBytes", usedBytes);
+        }
+        if (stats.get("maxSize") instanceof Number) {
+            result.append("maxBytes", stats.get("maxSize"));
+        }
+        if (first != null && last != null && first.get("ts") instanceof BsonTimestamp && last.get("ts") instanceof BsonTimestamp) {
+            int firstSeconds = ((BsonTimestamp) first.get("ts")).getTime();
+            int lastSeconds = ((BsonTimestamp) last.get("ts")).getTime();
+            double windowHours = (lastSeconds - firstSeconds) / 3600.0;
+            result.append("first", new Date(firstSeconds * 1000L))
+                    .append("last", new Date(lastSeconds * 1000L))
+                    .append("windowHours", windowHours);
+            if (windowHours > 0 && !Double.isNaN(usedBytes)) {
+                // Average over the whole window, which lags behind changes in the write load
+                result.append("avgGBPerHour", usedBytes / BYTES_PER_GB / windowHours);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Oplog GB written per hour between two samples, or NaN if the oplog did not advance or
+     * a figure is missing. Once the oplog is full its used size stays flat, so the entries
+     * truncated from the front are added back, sized by the oplog's average bytes per second.
+     */
+    static double growthGBPerHour(Document previous, Document current) {
+        double previousUsed = getDouble(previous, "usedBytes");
+        double used = getDouble(current, "usedBytes");
+        Date previousFirst = previous.getDate("first");
+        Date previousLast = previous.getDate("last");
+        Date first = current.getDate("first");
+        Date last = current.getDate("last");
+        if (Double.isNaN(previousUsed) || Double.isNaN(used) || previousFirst == null || previousLast == null
+                || first == null || last == null) {
+            return Double.NaN;
+        }
+        long elapsedMs = last.getTime() - previousLast.getTime();
+        long windowMs = last.getTime() - first.getTime();
+        if (elapsedMs <= 0 || windowMs <= 0) {
+            return Double.NaN;
+        }
+        double truncatedBytes = Math.max(0, first.getTime() - previousFirst.getTime()) * (used / windowMs);
+        double writtenBytes = Math.max(0, used - previousUsed + truncatedBytes);
+        return writtenBytes / BYTES_PER_GB / (elapsedMs / 3_600_000.0);
+    }
+
+    /**
+     * Name, state, health, optime and lag behind the primary for every member.
+     */
+    static List<Document> summarizeMembers(Document status) {
+        List<Document> members = status.getList("members", Document.class, new ArrayList<>());
+
+        // Lag is relative to the primary, or to the most advanced member when there is no primary
+        Date reference = null;
+        for (Document member : members) {
+            Date optime = member.getDate("optimeDate");
+            if (optime == null) {
+                continue;
+            }
+            if ("PRIMARY".equals(member.getString("stateStr"))) {
+                reference = optime;
+                break;
+            }
+            if (reference == null || optime.after(reference)) {
+                reference = optime;
+            }
+        }
+
+        List<Document> summary = new ArrayList<>();
+        for (Document member : members) {
+            Document entry = new Document("name", member.getString("name"))
+                    .append("stateStr", member.getString("stateStr"))
+                    .append("health", member.get("health"));
+            Date optime = member.getDate("optimeDate");
+            Object health = member.get("health");
+            boolean healthy = !(health instanceof Number) || ((Number) health).doubleValue() > 0;
+            // Arbiters have no optime, and unreachable members report the optime last seen
+            if (optime != null && reference != null && healthy && optime.getTime() > 0) {
+                entry.append("optimeDate", optime)
+                        .append("lagSeconds", Math.max(0, reference.getTime() - optime.getTime()) / 1000.0);
+            }
+            if (member.containsKey("syncSourceHost")) {
+                entry.append("syncSourceHost", member.get("syncSourceHost"));
+            }
+            if (member.containsKey("pingMs")) {
+                entry.append("pingMs", member.get("pingMs"));
+            }
+            summary.add(entry);
+        }
+        return summary;
+    }
+
+    private List<String> alerts() {
+        List<String> alerts = new ArrayList<>();
+        boolean hasPrimary = false;
+        for (Document member : latestMembers) {
+            String state = member.getString("stateStr");
+            if ("PRIMARY".equals(state)) {
+                hasPrimary = true;
+            }
+            Object health = member.get("health");
+            if (health instanceof Number && ((Number) health).doubleValue() <= 0) {
+                alerts.add(member.getString("name") + " is unreachable");
+                continue;
+            }
+            double lag = getDouble(member, "lagSeconds");
+            if (!Double.isNaN(lag) && lag > options.lagAlertSeconds) {
+                alerts.add(member.getString("name") + " is " + lag + "s behind (threshold " + options.lagAlertSeconds + "s)");
+            }
+        }
+        if (!latestMembers.isEmpty() && !hasPrimary) {
+            alerts.add("Replica set has no primary");
+        }
+        double window = latestOplog == null ? Double.NaN : getDouble(latestOplog, "windowHours");
+        if (!Double.isNaN(window) && window < options.oplogWindowAlertHours) {
+            alerts.add("Oplog window is " + Math.round(window * 100) / 100.0 + "h (threshold "
+                    + options.oplogWindowAlertHours + "h)");
+        }
+        return alerts;
+    }
+
+    /**
+     * JSON with the latest member states and oplog figures, active alerts, and the history of
+     * samples taken after the given timestamp (0 for all).
+     */
+    public synchronized String toJson(long sinceMillis) {
+        int first = 0;
+        while (first < size && timestamps[(head + first) % HISTORY_SIZE] <= sinceMillis) {
+            first++;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"intervalSeconds\": ").append(options.intervalSeconds).append(",");
+        json.append("\"lagAlertSeconds\": ").append(options.lagAlertSeconds).append(",");
+        json.append("\"oplogWindowAlertHours\": ").append(options.oplogWindowAlertHours).append(",");
+        json.append("\"capacity\": ").append(HISTORY_SIZE).append(",");
+        if (lastError != null) {
+            json.append("\"lastError\": \"").append(JsonUtil.escape(lastError)).append("\",");
+        }
+        if (setName != null) {
+            json.append("\"set\": \"").append(JsonUtil.escape(setName)).append("\",");
+        }
+        json.append("\"members\": [");
+        for (int i = 0; i < latestMembers.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(latestMembers.get(i).toJson());
+        }
+        json.append("],");
+        json.append("\"oplog\": ").append(latestOplog == null ? "null" : latestOplog.toJson()).append(",");
+        json.append("\"alerts\": [");
+        List<String> alerts = alerts();
+        for (int i = 0; i < alerts.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("\"").append(JsonUtil.escape(alerts.get(i))).append("\"");
+        }
+        json.append("],");
+
+        json.append("\"samples\": ").append(size - first).append(",");
+        json.append("\"timestamps\": [");
+        for (int i = first; i < size; i++) {
+            if (i > first) json.append(",");
+            json.append(timestamps[(head + i) % HISTORY_SIZE]);
+        }
+        json.append("],");
+        appendSeries(json, "oplogWindowHours", oplogWindowHours, first).append(",");
+        appendSeries(json, "oplogGBPerHour", oplogGBPerHour, first).append(",");
+        appendSeries(json, "oplogUsedBytes", oplogUsedBytes, first).append(",");
+        appendSeries(json, "maxLagSeconds", maxLagSeconds, first).append(",");
+        json.append("\"lagSeconds\": {");
+        boolean firstMember = true;
+        for (Map.Entry<String, double[]> entry : memberLag.entrySet()) {
+            if (!firstMember) json.append(",");
+            firstMember = false;
+            appendSeries(json, entry.getKey(), entry.getValue(), first);
+        }
+        json.append("}");
+        json.append("}");
+        return json.toString();
+    }
+
+    private StringBuilder appendSeries(StringBuilder json, String name, double[] column, int first) {
+        json.append("\"").append(JsonUtil.escape(name)).append("\": [");
+        for (int i = first; i < size; i++) {
+            if (i > first) json.append(",");
+            double value = column[(head + i) % HISTORY_SIZE];
+            json.append(Double.isNaN(value) ? "null" : String.valueOf(Math.round(value * 1000) / 1000.0));
+        }
+        json.append("]");
+        return json;
+    }
+
+    private static double getDouble(Document document, String field) {
+        Object value = document.get(field);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
@@ -0,0 +1,444 @@
+package com.dani.mongo.tshoot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Infers the schema of a collection from a $sample: for every field path the types seen,
+ * how many documents have it, the BSON size of its values, an approximate distinct count
+ * and, for arrays, the length distribution.
+ *
+ * Sampled documents are read as RawBsonDocument and walked over their bytes, and batches
+ * of them are spread over several workers that each profile their share; the profiles are
+ * merged at the end. Array elements are reported under the array path with "[]" appended,
+ * so fields of documents in an "items" array appear as "items[].sku".
+ */
+public class SchemaAnalyzer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaAnalyzer.class);
+
+    public static final int MAX_SAMPLE_SIZE = 100_000;
+    public static final int MAX_PARTITIONS = 16;
+    // Paths beyond this many per worker are only counted, which bounds memory for schemaless data
+    private static final int MAX_FIELDS = 1000;
+    // Deeper documents and arrays are measured as a whole without their inner fields
+    private static final int MAX_DEPTH = 20;
+    private static final int BATCH_SIZE = 100;
+    private static final int LARGE_ARRAY_LENGTH = 1000;
+    // Half the 16 MB BSON document limit
+    private static final int LARGE_DOCUMENT_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_LARGEST_FIELDS = 10;
+    // Upper bounds of the array length buckets; longer arrays go to the last bucket
+    private static final int[] ARRAY_LENGTH_BOUNDS = {0, 1, 5, 10, 50, 100, 1000};
+    private static final List<RawBsonDocument> END = new ArrayList<>();
+
+    private SchemaAnalyzer() {
+    }
+
+    /**
+     * How many documents to sample and how to split the work.
+     */
+    public static final class Options {
+        public int sampleSize = 1000;
+        public int partitions = 4;
+        /** Values at least this large are reported as oversized */
+        public int largeFieldBytes = 64 * 1024;
+    }
+
+    /**
+     * Statistics of one field path.
+     */
+    static final class FieldStats {
+        final String path;
+        final Map<BsonType, Long> types = new EnumMap<>(BsonType.class);
+        final HyperLogLog distinct = new HyperLogLog();
+        final long[] arrayLengths = new long[ARRAY_LENGTH_BOUNDS.length + 1];
+        long documents;
+        long values;
+        long totalBytes;
+        long minBytes = Long.MAX_VALUE;
+        long maxBytes;
+        long arrays;
+        long totalArrayLength;
+        long maxArrayLength;
+        // Last document counted in documents, so a path repeated inside arrays counts once
+        private long lastDocument = -1;
+
+        FieldStats(String path) {
+            this.path = path;
+        }
+
+        void add(long document, BsonType type, int bytes) {
+            if (lastDocument != document) {
+                lastDocument = document;
+                documents++;
+            }
+            values++;
+            types.merge(type, 1L, Long::sum);
+            totalBytes += bytes;
+            minBytes = Math.min(minBytes, bytes);
+            maxBytes = Math.max(maxBytes, bytes);
+        }
+
+        void addArrayLength(int length) {
+            arrays++;
+            totalArrayLength += length;
+            maxArrayLength = Math.max(maxArrayLength, length);
+            int bucket = 0;
+            while (bucket < ARRAY_LENGTH_BOUNDS.length && length > ARRAY_LENGTH_BOUNDS[bucket]) {
+                bucket++;
+            }
+            arrayLengths[bucket]++;
+        }
+
+        void merge(FieldStats other) {
+            // Workers see different documents, so their document counts add up
+            documents += other.documents;
+            values += other.values;
+            other.types.forEach((type, count) -> types.merge(type, count, Long::sum));
+            distinct.merge(other.distinct);
+            totalBytes += other.totalBytes;
+            minBytes = Math.min(minBytes, other.minBytes);
+            maxBytes = Math.max(maxBytes, other.maxBytes);
+            arrays += other.arrays;
+            totalArrayLength += other.totalArrayLength;
+            maxArrayLength = Math.max(maxArrayLength, other.maxArrayLength);
+            for (int i = 0; i < arrayLengths.length; i++) {
+                arrayLengths[i] += other.arrayLengths[i];
+            }
+        }
+
+        /** Types other than null, which only marks a missing value */
+        int valueTypeCount() {
+            return types.size() - (types.containsKey(BsonType.NULL) ? 1 : 0);
+        }
+
+        String toJson(long sampled) {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"path\": \"").append(JsonUtil.escape(path)).append("\",");
+            json.append("\"types\": {");
+            int i = 0;
+            for (Map.Entry<BsonType, Long> type : types.entrySet()) {
+                if (i++ > 0) json.append(",");
+                json.append("\"").append(typeName(type.getKey())).append("\": ").append(type.getValue());
+            }
+            json.append("},");
+            json.append("\"documents\": ").append(documents).append(",");
+            json.append("\"presence\": ").append(sampled == 0 ? 0.0 : Math.round(documents * 1000.0 / sampled) / 1000.0).append(",");
+            json.append("\"values\": ").append(values).append(",");
+            json.append("\"distinctEstimate\": ").append(scalarValues() == 0 ? "null" : String.valueOf(
+                    Math.min(distinct.estimate(), scalarValues()))).append(",");
+            json.append("\"size\": {");
+            json.append("\"min\": ").append(values == 0 ? 0 : minBytes).append(",");
+            json.append("\"max\": ").append(maxBytes).append(",");
+            json.append("\"avg\": ").append(values == 0 ? 0 : Math.round(totalBytes * 10.0 / values) / 10.0);
+            json.append("}");
+            if (arrays > 0) {
+                json.append(",\"arrays\": {");
+                json.append("\"count\": ").append(arrays).append(",");
+                json.append("\"avgLength\": ").append(Math.round(totalArrayLength * 10.0 / arrays) / 10.0).append(",");
+                json.append("\"maxLength\": ").append(maxArrayLength).append(",");
+                json.append("\"lengths\": {");
+                for (int bucket = 0; bucket < arrayLengths.length; bucket++) {
+                    if (bucket > 0) json.append(",");
+                    json.append("\"").append(bucketName(bucket)).append("\": ").append(arrayLengths[bucket]);
+                }
+                json.append("}");
+                json.append("}");
+            }
+            json.append("}");
+            return json.toString();
+        }
+
+        private long scalarValues() {
+            return values - types.getOrDefault(BsonType.DOCUMENT, 0L) - types.getOrDefault(BsonType.ARRAY, 0L);
+        }
+    }
+
+    /**
+     * The field statistics gathered by one worker.
+     */
+    static final class Profile {
+        final Map<String, FieldStats> fields = new TreeMap<>();
+        long documents;
+        long totalBytes;
+        long minBytes = Long.MAX_VALUE;
+        long maxBytes;
+        long overflowValues;
+
+        void add(RawBsonDocument document) {
+            ByteBuffer bytes = document.getByteBuffer().asNIO();
+            int size = bytes.remaining();
+            documents++;
+            totalBytes += size;
+            minBytes = Math.min(minBytes, size);
+            maxBytes = Math.max(maxBytes, size);
+            try (BsonBinaryReader reader = new BsonBinaryReader(bytes)) {
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    readValue(reader, bytes, reader.readName(), 0);
+                }
+                reader.readEndDocument();
+            }
+        }
+
+        /**
+         * Record the value the reader is positioned at under the path and read past it.
+         */
+        private void readValue(BsonBinaryReader reader, ByteBuffer bytes, String path, int depth) {
+            BsonType type = reader.getCurrentBsonType();
+            int start = reader.getBsonInput().getPosition();
+            int arrayLength = -1;
+            if (type == BsonType.DOCUMENT && depth < MAX_DEPTH) {
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    readValue(reader, bytes, path + "." + reader.readName(), depth + 1);
+                }
+                reader.readEndDocument();
+            } else if (type == BsonType.ARRAY && depth < MAX_DEPTH) {
+                arrayLength = 0;
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    readValue(reader, bytes, path + "[]", depth + 1);
+                    arrayLength++;
+                }
+                reader.readEndArray();
+            } else {
+                reader.skipValue();
+            }
+            int length = reader.getBsonInput().getPosition() - start;
+
+            FieldStats field = fields.get(path);
+            if (field == null) {
+                if (fields.size() >= MAX_FIELDS) {
+                    overflowValues++;
+                    return;
+                }
+                field = new FieldStats(path);
+                fields.put(path, field);
+            }
+            field.add(documents, type, length);
+            if (arrayLength >= 0) {
+                field.addArrayLength(arrayLength);
+            }
+            if (type != BsonType.DOCUMENT && type != BsonType.ARRAY) {
+                field.distinct.add(HyperLogLog.hash(bytes, start, length, type.getValue()));
+            }
+        }
+
+        void merge(Profile other) {
+            documents += other.documents;
+            totalBytes += other.totalBytes;
+            minBytes = Math.min(minBytes, other.minBytes);
+            maxBytes = Math.max(maxBytes, other.maxBytes);
+            overflowValues += other.overflowValues;
+            for (FieldStats field : other.fields.values()) {
+                FieldStats existing = fields.get(field.path);
+                if (existing == null) {
+                    fields.put(field.path, field);
+                } else {
+                    existing.merge(field);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sample the collection and return the merged field statistics as JSON.
+     */
+    public static String analyze(MongoCollection<?> source, OperationContext context, Options options) throws Exception {
+        long startTime = System.currentTimeMillis();
+        MongoCollection<RawBsonDocument> collection = source.withDocumentClass(RawBsonDocument.class);
+        List<Document> pipeline = List.of(new Document("$sample", new Document("size", options.sampleSize)));
+        // $sample of more than 5% of a collection sorts it, which may need to spill
+        AggregateIterable<RawBsonDocument> sample = context.apply(collection.aggregate(pipeline))
+                .allowDiskUse(true).batchSize(Math.min(options.sampleSize, 1000));
+
+        BlockingQueue<List<RawBsonDocument>> queue = new ArrayBlockingQueue<>(options.partitions * 2);
+        List<Future<Profile>> workers = new ArrayList<>();
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        Profile merged = new Profile();
+        long readMs;
+        try {
+            for (int i = 0; i < options.partitions; i++) {
+                workers.add(executor.submit(() -> profile(queue)));
+            }
+            try (MongoCursor<RawBsonDocument> cursor = sample.cursor()) {
+                List<RawBsonDocument> batch = new ArrayList<>(BATCH_SIZE);
+                while (cursor.hasNext()) {
+                    batch.add(cursor.next());
+                    if (batch.size() == BATCH_SIZE) {
+                        // Blocks while the workers are behind; cancelling the request interrupts the wait
+                        queue.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+            }
+            readMs = System.currentTimeMillis() - startTime;
+            for (int i = 0; i < options.partitions; i++) {
+                queue.put(END);
+            }
+            for (Future<Profile> worker : workers) {
+                merged.merge(worker.get());
+            }
+        } finally {
+            // Stops workers still waiting for batches after a failure
+            executor.shutdownNow();
+        }
+        logger.info("Schema of {}: {} documents, {} fields in {}ms", collection.getNamespace(), merged.documents,
+                merged.fields.size(), System.currentTimeMillis() - startTime);
+
+        return toJson(collection.getNamespace().getFullName(), options, merged, readMs,
+                System.currentTimeMillis() - startTime);
+    }
+
+    private static Profile profile(BlockingQueue<List<RawBsonDocument>> queue) throws InterruptedException {
+        Profile profile = new Profile();
+        while (true) {
+            List<RawBsonDocument> batch = queue.take();
+            if (batch == END) {
+                return profile;
+            }
+            for (RawBsonDocument document : batch) {
+                profile.add(document);
+            }
+        }
+    }
+
+    private static String toJson(String namespace, Options options, Profile profile, long readMs, long totalMs) {
+        List<FieldStats> largest = new ArrayList<>(profile.fields.values());
+        largest.sort((a, b) -> Long.compare(b.maxBytes, a.maxBytes));
+        largest = largest.subList(0, Math.min(MAX_LARGEST_FIELDS, largest.size()));
+
+        List<String> warnings = new ArrayList<>();
+        if (profile.maxBytes >= LARGE_DOCUMENT_BYTES) {
+            warnings.add("Largest sampled document is " + profile.maxBytes + " bytes, over half the 16 MB limit");
+        }
+        for (FieldStats field : profile.fields.values()) {
+            if (field.valueTypeCount() > 1) {
+                warnings.add(field.path + " has " + field.valueTypeCount() + " types: "
+                        + typeNames(field));
+            }
+            if (field.maxBytes >= options.largeFieldBytes) {
+                warnings.add(field.path + " has values up to " + field.maxBytes + " bytes");
+            }
+            if (field.maxArrayLength >= LARGE_ARRAY_LENGTH) {
+                warnings.add(field.path + " has arrays of up to " + field.maxArrayLength + " elements");
+            }
+        }
+        if (profile.overflowValues > 0) {
+            warnings.add("More than " + MAX_FIELDS + " field paths; " + profile.overflowValues
+                    + " values of further paths were not analyzed");
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"namespace\": \"").append(JsonUtil.escape(namespace)).append("\",");
+        json.append("\"sampleSize\": ").append(options.sampleSize).append(",");
+        json.append("\"partitions\": ").append(options.partitions).append(",");
+        json.append("\"documents\": ").append(profile.documents).append(",");
+        json.append("\"documentSize\": {");
+        json.append("\"min\": ").append(profile.documents == 0 ? 0 : profile.minBytes).append(",");
+        json.append("\"max\": ").append(profile.maxBytes).append(",");
+        json.append("\"avg\": ").append(profile.documents == 0 ? 0 : Math.round(profile.totalBytes * 10.0 / profile.documents) / 10.0);
+        json.append("},");
+        json.append("\"fieldCount\": ").append(profile.fields.size()).append(",");
+        json.append("\"overflowValues\": ").append(profile.overflowValues).append(",");
+        json.append("\"sampleMs\": ").append(readMs).append(",");
+        json.append("\"analysisMs\": ").append(totalMs).append(",");
+        json.append("\"warnings\": [");
+        for (int i = 0; i < warnings.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("\"").append(JsonUtil.escape(warnings.get(i))).append("\"");
+        }
+        json.append("],");
+        json.append("\"largestFields\": [");
+        for (int i = 0; i < largest.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("{\"path\": \"").append(JsonUtil.escape(largest.get(i).path)).append("\", \"maxBytes\": ")
+                    .append(largest.get(i).maxBytes).append("}");
+        }
+        json.append("],");
+        json.append("\"fields\": [");
+        int i = 0;
+        for (FieldStats field : profile.fields.values()) {
+            if (i++ > 0) json.append(",");
+            json.append(field.toJson(profile.documents));
+        }
+        json.append("]");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static String typeNames(FieldStats field) {
+        StringBuilder names = new StringBuilder();
+        for (BsonType type : field.types.keySet()) {
+            if (names.length() > 0) names.append(", ");
+            names.append(typeName(type));
+        }
+        return names.toString();
+    }
+
+    private static String bucketName(int bucket) {
+        if (bucket == ARRAY_LENGTH_BOUNDS.length) {
+            return ">" + ARRAY_LENGTH_BOUNDS[bucket - 1];
+        }
+        int upper = ARRAY_LENGTH_BOUNDS[bucket];
+        int lower = bucket == 0 ? 0 : ARRAY_LENGTH_BOUNDS[bucket - 1] + 1;
+        return lower == upper ? String.valueOf(upper) : lower + "-" + upper;
+    }
+
+    /**
+     * The $type alias of a BSON type, as used in queries.
+     */
+    static String typeName(BsonType type) {
+        switch (type) {
+            case DOUBLE: return "double";
+            case STRING: return "string";
+            case DOCUMENT: return "object";
+            case ARRAY: return "array";
+            case BINARY: return "binData";
+            case UNDEFINED: return "undefined";
+            case OBJECT_ID: return "objectId";
+            case BOOLEAN: return "bool";
+            case DATE_TIME: return "date";
+            case NULL: return "null";
+            case REGULAR_EXPRESSION: return "regex";
+            case DB_POINTER: return "dbPointer";
+            case JAVASCRIPT: return "javascript";
+            case SYMBOL: return "symbol";
+            case JAVASCRIPT_WITH_SCOPE: return "javascriptWithScope";
+            case INT32: return "int";
+            case TIMESTAMP: return "timestamp";
+            case INT64: return "long";
+            case DECIMAL128: return "decimal";
+            case MIN_KEY: return "minKey";
+            case MAX_KEY: return "maxKey";
+            default: return type.name();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.dani.mongo.tshoot;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+import jakarta.servlet.http.HttpSessionBindingListener;
+
+/**
+ * Polls serverStatus on a session connection in the background and keeps a time series of
+ * per-second rates for cumulative counters and current values for gauges.
+ *
+ * History is kept in a fixed-size ring buffer of primitive arrays, one column per metric,
+ * so a long-running sampler neither grows nor allocates per sample beyond the command itself.
+ * The sampler is bound to the session and stops when the connection is closed or the
+ * session ends.
+ */
+public class ServerStatusSampler implements HttpSessionBindingListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerStatusSampler.class);
+    private static final String SESSION_SERVER_STATUS_SAMPLER = "serverStatusSampler";
+
+    public static final int DEFAULT_INTERVAL_SECONDS = EnvironmentConfig.getInt("MONGO_SAMPLER_INTERVAL_SECONDS", 5);
+    public static final int MIN_INTERVAL_SECONDS = 1;
+    public static final int MAX_INTERVAL_SECONDS = 3600;
+    private static final int HISTORY_SIZE = EnvironmentConfig.getInt("MONGO_SAMPLER_HISTORY_SIZE", 720);
+
+    private static final String WT_CACHE = "wiredTiger.cache.";
+
+    // Cumulative counters, reported as per-second rates between two samples
+    private static final String[][] RATE_METRICS = {
+        {"opcounters.insert", "opcounters.insert"},
+        {"opcounters.query", "opcounters.query"},
+        {"opcounters.update", "opcounters.update"},
+        {"opcounters.delete", "opcounters.delete"},
+        {"opcounters.getmore", "opcounters.getmore"},
+        {"opcounters.command", "opcounters.command"},
+        {"network.bytesIn", "network.bytesIn"},
+        {"network.bytesOut", "network.bytesOut"},
+        {"network.numRequests", "network.numRequests"},
+        {"connections.totalCreated", "connections.totalCreated"},
+        {"document.returned", "metrics.document.returned"},
+        {"document.inserted", "metrics.document.inserted"},
+        {"document.updated", "metrics.document.updated"},
+        {"document.deleted", "metrics.document.deleted"},
+        {"wiredTiger.cache.pagesReadIntoCache", WT_CACHE + "pages read into cache"},
+        {"wiredTiger.cache.pagesWrittenFromCache", WT_CACHE + "pages written from cache"},
+        {"wiredTiger.cache.bytesReadIntoCache", WT_CACHE + "bytes read into cache"},
+        {"wiredTiger.cache.bytesWrittenFromCache", WT_CACHE + "bytes written from cache"},
+    };
+
+    // Point-in-time values, reported as sampled
+    private static final String[][] GAUGE_METRICS = {
+        {"connections.current", "connections.current"},
+        {"connections.available", "connections.available"},
+        {"wiredTiger.cache.bytesInCache", WT_CACHE + "bytes currently in the cache"},
+        {"wiredTiger.cache.dirtyBytesInCache", WT_CACHE + "tracked dirty bytes in the cache"},
+        {"wiredTiger.cache.maxBytesConfigured", WT_CACHE + "maximum bytes configured"},
+    };
+
+    private static final int METRIC_COUNT = RATE_METRICS.length + GAUGE_METRICS.length;
+
+    private static final Set<ServerStatusSampler> samplers = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mongo-server-status-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The scheduler only triggers samples; the blocking serverStatus call runs on a virtual thread
+    private static final ExecutorService sampleExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final MongoClient client;
+    private final int intervalSeconds;
+    private final AtomicBoolean sampling = new AtomicBoolean();
+    private volatile ScheduledFuture<?> schedule;
+    private volatile String lastError;
+
+    // Ring buffer: timestamps[i] and values[metric][i] belong to the same sample
+    private final long[] timestamps = new long[HISTORY_SIZE];
+    private final double[][] values = new double[METRIC_COUNT][HISTORY_SIZE];
+    private int head;
+    private int size;
+
+    // Counter values of the previous sample, used to compute rates
+    private final double[] previousCounters = new double[RATE_METRICS.length];
+    private long previousNanos;
+    private boolean hasPrevious;
+
+    private ServerStatusSampler(MongoClient client, int intervalSeconds) {
+        this.client = client;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Start sampling the session's connection, replacing any sampler already bound to the session.
+     */
+    public static ServerStatusSampler start(HttpSession session, MongoClient client, int intervalSeconds) {
+        ServerStatusSampler sampler = new ServerStatusSampler(client, intervalSeconds);
+        // Binding replaces and so unbinds (stops) the previous sampler
+        session.setAttribute(SESSION_SERVER_STATUS_SAMPLER, sampler);
+        samplers.add(sampler);
+        sampler.schedule = scheduler.scheduleAtFixedRate(sampler::triggerSample, 0, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Started serverStatus sampler every {}s", intervalSeconds);
+        return sampler;
+    }
+
+    /**
+     * Get the sampler bound to a session, if any.
+     */
+    public static ServerStatusSampler existing(HttpSession session) {
+        return session == null ? null : (ServerStatusSampler) session.getAttribute(SESSION_SERVER_STATUS_SAMPLER);
+    }
+
+    /**
+     * Stop and unbind the session's sampler.
+     */
+    public static void stop(HttpSession session) {
+        session.removeAttribute(SESSION_SERVER_STATUS_SAMPLER);
+    }
+
+    /**
+     * Stop every sampler. Called when the application is stopped.
+     */
+    public static void shutdown() {
+        scheduler.shutdownNow();
+        for (ServerStatusSampler sampler : samplers) {
+            sampler.cancel();
+        }
+        sampleExecutor.shutdownNow();
+    }
+
+    @Override
+    public void valueUnbound(HttpSessionBindingEvent event) {
+        cancel();
+    }
+
+    private void cancel() {
+        ScheduledFuture<?> scheduled = schedule;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        if (samplers.remove(this)) {
+            logger.info("Stopped serverStatus sampler");
+        }
+    }
+
+    private void triggerSample() {
+        // Skip the tick if the previous serverStatus is still running
+        if (!sampling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sampleExecutor.execute(() -> {
+                try {
+                    sample();
+                } finally {
+                    sampling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sampling.set(false);
+        }
+    }
+
+    private void sample() {
+        Document status;
+        try {
+            status = client.getDatabase("admin").runCommand(new Document("serverStatus", 1)
+                    .append("maxTimeMS", intervalSeconds * 1000L)
+                    .append("comment", "tshoot:sampler"));
+        } catch (Exception e) {
+            lastError = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            logger.warn("serverStatus sample failed: {}", lastError);
+            return;
+        }
+        long nanos = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+
+        synchronized (this) {
+            lastError = null;
+            double seconds = (nanos - previousNanos) / 1_000_000_000.0;
+            int slot = (head + size) % HISTORY_SIZE;
+            for (int i = 0; i < RATE_METRICS.length; i++) {
+                double counter = getNumber(status, RATE_METRICS[i][1]);
+                // A counter going backwards means the server restarted, so there is no rate for this
+                // sample; like a missing counter it is stored as NaN and serialized as null
+                double rate = Double.NaN;
+                if (hasPrevious && seconds > 0 && counter >= previousCounters[i]) {
+                    rate = (counter - previousCounters[i]) / seconds;
+                }
+                values[i][slot] = rate;
+                previousCounters[i] = counter;
+            }
+            for (int i = 0; i < GAUGE_METRICS.length; i++) {
+                values[RATE_METRICS.length + i][slot] = getNumber(status, GAUGE_METRICS[i][1]);
+            }
+            timestamps[slot] = timestamp;
+            previousNanos = nanos;
+
+            // The first sample only primes the counters
+            if (!hasPrevious) {
+                hasPrevious = true;
+                return;
+            }
+            if (size < HISTORY_SIZE) {
+                size++;
+            } else {
+                head = (head + 1) % HISTORY_SIZE;
+            }
+        }
+    }
+
+    /**
+     * JSON time series of all samples taken after the given timestamp (0 for all), with
+     * one array per metric aligned with the timestamps array.
+     */
+    public synchronized String toJson(long sinceMillis) {
+        int first = 0;
+        while (first < size && timestamps[(head + first) % HISTORY_SIZE] <= sinceMillis) {
+            first++;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"intervalSeconds\": ").append(intervalSeconds).append(",");
+        json.append("\"capacity\": ").append(HISTORY_SIZE).append(",");
+        json.append("\"samples\": ").append(size - first).append(",");
+        if (lastError != null) {
+            json.append("\"lastError\": \"").append(JsonUtil.escape(lastError)).append("\",");
+        }
+        json.append("\"timestamps\": [");
+        for (int i = first; i < size; i++) {
+            if (i > first) json.append(",");
+            json.append(timestamps[(head + i) % HISTORY_SIZE]);
+        }
+        json.append("],");
+        json.append("\"rates\": {");
+        appendSeries(json, RATE_METRICS, 0, first);
+        json.append("},");
+        json.append("\"gauges\": {");
+        appendSeries(json, GAUGE_METRICS, RATE_METRICS.length, first);
+        json.append("}");
+        json.append("}");
+        return json.toString();
+    }
+
+    private void appendSeries(StringBuilder json, String[][] metrics, int offset, int first) {
+        for (int m = 0; m < metrics.length; m++) {
+            if (m > 0) json.append(",");
+            json.append("\"").append(metrics[m][0]).append("\": [");
+            double[] column = values[offset + m];
+            for (int i = first; i < size; i++) {
+                if (i > first) json.append(",");
+                double value = column[(head + i) % HISTORY_SIZE];
+                // NaN marks a metric the server did not report, e.g. wiredTiger on other engines
+                json.append(Double.isNaN(value) ? "null" : String.valueOf(Math.round(value * 100) / 100.0));
+            }
+            json.append("]");
+        }
+    }
+
+    private static double getNumber(Document document, String path) {
+        Object current = document;
+        int start = 0;
+        // Field names under wiredTiger.cache contain spaces but no dots, so the path splits on dots
+        while (start <= path.length()) {
+            if (!(current instanceof Document)) {
+                return Double.NaN;
+            }
+            int dot = path.indexOf('.', start);
+            int end = dot < 0 ? path.length() : dot;
+            current = ((Document) current).get(path.substring(start, end));
+            start = end + 1;
+        }
+        return current instanceof Number ? ((Number) current).doubleValue() : Double.NaN;
+    }
+}
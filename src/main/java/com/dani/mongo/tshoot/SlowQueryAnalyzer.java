@@ -0,0 +1,428 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Groups database profiler entries into query shapes and ranks the shapes by the total
+ * time they took, to find the queries that load a cluster rather than single outliers.
+ *
+ * A shape is the operation, namespace and command with literal values replaced by "?" and
+ * document keys sorted; sort and projection specifications and field paths are kept. The
+ * profile collection is streamed, so only the per-shape statistics are held in memory.
+ */
+public class SlowQueryAnalyzer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryAnalyzer.class);
+
+    public static final int MAX_TOP = 200;
+    public static final long MAX_WINDOW_MINUTES = 7 * 24 * 60;
+    public static final int DEFAULT_PROFILE_SECONDS = 30;
+    public static final int MAX_PROFILE_SECONDS = 600;
+    // Entries beyond this many distinct shapes are counted under a single overflow shape
+    private static final int MAX_SHAPES = 5000;
+    // Millis values kept per shape for the p95; larger shapes are sampled
+    private static final int RESERVOIR_SIZE = 256;
+    private static final int MAX_PLANS_PER_SHAPE = 5;
+    private static final int MAX_APPS_PER_SHAPE = 5;
+    private static final int MAX_EXAMPLE_LENGTH = 2000;
+    private static final int PROFILE_BATCH_SIZE = 1000;
+    private static final String OVERFLOW_SHAPE = "(other shapes)";
+
+    // Command fields that vary per call without changing what the query does
+    private static final Set<String> IGNORED_COMMAND_FIELDS = Set.of("lsid", "$clusterTime", "$db", "$readPreference",
+            "txnNumber", "autocommit", "startTransaction", "maxTimeMS", "comment", "cursor", "batchSize", "limit",
+            "skip", "singleBatch", "readConcern", "writeConcern", "shardVersion", "databaseVersion", "$audit",
+            "$client", "$configTime", "$topologyTime", "mayBypassWriteBlocking", "apiVersion", "apiStrict");
+    // Command fields and pipeline stages whose values are part of the shape rather than literals
+    private static final Set<String> SPECIFICATION_FIELDS = Set.of("sort", "$sort", "projection", "$project",
+            "hint", "key", "collation");
+    // Stages whose "pipeline" field is itself a pipeline
+    private static final Set<String> SUBPIPELINE_STAGES = Set.of("$lookup", "$unionWith");
+
+    private SlowQueryAnalyzer() {
+    }
+
+    /**
+     * Which profile entries to read and how many shapes to return.
+     */
+    public static final class Options {
+        public long windowMinutes = 60;
+        public long minMillis = 0;
+        public int top = 20;
+    }
+
+    /**
+     * Statistics for one shape.
+     */
+    static final class ShapeStats {
+        final String op;
+        final String ns;
+        final String shape;
+        long count;
+        long totalMillis;
+        long maxMillis;
+        long docsExamined;
+        long keysExamined;
+        long nReturned;
+        int[] reservoir = new int[16];
+        int reservoirSize;
+        final Map<String, Long> plans = new LinkedHashMap<>();
+        final Set<String> apps = new LinkedHashSet<>();
+        Date lastSeen;
+        Document example;
+
+        ShapeStats(String op, String ns, String shape) {
+            this.op = op;
+            this.ns = ns;
+            this.shape = shape;
+        }
+
+        void add(Document entry, Document command, long millis) {
+            count++;
+            totalMillis += millis;
+            docsExamined += JsonUtil.getLong(entry, "docsExamined");
+            keysExamined += JsonUtil.getLong(entry, "keysExamined");
+            nReturned += JsonUtil.getLong(entry, "nreturned");
+            if (millis >= maxMillis || example == null) {
+                maxMillis = Math.max(maxMillis, millis);
+                example = command;
+            }
+
+            // Reservoir sampling keeps a uniform sample once the reservoir is full
+            int value = (int) Math.min(Integer.MAX_VALUE, millis);
+            if (reservoirSize < RESERVOIR_SIZE) {
+                if (reservoirSize == reservoir.length) {
+                    reservoir = Arrays.copyOf(reservoir, Math.min(RESERVOIR_SIZE, reservoir.length * 2));
+                }
+                reservoir[reservoirSize++] = value;
+            } else {
+                long slot = ThreadLocalRandom.current().nextLong(count);
+                if (slot < RESERVOIR_SIZE) {
+                    reservoir[(int) slot] = value;
+                }
+            }
+
+            String plan = entry.getString("planSummary");
+            if (plan != null && (plans.containsKey(plan) || plans.size() < MAX_PLANS_PER_SHAPE)) {
+                plans.merge(plan, 1L, Long::sum);
+            }
+            String app = entry.getString("appName");
+            if (app != null && apps.size() < MAX_APPS_PER_SHAPE) {
+                apps.add(app);
+            }
+            Date ts = entry.getDate("ts");
+            if (ts != null && (lastSeen == null || ts.after(lastSeen))) {
+                lastSeen = ts;
+            }
+        }
+
+        long p95Millis() {
+            if (reservoirSize == 0) {
+                return 0;
+            }
+            int[] sorted = Arrays.copyOf(reservoir, reservoirSize);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(reservoirSize * 0.95) - 1)];
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{");
+            json.append("\"op\": \"").append(JsonUtil.escape(op)).append("\",");
+            json.append("\"ns\": \"").append(JsonUtil.escape(ns)).append("\",");
+            json.append("\"shape\": \"").append(JsonUtil.escape(shape)).append("\",");
+            json.append("\"count\": ").append(count).append(",");
+            json.append("\"totalMillis\": ").append(totalMillis).append(",");
+            json.append("\"avgMillis\": ").append(count == 0 ? 0 : Math.round(totalMillis * 10.0 / count) / 10.0).append(",");
+            json.append("\"p95Millis\": ").append(p95Millis()).append(",");
+            json.append("\"maxMillis\": ").append(maxMillis).append(",");
+            json.append("\"docsExamined\": ").append(docsExamined).append(",");
+            json.append("\"keysExamined\": ").append(keysExamined).append(",");
+            json.append("\"nReturned\": ").append(nReturned).append(",");
+            json.append("\"docsExaminedPerReturned\": ").append(ratio(docsExamined, nReturned)).append(",");
+            json.append("\"plans\": {");
+            int i = 0;
+            for (Map.Entry<String, Long> plan : plans.entrySet()) {
+                if (i++ > 0) json.append(",");
+                json.append("\"").append(JsonUtil.escape(plan.getKey())).append("\": ").append(plan.getValue());
+            }
+            json.append("},");
+            json.append("\"apps\": [");
+            i = 0;
+            for (String app : apps) {
+                if (i++ > 0) json.append(",");
+                json.append("\"").append(JsonUtil.escape(app)).append("\"");
+            }
+            json.append("],");
+            json.append("\"lastSeen\": ").append(lastSeen == null ? "null" : String.valueOf(lastSeen.getTime())).append(",");
+            String slowest = example == null ? null : example.toJson();
+            if (slowest != null && slowest.length() > MAX_EXAMPLE_LENGTH) {
+                slowest = slowest.substring(0, MAX_EXAMPLE_LENGTH) + "...";
+            }
+            json.append("\"slowestCommand\": ").append(slowest == null ? "null" : "\"" + JsonUtil.escape(slowest) + "\"");
+            json.append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Set the profiler level (0 off, 1 slow operations, 2 all) and slowms threshold for
+     * profileSeconds, then restore the previous settings, or only read the current settings
+     * when level is null. The previous settings are restored even when the wait is
+     * cancelled, so the profiler is never left changed. Returns the settings as JSON.
+     */
+    public static String profile(MongoDatabase database, OperationContext context, Integer level, Integer slowms,
+            int profileSeconds) throws InterruptedException {
+        Document command = new Document("profile", level == null ? -1 : level);
+        if (level != null && slowms != null) {
+            command.append("slowms", slowms);
+        }
+        Document result = database.runCommand(context.command(command));
+        long was = JsonUtil.getLong(result, "was");
+        long previousSlowms = JsonUtil.getLong(result, "slowms");
+        logger.info("Profiler for {}: was {}, slowms {}{}", database.getName(), was, previousSlowms,
+                level == null ? "" : ", set to " + level + " for " + profileSeconds + "s");
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"was\": ").append(was).append(",");
+        json.append("\"slowms\": ").append(previousSlowms).append(",");
+        if (level == null) {
+            json.append("\"level\": ").append(was);
+            json.append("}");
+            return json.toString();
+        }
+        json.append("\"level\": ").append(level).append(",");
+        json.append("\"profileSeconds\": ").append(profileSeconds).append(",");
+
+        try {
+            Thread.sleep(profileSeconds * 1000L);
+        } finally {
+            Document restore = new Document("profile", (int) was).append("slowms", (int) previousSlowms);
+            try {
+                database.runCommand(context.command(restore));
+                logger.info("Profiler for {} restored to {}, slowms {}", database.getName(), was, previousSlowms);
+                json.append("\"restored\": true");
+            } catch (Exception e) {
+                // Reported so the caller knows to reset the profiler by hand
+                logger.error("Failed to restore profiler for {} to {}: {}", database.getName(), was, e.getMessage(), e);
+                json.append("\"restored\": false,");
+                json.append("\"restoreError\": \"").append(JsonUtil.escape(
+                        e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName())).append("\"");
+            }
+        }
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * Stream system.profile entries from the window and return the top shapes by total time.
+     */
+    public static String analyze(MongoDatabase database, OperationContext context, Options options) {
+        long startTime = System.currentTimeMillis();
+        Date since = new Date(startTime - options.windowMinutes * 60_000L);
+        Document filter = new Document("ts", new Document("$gte", since));
+        if (options.minMillis > 0) {
+            filter.append("millis", new Document("$gte", options.minMillis));
+        }
+        Document projection = new Document("op", 1).append("ns", 1).append("command", 1)
+                .append("originatingCommand", 1).append("millis", 1).append("docsExamined", 1)
+                .append("keysExamined", 1).append("nreturned", 1).append("planSummary", 1).append("ts", 1)
+                .append("appName", 1);
+
+        Map<String, ShapeStats> shapes = new HashMap<>();
+        long entries = 0;
+        long totalMillis = 0;
+        long overflowEntries = 0;
+
+        FindIterable<Document> find = context.apply(database.getCollection("system.profile").find(filter))
+                .projection(projection).batchSize(PROFILE_BATCH_SIZE);
+        try (MongoCursor<Document> cursor = find.cursor()) {
+            while (cursor.hasNext()) {
+                Document entry = cursor.next();
+                entries++;
+                long millis = JsonUtil.getLong(entry, "millis");
+                totalMillis += millis;
+
+                String op = entry.get("op") == null ? "?" : String.valueOf(entry.get("op"));
+                String ns = entry.get("ns") == null ? "" : String.valueOf(entry.get("ns"));
+                // getMore entries belong to the command that opened the cursor
+                Document command = entry.get("originatingCommand") instanceof Document
+                        ? (Document) entry.get("originatingCommand") : entry.get("command", Document.class);
+                String shape = command == null ? "{}" : normalizeCommand(command).toJson();
+                String key = op + " " + ns + " " + shape;
+
+                ShapeStats stats = shapes.get(key);
+                if (stats == null) {
+                    if (shapes.size() >= MAX_SHAPES) {
+                        overflowEntries++;
+                        key = OVERFLOW_SHAPE;
+                        stats = shapes.computeIfAbsent(key, k -> new ShapeStats("*", "*", OVERFLOW_SHAPE));
+                    } else {
+                        stats = new ShapeStats(op, ns, shape);
+                        shapes.put(key, stats);
+                    }
+                }
+                stats.add(entry, command, millis);
+            }
+        }
+
+        List<ShapeStats> ranked = new ArrayList<>(shapes.values());
+        ranked.sort((a, b) -> Long.compare(b.totalMillis, a.totalMillis));
+        int top = Math.min(options.top, ranked.size());
+        logger.info("Profile of {}: {} entries, {} shapes in {}ms", database.getName(), entries, shapes.size(),
+                System.currentTimeMillis() - startTime);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"database\": \"").append(JsonUtil.escape(database.getName())).append("\",");
+        json.append("\"windowMinutes\": ").append(options.windowMinutes).append(",");
+        json.append("\"minMillis\": ").append(options.minMillis).append(",");
+        json.append("\"since\": ").append(since.getTime()).append(",");
+        json.append("\"entries\": ").append(entries).append(",");
+        json.append("\"totalMillis\": ").append(totalMillis).append(",");
+        json.append("\"shapes\": ").append(shapes.size()).append(",");
+        json.append("\"overflowEntries\": ").append(overflowEntries).append(",");
+        json.append("\"analysisMs\": ").append(System.currentTimeMillis() - startTime).append(",");
+        json.append("\"top\": [");
+        for (int i = 0; i < top; i++) {
+            if (i > 0) json.append(",");
+            json.append(ranked.get(i).toJson());
+        }
+        json.append("]");
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * The command with per-call fields dropped, literals replaced and keys sorted.
+     * Specification fields such as sort and hint are kept verbatim only at the top level
+     * of the command and as pipeline stages, so a user field that happens to be called
+     * "key" still has its value replaced.
+     */
+    static Document normalizeCommand(Document command) {
+        Document shape = new Document();
+        if (command.isEmpty()) {
+            return shape;
+        }
+        // The command name stays first, with its value (usually the collection name)
+        String name = command.keySet().iterator().next();
+        shape.append(name, command.get(name));
+        for (String field : new TreeMap<>(command).keySet()) {
+            if (field.equals(name) || IGNORED_COMMAND_FIELDS.contains(field)) {
+                continue;
+            }
+            Object value = command.get(field);
+            if (SPECIFICATION_FIELDS.contains(field)) {
+                shape.append(field, value);
+            } else if (field.equals("pipeline")) {
+                shape.append(field, normalizePipeline(value));
+            } else {
+                shape.append(field, normalize(value));
+            }
+        }
+        return shape;
+    }
+
+    private static Object normalizePipeline(Object pipeline) {
+        if (!(pipeline instanceof List)) {
+            return normalize(pipeline);
+        }
+        List<Object> shape = new ArrayList<>();
+        for (Object stage : (List<?>) pipeline) {
+            shape.add(stage instanceof Document ? normalizeStage((Document) stage) : normalize(stage));
+        }
+        return shape;
+    }
+
+    private static Document normalizeStage(Document stage) {
+        Document shape = new Document();
+        for (String name : stage.keySet()) {
+            Object value = stage.get(name);
+            if (SPECIFICATION_FIELDS.contains(name)) {
+                shape.append(name, value);
+            } else if (name.equals("$facet") && value instanceof Document) {
+                Document facets = new Document();
+                for (String facet : new TreeMap<>((Document) value).keySet()) {
+                    facets.append(facet, normalizePipeline(((Document) value).get(facet)));
+                }
+                shape.append(name, facets);
+            } else if (SUBPIPELINE_STAGES.contains(name) && value instanceof Document) {
+                Document fields = new Document();
+                for (String field : new TreeMap<>((Document) value).keySet()) {
+                    Object fieldValue = ((Document) value).get(field);
+                    // The joined collection and field names are structure as well
+                    fields.append(field, field.equals("pipeline") ? normalizePipeline(fieldValue)
+                            : fieldValue instanceof String ? fieldValue : normalize(fieldValue));
+                }
+                shape.append(name, fields);
+            } else {
+                shape.append(name, normalize(value));
+            }
+        }
+        return shape;
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Document) {
+            Document document = (Document) value;
+            Document shape = new Document();
+            for (String key : new TreeMap<>(document).keySet()) {
+                shape.append(key, normalize(document.get(key)));
+            }
+            return shape;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            // Arrays of values become one literal; $and/$or clauses and expression operands
+            // such as ["$total", 5] keep their structure
+            boolean literals = true;
+            for (Object element : list) {
+                if (!isLiteral(element)) {
+                    literals = false;
+                    break;
+                }
+            }
+            if (literals) {
+                return "?";
+            }
+            List<Object> shape = new ArrayList<>(list.size());
+            for (Object element : list) {
+                shape.add(normalize(element));
+            }
+            return shape;
+        }
+        // Field paths such as "$amount" in pipelines are structure, not data
+        if (value instanceof String && ((String) value).startsWith("$")) {
+            return value;
+        }
+        return "?";
+    }
+
+    private static boolean isLiteral(Object value) {
+        return !(value instanceof Document) && !(value instanceof List)
+                && !(value instanceof String && ((String) value).startsWith("$"));
+    }
+
+    private static double ratio(long examined, long returned) {
+        return returned == 0 ? examined : Math.round(examined * 100.0 / returned) / 100.0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.dani.mongo.tshoot;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.enterprise.inject.spi.CDI;
+
+/**
+ * MicroProfile Metrics for the tool itself: per-action timers, result size histograms and
+ * gauges for open clients, cursors and requests, exposed on /metrics.
+ *
+ * The registry is looked up once when the application starts. If the mpMetrics feature is
+ * not available every method is a no-op, so the tool keeps working without it.
+ */
+public final class ToolMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(ToolMetrics.class);
+
+    private static final Metadata ACTION_DURATION = Metadata.builder()
+            .withName("tshoot.action.duration")
+            .withDescription("Time spent handling a request, by action")
+            .withUnit(MetricUnits.NANOSECONDS)
+            .build();
+    private static final Metadata MONGOSH_DURATION = Metadata.builder()
+            .withName("tshoot.mongosh.duration")
+            .withDescription("Time spent executing a mongosh command, by operation")
+            .withUnit(MetricUnits.NANOSECONDS)
+            .build();
+    private static final Metadata QUEUE_WAIT = Metadata.builder()
+            .withName("tshoot.request.queueWait")
+            .withDescription("Time requests waited for a free execution slot")
+            .withUnit(MetricUnits.NANOSECONDS)
+            .build();
+    private static final Metadata RESULT_DOCUMENTS = Metadata.builder()
+            .withName("tshoot.results.documents")
+            .withDescription("Documents returned per response, by action")
+            .withUnit(MetricUnits.NONE)
+            .build();
+
+    private static final AtomicInteger sessionClients = new AtomicInteger();
+
+    private static volatile MetricRegistry registry;
+
+    private ToolMetrics() {
+    }
+
+    /**
+     * Look up the application metric registry and register the gauges. Called when the
+     * application starts, on a container thread where CDI is available.
+     */
+    static void init() {
+        try {
+            MetricRegistry applicationRegistry = CDI.current().select(MetricRegistry.class).get();
+            applicationRegistry.gauge(Metadata.builder()
+                    .withName("tshoot.session.clients")
+                    .withDescription("MongoDB clients held open by HTTP sessions")
+                    .build(), sessionClients::get);
+            applicationRegistry.gauge(Metadata.builder()
+                    .withName("tshoot.clientCache.size")
+                    .withDescription("Clients in the temporary client cache")
+                    .build(), MongoClientCache::size);
+            applicationRegistry.gauge(Metadata.builder()
+                    .withName("tshoot.cursors.open")
+                    .withDescription("Paged cursors open across all sessions")
+                    .build(), CursorRegistry::openCursorCount);
+            applicationRegistry.gauge(Metadata.builder()
+                    .withName("tshoot.requests.inFlight")
+                    .withDescription("Requests currently being handled")
+                    .build(), OperationContext::inFlightCount);
+            applicationRegistry.gauge(Metadata.builder()
+                    .withName("tshoot.currentOp.watchers")
+                    .withDescription("currentOp watchers streaming to browsers")
+                    .build(), CurrentOpWatcher::activeCount);
+            registry = applicationRegistry;
+            logger.info("MicroProfile Metrics registered");
+        } catch (Exception | LinkageError e) {
+            logger.warn("MicroProfile Metrics not available, tool metrics are disabled: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Record how long a request took to handle.
+     */
+    public static void recordAction(String action, long nanos) {
+        MetricRegistry current = registry;
+        if (current != null) {
+            current.timer(ACTION_DURATION, new Tag("action", action)).update(Duration.ofNanos(nanos));
+        }
+    }
+
+    /**
+     * Record how long a mongosh command took, by operation (find, aggregate, ...).
+     */
+    public static void recordMongoshOperation(String operation, long nanos) {
+        MetricRegistry current = registry;
+        if (current != null) {
+            current.timer(MONGOSH_DURATION, new Tag("operation", operation)).update(Duration.ofNanos(nanos));
+        }
+    }
+
+    /**
+     * Record how long a request waited for an execution slot.
+     */
+    public static void recordQueueWait(long nanos) {
+        MetricRegistry current = registry;
+        if (current != null) {
+            current.timer(QUEUE_WAIT).update(Duration.ofNanos(nanos));
+        }
+    }
+
+    /**
+     * Record the number of documents a response returned.
+     */
+    public static void recordResultSize(String action, long documents) {
+        MetricRegistry current = registry;
+        if (current != null) {
+            current.histogram(RESULT_DOCUMENTS, new Tag("action", action)).update(documents);
+        }
+    }
+
+    static void sessionClientOpened() {
+        sessionClients.incrementAndGet();
+    }
+
+    static void sessionClientClosed() {
+        sessionClients.decrementAndGet();
+    }
+}
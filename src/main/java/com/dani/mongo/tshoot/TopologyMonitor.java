@@ -0,0 +1,434 @@
+package com.dani.mongo.tshoot;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.connection.ClusterDescription;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.connection.ServerType;
+import com.mongodb.event.ClusterClosedEvent;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import com.mongodb.event.ClusterListener;
+import com.mongodb.event.ClusterOpeningEvent;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import com.mongodb.event.ServerMonitorListener;
+
+/**
+ * The driver's own view of the topology of one client: heartbeat round-trip times per
+ * member, server state transitions, primary elections and how long the cluster went without
+ * a selectable server. One monitor is registered on every client the tool creates and can
+ * be looked up by client, so users only see the clusters they are connected to.
+ *
+ * Round-trip times are kept in two {@link LatencyHistogram}s per member that rotate every
+ * window, so percentiles cover the last one to two windows. Awaited (streaming) heartbeats
+ * include the time the server held the request, so for those the member's current average
+ * round-trip time is read from the client's cluster description and recorded instead. The
+ * driver raises no event when only that average changes, so the smoothed round-trip time is
+ * also read from the live description when the JSON is built.
+ */
+public class TopologyMonitor implements ClusterListener, ServerMonitorListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(TopologyMonitor.class);
+
+    private static final long WINDOW_MS = EnvironmentConfig.getInt("MONGO_TOPOLOGY_RTT_WINDOW_SECONDS", 300) * 1000L;
+    private static final int MAX_EVENTS = EnvironmentConfig.getInt("MONGO_TOPOLOGY_EVENT_HISTORY", 200);
+    private static final int MAX_SERVERS = 128;
+
+    private static final Map<MongoClient, TopologyMonitor> monitors = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, ServerStats> servers = new ConcurrentHashMap<>();
+    private final Map<String, ClusterStats> clusters = new ConcurrentHashMap<>();
+    private final ArrayDeque<String> events = new ArrayDeque<>();
+    private volatile WeakReference<MongoClient> client = new WeakReference<>(null);
+
+    private TopologyMonitor() {
+    }
+
+    /**
+     * Register a new monitor on client settings. The monitor must be linked to the client
+     * with {@link #register} once the client is built.
+     */
+    public static TopologyMonitor attach(MongoClientSettings.Builder builder) {
+        TopologyMonitor monitor = new TopologyMonitor();
+        builder.applyToClusterSettings(cluster -> cluster.addClusterListener(monitor));
+        builder.applyToServerSettings(server -> server.addServerMonitorListener(monitor));
+        return monitor;
+    }
+
+    /**
+     * Link a monitor to the client it was attached to. Entries go away with the client.
+     */
+    public static void register(MongoClient client, TopologyMonitor monitor) {
+        monitor.client = new WeakReference<>(client);
+        monitors.put(client, monitor);
+    }
+
+    /**
+     * The monitor of a client, or null for clients not created by MongoClientFactory.
+     */
+    public static TopologyMonitor forClient(MongoClient client) {
+        return monitors.get(client);
+    }
+
+    private static final class ServerStats {
+        final String address;
+        LatencyHistogram current = new LatencyHistogram();
+        LatencyHistogram previous = new LatencyHistogram();
+        long windowStart = System.currentTimeMillis();
+        long succeeded;
+        long failed;
+        long awaited;
+        long lastHeartbeatAt;
+        double lastRttMs = Double.NaN;
+        double smoothedRttMs = Double.NaN;
+        String lastError;
+        String type = ServerType.UNKNOWN.name();
+        long typeSince = System.currentTimeMillis();
+
+        ServerStats(String address) {
+            this.address = address;
+        }
+
+        void rotate(long now) {
+            if (now - windowStart < WINDOW_MS) {
+                return;
+            }
+            // After a gap longer than two windows the previous window has no recent values either
+            previous = now - windowStart < 2 * WINDOW_MS ? current : new LatencyHistogram();
+            current = new LatencyHistogram();
+            windowStart = now;
+        }
+
+        LatencyHistogram rolling(long now) {
+            rotate(now);
+            LatencyHistogram merged = new LatencyHistogram();
+            merged.merge(previous);
+            merged.merge(current);
+            return merged;
+        }
+    }
+
+    private static final class ClusterStats {
+        final String id;
+        final long openedAt = System.currentTimeMillis();
+        long discoveryMs = -1;
+        String type = "UNKNOWN";
+        List<String> members = new ArrayList<>();
+        String primary;
+        long primaryLostAt;
+        long elections;
+        long lastNoPrimaryMs;
+        long maxNoPrimaryMs;
+
+        ClusterStats(String id) {
+            this.id = id;
+        }
+    }
+
+    private ServerStats server(String address) {
+        ServerStats stats = servers.get(address);
+        if (stats != null) {
+            return stats;
+        }
+        if (servers.size() >= MAX_SERVERS) {
+            // Drop the member heard from least recently, typically one of a cluster no longer used
+            servers.values().stream().min(Comparator.comparingLong(s -> s.lastHeartbeatAt))
+                    .ifPresent(oldest -> servers.remove(oldest.address));
+        }
+        return servers.computeIfAbsent(address, ServerStats::new);
+    }
+
+    /**
+     * The client's current server descriptions by address, empty before the client is
+     * registered or once it is gone.
+     */
+    private Map<String, ServerDescription> liveDescriptions() {
+        Map<String, ServerDescription> descriptions = new HashMap<>();
+        MongoClient mongoClient = client.get();
+        if (mongoClient == null) {
+            return descriptions;
+        }
+        try {
+            for (ServerDescription description : mongoClient.getClusterDescription().getServerDescriptions()) {
+                descriptions.put(description.getAddress().toString(), description);
+            }
+        } catch (IllegalStateException e) {
+            // Client closed since it was looked up
+        }
+        return descriptions;
+    }
+
+    private void addEvent(String json) {
+        synchronized (events) {
+            events.addLast(json);
+            while (events.size() > MAX_EVENTS) {
+                events.removeFirst();
+            }
+        }
+    }
+
+    private static String event(long ts, String cluster, String kind, String address, String from, String to, String extra) {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"ts\": ").append(ts).append(",");
+        json.append("\"cluster\": \"").append(JsonUtil.escape(cluster)).append("\",");
+        json.append("\"event\": \"").append(kind).append("\"");
+        if (address != null) {
+            json.append(",\"address\": \"").append(JsonUtil.escape(address)).append("\"");
+        }
+        if (from != null) {
+            json.append(",\"from\": \"").append(JsonUtil.escape(from)).append("\"");
+        }
+        if (to != null) {
+            json.append(",\"to\": \"").append(JsonUtil.escape(to)).append("\"");
+        }
+        if (extra != null) {
+            json.append(",").append(extra);
+        }
+        json.append("}");
+        return json.toString();
+    }
+
+    @Override
+    public void clusterOpening(ClusterOpeningEvent event) {
+        clusters.put(event.getClusterId().getValue(), new ClusterStats(event.getClusterId().getValue()));
+    }
+
+    @Override
+    public void clusterClosed(ClusterClosedEvent event) {
+        clusters.remove(event.getClusterId().getValue());
+    }
+
+    @Override
+    public void clusterDescriptionChanged(ClusterDescriptionChangedEvent event) {
+        String clusterId = event.getClusterId().getValue();
+        ClusterStats cluster = clusters.get(clusterId);
+        ClusterDescription before = event.getPreviousDescription();
+        ClusterDescription after = event.getNewDescription();
+        long now = System.currentTimeMillis();
+
+        Map<String, String> previousTypes = new HashMap<>();
+        for (ServerDescription description : before.getServerDescriptions()) {
+            previousTypes.put(description.getAddress().toString(), description.getType().name());
+        }
+
+        String primary = null;
+        boolean anyOk = false;
+        List<String> members = new ArrayList<>();
+        for (ServerDescription description : after.getServerDescriptions()) {
+            String address = description.getAddress().toString();
+            String type = description.getType().name();
+            members.add(address);
+            if (description.isOk()) {
+                anyOk = true;
+            }
+            if (description.getType() == ServerType.REPLICA_SET_PRIMARY) {
+                primary = address;
+            }
+
+            ServerStats stats = server(address);
+            synchronized (stats) {
+                if (description.isOk()) {
+                    stats.smoothedRttMs = description.getRoundTripTimeNanos() / 1_000_000.0;
+                }
+                if (!type.equals(stats.type)) {
+                    stats.type = type;
+                    stats.typeSince = now;
+                }
+            }
+            String previousType = previousTypes.remove(address);
+            if (previousType != null && !previousType.equals(type)) {
+                logger.info("Server {} changed from {} to {}", address, previousType, type);
+                addEvent(event(now, clusterId, "stateChanged", address, previousType, type, null));
+            }
+        }
+        for (Map.Entry<String, String> removed : previousTypes.entrySet()) {
+            addEvent(event(now, clusterId, "removed", removed.getKey(), removed.getValue(), null, null));
+        }
+
+        if (cluster == null) {
+            return;
+        }
+        synchronized (cluster) {
+            cluster.type = after.getType().name();
+            cluster.members = members;
+            if (cluster.discoveryMs < 0 && anyOk) {
+                cluster.discoveryMs = now - cluster.openedAt;
+            }
+            if (cluster.primary != null && primary == null && cluster.primaryLostAt == 0) {
+                cluster.primaryLostAt = now;
+                logger.warn("Cluster {} lost its primary {}", clusterId, cluster.primary);
+                addEvent(event(now, clusterId, "primaryLost", cluster.primary, null, null, null));
+            } else if (primary != null && (!primary.equals(cluster.primary) || cluster.primaryLostAt > 0)) {
+                // Writes cannot select a server between losing the old primary and seeing the new one
+                long gap = cluster.primaryLostAt > 0 ? now - cluster.primaryLostAt : 0;
+                if (cluster.primary != null || cluster.primaryLostAt > 0) {
+                    cluster.elections++;
+                    cluster.lastNoPrimaryMs = gap;
+                    cluster.maxNoPrimaryMs = Math.max(cluster.maxNoPrimaryMs, gap);
+                    logger.warn("Cluster {} has a new primary {} after {}ms", clusterId, primary, gap);
+                    addEvent(event(now, clusterId, "primaryElected", primary, cluster.primary, primary,
+                            "\"noPrimaryMs\": " + gap));
+                }
+                cluster.primaryLostAt = 0;
+            }
+            if (primary != null || cluster.primaryLostAt == 0) {
+                cluster.primary = primary;
+            }
+        }
+    }
+
+    @Override
+    public void serverHeartbeatSucceeded(ServerHeartbeatSucceededEvent event) {
+        String address = event.getConnectionId().getServerId().getAddress().toString();
+        ServerStats stats = server(address);
+        long now = System.currentTimeMillis();
+        long nanos = -1;
+        if (event.isAwaited()) {
+            // Streamed heartbeats arrive about once per heartbeat interval; sample the driver's
+            // round-trip average then so the histograms fill in the default monitoring mode
+            ServerDescription description = liveDescriptions().get(address);
+            if (description != null && description.isOk() && description.getRoundTripTimeNanos() > 0) {
+                nanos = description.getRoundTripTimeNanos();
+            }
+        } else {
+            nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+        }
+        synchronized (stats) {
+            stats.succeeded++;
+            stats.lastHeartbeatAt = now;
+            stats.lastError = null;
+            if (event.isAwaited()) {
+                stats.awaited++;
+            }
+            if (nanos < 0) {
+                return;
+            }
+            stats.lastRttMs = nanos / 1_000_000.0;
+            stats.rotate(now);
+            stats.current.recordNanos(nanos);
+        }
+    }
+
+    @Override
+    public void serverHeartbeatFailed(ServerHeartbeatFailedEvent event) {
+        ServerStats stats = server(event.getConnectionId().getServerId().getAddress().toString());
+        synchronized (stats) {
+            stats.failed++;
+            stats.lastHeartbeatAt = System.currentTimeMillis();
+            Throwable error = event.getThrowable();
+            stats.lastError = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * JSON with per-member heartbeat statistics sorted by median round-trip time (slowest
+     * first), the client's open cluster and its recent topology events.
+     */
+    public String toJson() {
+        long now = System.currentTimeMillis();
+        Map<String, ServerDescription> live = liveDescriptions();
+
+        List<String> serverJson = new ArrayList<>();
+        List<double[]> order = new ArrayList<>();
+        for (ServerStats stats : servers.values()) {
+            StringBuilder json = new StringBuilder();
+            double p50;
+            ServerDescription description = live.get(stats.address);
+            synchronized (stats) {
+                if (description != null && description.isOk()) {
+                    stats.smoothedRttMs = description.getRoundTripTimeNanos() / 1_000_000.0;
+                }
+                LatencyHistogram rtt = stats.rolling(now);
+                p50 = rtt.getCount() == 0 ? -1 : rtt.getPercentileMicros(50);
+                json.append("{");
+                json.append("\"address\": \"").append(JsonUtil.escape(stats.address)).append("\",");
+                json.append("\"type\": \"").append(stats.type).append("\",");
+                json.append("\"typeSinceMs\": ").append(now - stats.typeSince).append(",");
+                json.append("\"heartbeats\": {\"succeeded\": ").append(stats.succeeded)
+                        .append(", \"failed\": ").append(stats.failed)
+                        .append(", \"awaited\": ").append(stats.awaited).append("},");
+                json.append("\"lastHeartbeatAgoMs\": ").append(stats.lastHeartbeatAt == 0 ? "null" : now - stats.lastHeartbeatAt).append(",");
+                json.append("\"lastRttMs\": ").append(formatMillis(stats.lastRttMs)).append(",");
+                json.append("\"smoothedRttMs\": ").append(formatMillis(stats.smoothedRttMs)).append(",");
+                if (stats.lastError != null) {
+                    json.append("\"lastError\": \"").append(JsonUtil.escape(stats.lastError)).append("\",");
+                }
+                json.append("\"rtt\": ").append(rtt.toJson());
+                json.append("}");
+            }
+            order.add(new double[] {p50, serverJson.size()});
+            serverJson.add(json.toString());
+        }
+        order.sort((a, b) -> Double.compare(b[0], a[0]));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"rttWindowSeconds\": ").append(WINDOW_MS / 1000).append(",");
+        json.append("\"servers\": [");
+        for (int i = 0; i < order.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(serverJson.get((int) order.get(i)[1]));
+        }
+        json.append("],");
+
+        json.append("\"clusters\": [");
+        boolean first = true;
+        for (ClusterStats cluster : clusters.values()) {
+            if (!first) json.append(",");
+            first = false;
+            synchronized (cluster) {
+                json.append("{");
+                json.append("\"id\": \"").append(JsonUtil.escape(cluster.id)).append("\",");
+                json.append("\"type\": \"").append(cluster.type).append("\",");
+                json.append("\"members\": [");
+                for (int i = 0; i < cluster.members.size(); i++) {
+                    if (i > 0) json.append(",");
+                    json.append("\"").append(JsonUtil.escape(cluster.members.get(i))).append("\"");
+                }
+                json.append("],");
+                json.append("\"primary\": ").append(cluster.primary == null ? "null" : "\"" + JsonUtil.escape(cluster.primary) + "\"").append(",");
+                json.append("\"openForMs\": ").append(now - cluster.openedAt).append(",");
+                json.append("\"discoveryMs\": ").append(cluster.discoveryMs < 0 ? "null" : cluster.discoveryMs).append(",");
+                json.append("\"noPrimaryForMs\": ").append(cluster.primaryLostAt > 0 ? now - cluster.primaryLostAt : 0).append(",");
+                json.append("\"elections\": ").append(cluster.elections).append(",");
+                json.append("\"lastNoPrimaryMs\": ").append(cluster.lastNoPrimaryMs).append(",");
+                json.append("\"maxNoPrimaryMs\": ").append(cluster.maxNoPrimaryMs);
+                json.append("}");
+            }
+        }
+        json.append("],");
+
+        json.append("\"events\": [");
+        synchronized (events) {
+            first = true;
+            for (String event : events) {
+                if (!first) json.append(",");
+                first = false;
+                json.append(event);
+            }
+        }
+        json.append("]");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static String formatMillis(double millis) {
+        return Double.isNaN(millis) ? "null" : String.valueOf(Math.round(millis * 1000) / 1000.0);
+    }
+}
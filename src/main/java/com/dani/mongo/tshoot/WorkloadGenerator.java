@@ -0,0 +1,391 @@
+package com.dani.mongo.tshoot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Synthetic read/insert/update workload against a scratch collection, used to measure the
+ * throughput a cluster sustains from this pod's network position.
+ *
+ * Workloads run in the background on virtual threads and are addressed by ID through the
+ * start/stop/status actions. The scratch collection is dropped when a workload stops, and
+ * finished workloads are forgotten after the retention time.
+ */
+public class WorkloadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkloadGenerator.class);
+
+    public static final int MAX_CONCURRENCY = 256;
+    public static final int MAX_DURATION_SECONDS = 3600;
+    public static final int MAX_DOCUMENT_SIZE = 1024 * 1024;
+    public static final int MAX_SEED_DOCUMENTS = 1_000_000;
+    private static final int MAX_RUNNING_WORKLOADS = EnvironmentConfig.getInt("MONGO_MAX_WORKLOADS", 4);
+    private static final long RETENTION_MS = EnvironmentConfig.getInt("MONGO_WORKLOAD_RETENTION_SECONDS", 3600) * 1000L;
+    private static final int SEED_BATCH_SIZE = 1000;
+    private static final int PAYLOAD_VARIANTS = 16;
+
+    private static final Map<String, WorkloadGenerator> workloads = new ConcurrentHashMap<>();
+
+    /**
+     * Workload parameters. Percentages must add up to 100. A targetOpsPerSec of 0 runs a
+     * closed loop where every worker issues its next operation as soon as the previous one
+     * completes.
+     */
+    public static final class Options {
+        public String database = "tshoot_scratch";
+        public int readPercent = 80;
+        public int insertPercent = 10;
+        public int updatePercent = 10;
+        public int concurrency = 8;
+        public int targetOpsPerSec;
+        public int documentSizeBytes = 1024;
+        public int seedDocuments = 1000;
+        public int durationSeconds = 60;
+        public boolean cleanup = true;
+    }
+
+    private enum OperationType {
+        READ, INSERT, UPDATE
+    }
+
+    private static final class OperationStats {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        volatile long lastSampleCount;
+        volatile double currentOpsPerSec;
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final Options options;
+    private final MongoClient client;
+    private final MongoCollection<Document> collection;
+    private final OperationStats[] stats = new OperationStats[OperationType.values().length];
+    private final String[] payloads = new String[PAYLOAD_VARIANTS];
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong scheduledOps = new AtomicLong();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private volatile String state = "starting";
+    private volatile String failure;
+    private volatile boolean stopRequested;
+    private volatile long startNanos;
+    private volatile long stopNanos;
+    private volatile long finishedAt;
+
+    private WorkloadGenerator(MongoClient client, Options options) {
+        this.client = client;
+        this.options = options;
+        this.collection = client.getDatabase(options.database).getCollection("workload_" + id.replace("-", ""));
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new OperationStats();
+        }
+        for (int i = 0; i < PAYLOAD_VARIANTS; i++) {
+            payloads[i] = randomPayload(options.documentSizeBytes);
+        }
+    }
+
+    /**
+     * Start a workload. The client must have been acquired from MongoClientCache; it is
+     * released when the workload stops.
+     */
+    public static WorkloadGenerator start(MongoClient client, Options options) {
+        validate(options);
+        synchronized (workloads) {
+            evictFinished();
+            long running = workloads.values().stream().filter(w -> !w.isFinished()).count();
+            if (running >= MAX_RUNNING_WORKLOADS) {
+                throw new IllegalStateException("Too many running workloads (max " + MAX_RUNNING_WORKLOADS + ")");
+            }
+            WorkloadGenerator workload = new WorkloadGenerator(client, options);
+            workloads.put(workload.id, workload);
+            workload.executor.submit(workload::run);
+            logger.info("Started workload {} on {}", workload.id, workload.collection.getNamespace());
+            return workload;
+        }
+    }
+
+    public static WorkloadGenerator get(String id) {
+        evictFinished();
+        return id == null ? null : workloads.get(id);
+    }
+
+    public static List<WorkloadGenerator> list() {
+        evictFinished();
+        return new ArrayList<>(workloads.values());
+    }
+
+    /**
+     * Forget workloads that finished longer than the retention time ago.
+     */
+    private static void evictFinished() {
+        long now = System.currentTimeMillis();
+        workloads.values().removeIf(workload -> workload.finishedAt > 0 && now - workload.finishedAt > RETENTION_MS);
+    }
+
+    /**
+     * Forget a finished workload so it no longer shows up in status listings.
+     */
+    public static boolean remove(String id) {
+        WorkloadGenerator workload = get(id);
+        if (workload == null || !workload.isFinished()) {
+            return false;
+        }
+        workloads.remove(id);
+        return true;
+    }
+
+    /**
+     * Stop every workload. Called when the application is stopped.
+     */
+    public static void shutdown() {
+        for (WorkloadGenerator workload : workloads.values()) {
+            workload.stop();
+        }
+        for (WorkloadGenerator workload : workloads.values()) {
+            workload.executor.close();
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isFinished() {
+        return "stopped".equals(state) || "failed".equals(state);
+    }
+
+    /**
+     * Ask the workload to stop. Workers finish their current operation, then the scratch
+     * collection is cleaned up in the background.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    private void run() {
+        try {
+            seed();
+            state = "running";
+            startNanos = System.nanoTime();
+            long deadline = startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < options.concurrency; i++) {
+                workers.add(executor.submit(() -> workerLoop(deadline)));
+            }
+
+            // Sample per-second throughput until the workers are done
+            while (!stopRequested && System.nanoTime() < deadline) {
+                Thread.sleep(1000);
+                sampleRates();
+            }
+            stopRequested = true;
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            stopNanos = System.nanoTime();
+            state = "stopped";
+        } catch (Exception e) {
+            logger.error("Workload {} failed: {}", id, e.getMessage(), e);
+            failure = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            stopNanos = System.nanoTime();
+            state = "failed";
+        } finally {
+            // Workers still running after a failure stop at their next operation
+            stopRequested = true;
+            cleanup();
+            // This task runs on the executor, so it can only be shut down, not closed, from here
+            executor.shutdown();
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void seed() {
+        state = "seeding";
+        List<Document> batch = new ArrayList<>(SEED_BATCH_SIZE);
+        for (int i = 0; i < options.seedDocuments && !stopRequested; i++) {
+            batch.add(newDocument());
+            if (batch.size() == SEED_BATCH_SIZE) {
+                collection.insertMany(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            collection.insertMany(batch);
+        }
+        logger.info("Workload {} seeded {} documents", id, nextId.get());
+    }
+
+    private void workerLoop(long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intervalNanos = options.targetOpsPerSec > 0 ? 1_000_000_000L / options.targetOpsPerSec : 0;
+
+        while (!stopRequested && System.nanoTime() < deadline) {
+            long intendedStart = System.nanoTime();
+            if (intervalNanos > 0) {
+                // Open loop: claim the next slot of the global schedule and wait for it
+                intendedStart = startNanos + scheduledOps.getAndIncrement() * intervalNanos;
+                long wait = intendedStart - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (stopRequested || System.nanoTime() >= deadline) {
+                    break;
+                }
+            }
+
+            int roll = random.nextInt(100);
+            OperationType type = roll < options.readPercent ? OperationType.READ
+                    : roll < options.readPercent + options.insertPercent ? OperationType.INSERT
+                    : OperationType.UPDATE;
+            OperationStats opStats = stats[type.ordinal()];
+            try {
+                execute(type, random);
+                // Measured from the intended start so a backed-up schedule shows up as latency
+                opStats.histogram.recordNanos(System.nanoTime() - intendedStart);
+            } catch (Exception e) {
+                opStats.errors.increment();
+                logger.debug("Workload {} {} failed: {}", id, type, e.getMessage());
+            }
+        }
+    }
+
+    private void execute(OperationType type, ThreadLocalRandom random) {
+        long maxId = Math.max(1, nextId.get());
+        switch (type) {
+            case READ:
+                collection.find(Filters.eq("_id", random.nextLong(maxId))).first();
+                break;
+            case INSERT:
+                collection.insertOne(newDocument());
+                break;
+            case UPDATE:
+                collection.updateOne(Filters.eq("_id", random.nextLong(maxId)),
+                        Updates.combine(Updates.inc("counter", 1), Updates.currentDate("updatedAt")));
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation: " + type);
+        }
+    }
+
+    private Document newDocument() {
+        return new Document("_id", nextId.getAndIncrement())
+                .append("counter", 0)
+                .append("payload", payloads[ThreadLocalRandom.current().nextInt(PAYLOAD_VARIANTS)]);
+    }
+
+    private void sampleRates() {
+        for (OperationStats opStats : stats) {
+            long count = opStats.histogram.getCount();
+            opStats.currentOpsPerSec = count - opStats.lastSampleCount;
+            opStats.lastSampleCount = count;
+        }
+    }
+
+    private void cleanup() {
+        try {
+            if (options.cleanup) {
+                collection.drop();
+                logger.info("Workload {} dropped scratch collection {}", id, collection.getNamespace());
+            }
+        } catch (Exception e) {
+            logger.warn("Workload {} failed to drop scratch collection: {}", id, e.getMessage());
+        } finally {
+            MongoClientCache.release(client);
+        }
+    }
+
+    /**
+     * JSON status with per-operation throughput and latency percentiles.
+     */
+    public String toJson() {
+        long end = isFinished() ? stopNanos : System.nanoTime();
+        double elapsedSeconds = startNanos == 0 ? 0.0 : (end - startNanos) / 1_000_000_000.0;
+        long totalOps = 0;
+
+        StringBuilder operations = new StringBuilder("{");
+        for (OperationType type : OperationType.values()) {
+            OperationStats opStats = stats[type.ordinal()];
+            long count = opStats.histogram.getCount();
+            totalOps += count;
+            if (type.ordinal() > 0) operations.append(",");
+            operations.append("\"").append(type.name().toLowerCase()).append("\": {");
+            operations.append("\"count\": ").append(count).append(",");
+            operations.append("\"errors\": ").append(opStats.errors.sum()).append(",");
+            operations.append("\"avgOpsPerSec\": ").append(rate(count, elapsedSeconds)).append(",");
+            operations.append("\"currentOpsPerSec\": ").append(isFinished() ? 0.0 : opStats.currentOpsPerSec).append(",");
+            operations.append("\"latency\": ").append(opStats.histogram.toJson());
+            operations.append("}");
+        }
+        operations.append("}");
+
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        json.append("\"id\": \"").append(id).append("\",");
+        json.append("\"state\": \"").append(state).append("\",");
+        if (failure != null) {
+            json.append("\"failure\": \"").append(JsonUtil.escape(failure)).append("\",");
+        }
+        json.append("\"namespace\": \"").append(JsonUtil.escape(collection.getNamespace().getFullName())).append("\",");
+        json.append("\"elapsedSeconds\": ").append(Math.round(elapsedSeconds * 10) / 10.0).append(",");
+        json.append("\"totalOps\": ").append(totalOps).append(",");
+        json.append("\"avgOpsPerSec\": ").append(rate(totalOps, elapsedSeconds)).append(",");
+        json.append("\"options\": {");
+        json.append("\"readPercent\": ").append(options.readPercent).append(",");
+        json.append("\"insertPercent\": ").append(options.insertPercent).append(",");
+        json.append("\"updatePercent\": ").append(options.updatePercent).append(",");
+        json.append("\"concurrency\": ").append(options.concurrency).append(",");
+        json.append("\"targetOpsPerSec\": ").append(options.targetOpsPerSec).append(",");
+        json.append("\"documentSizeBytes\": ").append(options.documentSizeBytes).append(",");
+        json.append("\"seedDocuments\": ").append(options.seedDocuments).append(",");
+        json.append("\"durationSeconds\": ").append(options.durationSeconds).append(",");
+        json.append("\"cleanup\": ").append(options.cleanup);
+        json.append("},");
+        json.append("\"operations\": ").append(operations);
+        json.append("}");
+        return json.toString();
+    }
+
+    private static double rate(long count, double seconds) {
+        return seconds > 0 ? Math.round(count / seconds * 10) / 10.0 : 0.0;
+    }
+
+    private static void validate(Options options) {
+        if (options.readPercent < 0 || options.insertPercent < 0 || options.updatePercent < 0
+                || options.readPercent + options.insertPercent + options.updatePercent != 100) {
+            throw new IllegalArgumentException("readPercent, insertPercent and updatePercent must add up to 100");
+        }
+        if (options.database == null || options.database.trim().isEmpty()) {
+            throw new IllegalArgumentException("Database name is required");
+        }
+    }
+
+    private static String randomPayload(int size) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,171 @@
+package com.dani.mongo.tshoot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+class ExplainAnalyzerTest {
+
+    private static Document find(String explain, String filter, String sort, String projection) {
+        return Document.parse(ExplainAnalyzer.analyzeFind("orders", Document.parse(explain), Document.parse(filter),
+                sort == null ? null : Document.parse(sort), projection == null ? null : Document.parse(projection)));
+    }
+
+    private static List<String> suggestedKeys(Document digest) {
+        return digest.getList("indexSuggestions", Document.class).stream()
+                .map(suggestion -> suggestion.get("key", Document.class).toJson())
+                .toList();
+    }
+
+    private static boolean anyContains(List<String> values, String part) {
+        return values.stream().anyMatch(value -> value.contains(part));
+    }
+
+    private static final String COLLSCAN_WITH_SORT = "{queryPlanner: {winningPlan: {stage: 'SORT', sortPattern: {createdAt: -1}, "
+            + "inputStage: {stage: 'COLLSCAN', filter: {status: {$eq: 'A'}}}}, rejectedPlans: []}, "
+            + "executionStats: {nReturned: 10, executionTimeMillis: 50, totalKeysExamined: 0, totalDocsExamined: 5000, "
+            + "executionStages: {stage: 'SORT', nReturned: 10, usedDisk: false, "
+            + "inputStage: {stage: 'COLLSCAN', nReturned: 10, docsExamined: 5000}}}}";
+
+    @Test
+    void reportsCollectionScanAndBlockingSort() {
+        Document digest = find(COLLSCAN_WITH_SORT, "{status: 'A'}", "{createdAt: -1}", null);
+
+        assertTrue(digest.getBoolean("collectionScan"));
+        assertTrue(digest.getBoolean("inMemorySort"));
+        assertEquals(5000, digest.getInteger("totalDocsExamined"));
+        assertEquals(500.0, digest.getDouble("docsExaminedPerReturned"));
+        List<String> warnings = digest.getList("warnings", String.class);
+        assertTrue(anyContains(warnings, "Collection scan"));
+        assertTrue(anyContains(warnings, "Blocking in-memory SORT"));
+
+        List<Document> stages = digest.getList("executionStages", Document.class);
+        assertEquals("SORT", stages.get(0).getString("stage"));
+        assertEquals("COLLSCAN", stages.get(1).getString("stage"));
+        assertEquals(1, stages.get(1).getInteger("depth"));
+        assertEquals(5000, stages.get(1).getInteger("docsExamined"));
+    }
+
+    @Test
+    void ordersSuggestedKeyAsEqualitySortRange() {
+        Document digest = find(COLLSCAN_WITH_SORT, "{total: {$gt: 100}, status: 'A', region: {$in: ['eu', 'us']}}",
+                "{createdAt: -1}", null);
+
+        assertEquals(List.of("{\"status\": 1, \"region\": 1, \"createdAt\": -1, \"total\": 1}"), suggestedKeys(digest));
+    }
+
+    @Test
+    void suggestsCoveringIndexForInclusionProjectionWithoutId() {
+        Document digest = find(COLLSCAN_WITH_SORT, "{status: 'A'}", null, "{status: 1, total: 1, _id: 0}");
+
+        assertEquals(List.of("{\"status\": 1}", "{\"status\": 1, \"total\": 1}"), suggestedKeys(digest));
+    }
+
+    @Test
+    void doesNotSuggestCoveringIndexWhenIdIsReturned() {
+        Document digest = find(COLLSCAN_WITH_SORT, "{status: 'A'}", null, "{status: 1, total: 1}");
+
+        assertEquals(List.of("{\"status\": 1}"), suggestedKeys(digest));
+    }
+
+    @Test
+    void skipsSuggestionWhenIndexWithLeadingFieldsIsUsed() {
+        String explain = "{queryPlanner: {winningPlan: {stage: 'FETCH', filter: {total: {$gt: 5}}, "
+                + "inputStage: {stage: 'IXSCAN', indexName: 'status_1', keyPattern: {status: 1}}}, rejectedPlans: []}, "
+                + "executionStats: {nReturned: 10, executionTimeMillis: 80, totalKeysExamined: 50000, "
+                + "totalDocsExamined: 50000, executionStages: {stage: 'FETCH', nReturned: 10, docsExamined: 50000, "
+                + "inputStage: {stage: 'IXSCAN', nReturned: 50000, keysExamined: 50000, keyPattern: {status: 1}}}}}";
+        Document digest = find(explain, "{status: 'A'}", null, null);
+
+        assertFalse(digest.getBoolean("collectionScan"));
+        assertTrue(suggestedKeys(digest).isEmpty());
+        assertTrue(anyContains(digest.getList("notes", String.class), "already uses index {\"status\": 1}"));
+        assertTrue(anyContains(digest.getList("warnings", String.class), "not selective"));
+    }
+
+    @Test
+    void skipsSuggestionWhenPlanIsEfficient() {
+        String explain = "{queryPlanner: {winningPlan: {stage: 'IXSCAN', keyPattern: {sku: 1}}}, "
+                + "executionStats: {nReturned: 1, totalKeysExamined: 1, totalDocsExamined: 1, "
+                + "executionStages: {stage: 'IXSCAN', nReturned: 1}}}";
+        Document digest = find(explain, "{status: 'A'}", null, null);
+
+        assertTrue(suggestedKeys(digest).isEmpty());
+        assertTrue(anyContains(digest.getList("notes", String.class), "does not show a collection scan"));
+    }
+
+    @Test
+    void walksSlotBasedPlans() {
+        String explain = "{queryPlanner: {winningPlan: {queryPlan: {stage: 'FETCH', "
+                + "inputStage: {stage: 'IXSCAN', indexName: 'sku_1', keyPattern: {sku: 1}}}, slotBasedPlan: {stages: '...'}}, "
+                + "rejectedPlans: [{queryPlan: {stage: 'COLLSCAN'}}]}, "
+                + "executionStats: {nReturned: 3, totalKeysExamined: 3, totalDocsExamined: 3, "
+                + "executionStages: {stage: 'nlj', nReturned: 3, outerStage: {stage: 'ixseek', nReturned: 3}, "
+                + "innerStage: {stage: 'limit', inputStage: {stage: 'seek', nReturned: 3}}}}}";
+        Document digest = find(explain, "{sku: 'x'}", null, null);
+
+        assertFalse(digest.getBoolean("collectionScan"));
+        List<Document> winning = digest.getList("winningPlan", Document.class);
+        assertEquals("FETCH", winning.get(0).getString("stage"));
+        assertEquals("sku_1", winning.get(1).getString("indexName"));
+
+        List<Document> stages = digest.getList("executionStages", Document.class);
+        assertEquals(List.of("nlj", "ixseek", "limit", "seek"),
+                stages.stream().map(stage -> stage.getString("stage")).toList());
+        assertEquals(2, stages.get(3).getInteger("depth"));
+
+        assertEquals("COLLSCAN", digest.getList("rejectedPlans", Document.class).get(0).getString("stages"));
+    }
+
+    @Test
+    void reportsEveryShardOfAShardedFind() {
+        String explain = "{queryPlanner: {winningPlan: {stage: 'SHARD_MERGE', shards: ["
+                + "{shardName: 's0', winningPlan: {stage: 'COLLSCAN'}, rejectedPlans: [{stage: 'FETCH', "
+                + "inputStage: {stage: 'IXSCAN', keyPattern: {x: 1}}}]}, "
+                + "{shardName: 's1', winningPlan: {stage: 'FETCH', inputStage: {stage: 'IXSCAN', keyPattern: {x: 1}}}}]}}, "
+                + "executionStats: {nReturned: 4, executionTimeMillis: 7, totalKeysExamined: 2, totalDocsExamined: 2000, "
+                + "executionStages: {stage: 'SHARD_MERGE', nReturned: 4, shards: ["
+                + "{shardName: 's0', executionStages: {stage: 'COLLSCAN', nReturned: 2, docsExamined: 1998}}, "
+                + "{shardName: 's1', executionStages: {stage: 'FETCH', nReturned: 2, "
+                + "inputStage: {stage: 'IXSCAN', nReturned: 2, keyPattern: {x: 1}}}}]}}}";
+        Document digest = find(explain, "{x: 5}", null, null);
+
+        assertTrue(digest.getBoolean("collectionScan"));
+        List<Document> winning = digest.getList("winningPlan", Document.class);
+        assertTrue(winning.stream().anyMatch(stage -> "s0".equals(stage.getString("shard"))
+                && "COLLSCAN".equals(stage.getString("stage"))));
+        assertTrue(winning.stream().anyMatch(stage -> "s1".equals(stage.getString("shard"))
+                && "IXSCAN".equals(stage.getString("stage"))));
+
+        Document rejected = digest.getList("rejectedPlans", Document.class).get(0);
+        assertEquals("s0", rejected.getString("shard"));
+        assertEquals("FETCH <- IXSCAN {\"x\": 1}", rejected.getString("stages"));
+
+        // Shard s1 already has an index on x, so none is suggested despite the scan on s0
+        assertTrue(suggestedKeys(digest).isEmpty());
+        assertTrue(anyContains(digest.getList("notes", String.class), "already uses index {\"x\": 1}"));
+    }
+
+    @Test
+    void analyzesAggregateCursorAndSortStages() {
+        String explain = "{stages: [{$cursor: {queryPlanner: {winningPlan: {stage: 'COLLSCAN'}}, "
+                + "executionStats: {nReturned: 100, totalDocsExamined: 5000, executionStages: {stage: 'COLLSCAN'}}}}, "
+                + "{$sort: {sortKey: {total: -1}}, nReturned: 100, executionTimeMillisEstimate: 12, usedDisk: true}]}";
+        List<Document> pipeline = List.of(Document.parse("{$match: {status: 'A'}}"),
+                Document.parse("{$sort: {total: -1}}"), Document.parse("{$limit: 10}"));
+        Document digest = Document.parse(ExplainAnalyzer.analyzeAggregate("orders", Document.parse(explain), pipeline));
+
+        assertTrue(digest.getBoolean("collectionScan"));
+        assertTrue(digest.getBoolean("inMemorySort"));
+        assertTrue(anyContains(digest.getList("warnings", String.class), "spilled to disk"));
+        Document sortStage = digest.getList("pipelineStages", Document.class).get(0);
+        assertEquals("$sort", sortStage.getString("stage"));
+        assertEquals(12, sortStage.getInteger("executionTimeMillisEstimate"));
+        assertEquals(List.of("{\"status\": 1, \"total\": -1}"), suggestedKeys(digest));
+    }
+}
@@ -0,0 +1,71 @@
+package com.dani.mongo.tshoot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class HyperLogLogTest {
+
+    private static long hash(long value) {
+        return HyperLogLog.hash(ByteBuffer.allocate(8).putLong(0, value), 0, 8, 0);
+    }
+
+    private static HyperLogLog sketch(long from, long to) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (long i = from; i < to; i++) {
+            sketch.add(hash(i));
+        }
+        return sketch;
+    }
+
+    private static void assertWithin(long expected, long actual, double tolerance) {
+        assertTrue(Math.abs(actual - expected) <= expected * tolerance,
+                "expected " + expected + " +/- " + (int) (tolerance * 100) + "% but was " + actual);
+    }
+
+    @Test
+    void emptySketchEstimatesZero() {
+        assertEquals(0, new HyperLogLog().estimate());
+    }
+
+    @Test
+    void smallCountsAreNearlyExact() {
+        assertEquals(10, sketch(0, 10).estimate());
+        assertWithin(100, sketch(0, 100).estimate(), 0.02);
+    }
+
+    @Test
+    void largeCountsStayWithinTheStandardError() {
+        assertWithin(1000, sketch(0, 1000).estimate(), 0.05);
+        assertWithin(100_000, sketch(0, 100_000).estimate(), 0.10);
+    }
+
+    @Test
+    void repeatedValuesAreCountedOnce() {
+        HyperLogLog sketch = sketch(0, 500);
+        long once = sketch.estimate();
+        for (long i = 0; i < 500; i++) {
+            sketch.add(hash(i));
+        }
+        assertEquals(once, sketch.estimate());
+    }
+
+    @Test
+    void mergeEstimatesTheUnion() {
+        HyperLogLog merged = sketch(0, 6000);
+        merged.merge(sketch(4000, 10_000));
+        assertEquals(sketch(0, 10_000).estimate(), merged.estimate());
+    }
+
+    @Test
+    void hashDependsOnSeedAndRange() {
+        ByteBuffer bytes = ByteBuffer.wrap(new byte[] {1, 2, 3, 1, 2, 3});
+        assertEquals(HyperLogLog.hash(bytes, 0, 3, 2), HyperLogLog.hash(bytes, 3, 3, 2));
+        assertNotEquals(HyperLogLog.hash(bytes, 0, 3, 2), HyperLogLog.hash(bytes, 0, 3, 16));
+        assertNotEquals(HyperLogLog.hash(bytes, 0, 3, 2), HyperLogLog.hash(bytes, 0, 4, 2));
+    }
+}
@@ -0,0 +1,75 @@
+package com.dani.mongo.tshoot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZeros() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(99));
+        assertEquals(0.0, histogram.getMeanMicros());
+        assertEquals("{\"count\": 0,\"minMs\": 0.0,\"meanMs\": 0.0,\"p50Ms\": 0.0,\"p90Ms\": 0.0,"
+                + "\"p99Ms\": 0.0,\"p999Ms\": 0.0,\"maxMs\": 0.0}", histogram.toJson());
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100; micros++) {
+            histogram.recordMicros(micros);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMicros());
+        assertEquals(50, histogram.getPercentileMicros(50));
+        assertEquals(99, histogram.getPercentileMicros(99));
+        assertEquals(100, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    void bucketsBoundTheRelativeError() {
+        int previous = -1;
+        for (long value = 0; value < 1L << 40; value = value < 1000 ? value + 1 : value + value / 97) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long upper = LatencyHistogram.bucketUpperBound(index);
+            assertTrue(index >= previous, "bucket index decreased at " + value);
+            assertTrue(upper >= value && upper - value <= value / 64, value + " -> " + upper);
+            previous = index;
+        }
+    }
+
+    @Test
+    void percentilesNeverExceedTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(1000);
+        histogram.recordMicros(5_000_001);
+        histogram.recordMicros(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(0));
+        assertEquals(5_000_001, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    void recordsNanosAsMicros() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(2_500_000);
+        assertEquals(2500, histogram.getMaxMicros());
+        assertTrue(histogram.toJson().contains("\"p50Ms\": 2.5,"), histogram.toJson());
+    }
+
+    @Test
+    void mergeMatchesRecordingIntoOneHistogram() {
+        LatencyHistogram expected = new LatencyHistogram();
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (long micros = 1; micros <= 100_000; micros += 7) {
+            expected.recordMicros(micros);
+            (micros % 2 == 0 ? first : second).recordMicros(micros);
+        }
+        first.merge(second);
+        assertEquals(expected.toJson(), first.toJson());
+    }
+}
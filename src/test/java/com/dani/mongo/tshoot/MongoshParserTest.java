@@ -0,0 +1,110 @@
+package com.dani.mongo.tshoot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+class MongoshParserTest {
+
+    @Test
+    void parsesShowCommands() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached("show collections");
+        assertEquals(MongoshParser.Kind.SHOW, plan.kind);
+        assertEquals("collections", plan.showTarget);
+    }
+
+    @Test
+    void parsesCollectionMethodChains() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached(
+                "db.orders.find({status: 'A', total: {$gt: 10}}).sort({total: -1}).limit(5)");
+        assertEquals(MongoshParser.Kind.COLLECTION, plan.kind);
+        assertEquals("orders", plan.collection);
+        assertEquals(3, plan.calls.size());
+        assertEquals(Document.parse("{status: 'A', total: {$gt: 10}}"), plan.operation().documentArg(0));
+        assertEquals(Document.parse("{total: -1}"), plan.calls.get(1).documentArg(0));
+        assertEquals(5, plan.calls.get(2).numberArg(0).intValue());
+    }
+
+    @Test
+    void parsesDatabaseAndCollectionNames() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached("db.getSiblingDB('shop').system.profile.find()");
+        assertEquals("shop", plan.database);
+        assertEquals("system.profile", plan.collection);
+
+        plan = MongoshParser.parseUncached("db[\"my-orders\"].countDocuments()");
+        assertEquals("my-orders", plan.collection);
+        assertNull(plan.database);
+    }
+
+    @Test
+    void parsesDatabaseMethodsWithProperties() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached("db.serverStatus().mem");
+        assertEquals(MongoshParser.Kind.DATABASE, plan.kind);
+        assertEquals("serverStatus", plan.operation().name);
+        assertEquals(List.of("mem"), plan.properties);
+    }
+
+    @Test
+    void parsesShellConstructorsAndPipelines() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached(
+                "db.orders.aggregate([{$match: {_id: ObjectId('5f1d7f3e9d3b2c1a2b3c4d5e')}}, {$group: {_id: '$status'}}])");
+        List<?> pipeline = (List<?>) plan.operation().args.get(0);
+        assertEquals(2, pipeline.size());
+        Document match = ((Document) pipeline.get(0)).get("$match", Document.class);
+        assertEquals(new ObjectId("5f1d7f3e9d3b2c1a2b3c4d5e"), match.get("_id"));
+    }
+
+    @Test
+    void keepsAggregateStagesEndingInNestedDocuments() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached(
+                "db.orders.aggregate([{$match: {a: 1}}, {$project: {b: {$add: ['$x', 1]}}}], {allowDiskUse: true})");
+        assertEquals(List.of(Document.parse("{$match: {a: 1}}"), Document.parse("{$project: {b: {$add: ['$x', 1]}}}")),
+                plan.operation().args.get(0));
+        assertEquals(Document.parse("{allowDiskUse: true}"), plan.operation().documentArg(1));
+
+        plan = MongoshParser.parseUncached("db.orders.aggregate({$match: {a: 1}}, {$limit: 5})");
+        assertEquals(Document.parse("{$limit: 5}"), plan.operation().documentArg(1));
+    }
+
+    @Test
+    void ignoresBracketsInsideStrings() {
+        MongoshParser.Plan plan = MongoshParser.parseUncached("db.notes.find({text: 'a ) ] } b', tag: \"[x\"})");
+        assertEquals("a ) ] } b", plan.operation().documentArg(0).getString("text"));
+        assertEquals("[x", plan.operation().documentArg(0).getString("tag"));
+    }
+
+    @Test
+    void rejectsMismatchedBrackets() {
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                () -> MongoshParser.parseUncached("db.orders.find({a: [1, 2}])"));
+        assertTrue(error.getMessage().startsWith("Unexpected '}'"), error.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> MongoshParser.parseUncached("db.orders.find({a: (1})"));
+    }
+
+    @Test
+    void rejectsUnbalancedBrackets() {
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                () -> MongoshParser.parseUncached("db.orders.find({a: [1, 2]"));
+        assertTrue(error.getMessage().startsWith("Unbalanced brackets"), error.getMessage());
+    }
+
+    @Test
+    void rejectsCommandsWithoutAMethodCall() {
+        assertThrows(IllegalArgumentException.class, () -> MongoshParser.parseUncached("db.orders"));
+        assertThrows(IllegalArgumentException.class, () -> MongoshParser.parseUncached("orders.find()"));
+    }
+
+    @Test
+    void cachesPlansByTrimmedText() {
+        MongoshParser.Plan first = MongoshParser.parse("db.cacheTest.find({a: 1})");
+        assertSame(first, MongoshParser.parse("  db.cacheTest.find({a: 1})  "));
+    }
+}
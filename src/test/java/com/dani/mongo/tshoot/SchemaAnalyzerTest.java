@@ -0,0 +1,80 @@
+package com.dani.mongo.tshoot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Test;
+
+class SchemaAnalyzerTest {
+
+    private static final List<String> DOCUMENTS = List.of(
+            "{_id: 1, name: 'a', items: [{sku: 'x', qty: 1}, {sku: 'y', qty: 2}]}",
+            "{_id: 2, name: 3, items: []}",
+            "{_id: 3, name: null, address: {city: 'Lyon'}}",
+            "{_id: 4, name: 'a', items: [{sku: 'x', qty: 5}]}");
+
+    private static SchemaAnalyzer.Profile profile(List<String> documents) {
+        SchemaAnalyzer.Profile profile = new SchemaAnalyzer.Profile();
+        for (String json : documents) {
+            profile.add(RawBsonDocument.parse(json));
+        }
+        return profile;
+    }
+
+    @Test
+    void recordsTypesAndPresencePerField() {
+        SchemaAnalyzer.Profile profile = profile(DOCUMENTS);
+        assertEquals(4, profile.documents);
+
+        SchemaAnalyzer.FieldStats name = profile.fields.get("name");
+        assertEquals(4, name.documents);
+        assertEquals(Map.of(BsonType.STRING, 2L, BsonType.INT32, 1L, BsonType.NULL, 1L), name.types);
+        assertEquals(2, name.valueTypeCount());
+        assertEquals(3, name.distinct.estimate());
+
+        assertEquals(1, profile.fields.get("address.city").documents);
+    }
+
+    @Test
+    void recordsArrayElementsUnderTheirOwnPath() {
+        SchemaAnalyzer.Profile profile = profile(DOCUMENTS);
+
+        SchemaAnalyzer.FieldStats items = profile.fields.get("items");
+        assertEquals(3, items.arrays);
+        assertEquals(2, items.maxArrayLength);
+
+        SchemaAnalyzer.FieldStats sku = profile.fields.get("items[].sku");
+        assertEquals(2, sku.documents);
+        assertEquals(3, sku.values);
+        assertEquals(2, sku.distinct.estimate());
+        assertNull(profile.fields.get("items.sku"));
+    }
+
+    @Test
+    void mergeMatchesASingleProfile() {
+        SchemaAnalyzer.Profile expected = profile(DOCUMENTS);
+        SchemaAnalyzer.Profile merged = profile(DOCUMENTS.subList(0, 2));
+        merged.merge(profile(DOCUMENTS.subList(2, 4)));
+
+        assertEquals(expected.documents, merged.documents);
+        assertEquals(expected.totalBytes, merged.totalBytes);
+        assertEquals(expected.minBytes, merged.minBytes);
+        assertEquals(expected.maxBytes, merged.maxBytes);
+        assertEquals(expected.fields.keySet(), merged.fields.keySet());
+        for (SchemaAnalyzer.FieldStats field : expected.fields.values()) {
+            SchemaAnalyzer.FieldStats other = merged.fields.get(field.path);
+            assertEquals(field.documents, other.documents, field.path);
+            assertEquals(field.values, other.values, field.path);
+            assertEquals(field.types, other.types, field.path);
+            assertEquals(field.minBytes, other.minBytes, field.path);
+            assertEquals(field.maxBytes, other.maxBytes, field.path);
+            assertEquals(field.maxArrayLength, other.maxArrayLength, field.path);
+            assertEquals(field.distinct.estimate(), other.distinct.estimate(), field.path);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.dani.mongo.tshoot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+class SlowQueryAnalyzerTest {
+
+    private static String shape(String command) {
+        return SlowQueryAnalyzer.normalizeCommand(Document.parse(command)).toJson();
+    }
+
+    @Test
+    void replacesLiteralsAndDropsPerCallFields() {
+        assertEquals(shape("{find: 'orders', filter: {status: '?', total: {$gt: '?'}}}"),
+                shape("{find: 'orders', filter: {total: {$gt: 100}, status: 'A'}, lsid: {id: 1}, limit: 5, $db: 'shop'}"));
+    }
+
+    @Test
+    void keepsTopLevelSpecificationsVerbatim() {
+        assertEquals("{\"find\": \"orders\", \"filter\": {\"status\": \"?\"}, \"hint\": {\"status\": 1}, "
+                        + "\"sort\": {\"createdAt\": -1}}",
+                shape("{find: 'orders', filter: {status: 'A'}, sort: {createdAt: -1}, hint: {status: 1}}"));
+    }
+
+    @Test
+    void replacesUserFieldsNamedLikeSpecifications() {
+        assertEquals("{\"find\": \"settings\", \"filter\": {\"collation\": \"?\", \"key\": \"?\", \"sort\": \"?\"}}",
+                shape("{find: 'settings', filter: {key: 'theme', sort: 'asc', collation: 'en'}}"));
+    }
+
+    @Test
+    void keepsPipelineStageSpecifications() {
+        assertEquals("{\"aggregate\": \"orders\", \"pipeline\": [{\"$match\": {\"key\": \"?\"}}, "
+                        + "{\"$sort\": {\"total\": -1}}, {\"$project\": {\"total\": 1}}]}",
+                shape("{aggregate: 'orders', pipeline: [{$match: {key: 'k1'}}, {$sort: {total: -1}}, {$project: {total: 1}}]}"));
+    }
+
+    @Test
+    void normalizesNestedPipelines() {
+        assertEquals("{\"aggregate\": \"orders\", \"pipeline\": [{\"$lookup\": {\"as\": \"items\", \"from\": \"items\", "
+                        + "\"pipeline\": [{\"$match\": {\"sku\": \"?\"}}, {\"$sort\": {\"sku\": 1}}]}}, "
+                        + "{\"$facet\": {\"top\": [{\"$sort\": {\"total\": -1}}]}}]}",
+                shape("{aggregate: 'orders', pipeline: [{$lookup: {from: 'items', as: 'items', "
+                        + "pipeline: [{$match: {sku: 'a'}}, {$sort: {sku: 1}}]}}, {$facet: {top: [{$sort: {total: -1}}]}}]}"));
+    }
+
+    @Test
+    void keepsFieldPathsAndCollapsesValueArrays() {
+        assertEquals("{\"find\": \"orders\", \"filter\": {\"$expr\": {\"$gt\": [\"$total\", \"?\"]}, "
+                        + "\"status\": {\"$in\": \"?\"}}}",
+                shape("{find: 'orders', filter: {status: {$in: ['A', 'B']}, $expr: {$gt: ['$total', 5]}}}"));
+    }
+
+    @Test
+    void separatesExpressionsOnDifferentFields() {
+        assertNotEquals(shape("{find: 'orders', filter: {$expr: {$gt: ['$total', 5]}}}"),
+                shape("{find: 'orders', filter: {$expr: {$gt: ['$qty', 5]}}}"));
+        assertEquals(shape("{find: 'orders', filter: {$expr: {$gt: ['$total', 5]}}}"),
+                shape("{find: 'orders', filter: {$expr: {$gt: ['$total', 10]}}}"));
+    }
+}